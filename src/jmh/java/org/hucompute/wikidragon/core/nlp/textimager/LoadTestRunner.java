@@ -0,0 +1,202 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.impl.XmiCasSerializer;
+import org.apache.uima.collection.CollectionReader;
+import org.apache.uima.collection.CollectionReaderDescription;
+import org.apache.uima.fit.component.JCasAnnotator_ImplBase;
+import org.apache.uima.fit.factory.AggregateBuilder;
+import org.apache.uima.fit.pipeline.SimplePipeline;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.ExternalResourceDescription;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngine;
+import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngineDescription;
+import static org.apache.uima.fit.factory.CollectionReaderFactory.createReader;
+import static org.apache.uima.fit.factory.CollectionReaderFactory.createReaderDescription;
+import static org.apache.uima.fit.factory.ExternalResourceFactory.createExternalResourceDescription;
+
+/**
+ * Runs reader, a whitespace tokenizer and writer against a SimulatedWikiTextSpanStore filled with synthetic
+ * documents and reports documents/sec, MB/sec and the latency percentiles of the simulated requests.
+ * Arguments are key=value pairs, see DEFAULTS, e.g.
+ * java -cp target/benchmarks.jar org.hucompute.wikidragon.core.nlp.textimager.LoadTestRunner documents=5000 latencyMillis=2 deserializerThreads=4
+ * With pipelines=N, N pipelines in threads of their own share one reader in concurrentConsumers mode.
+ * The store covers the plain scan-and-update path only, the features which need a session are not measured
+ * (see WikiTextSpanStore).
+ */
+public class LoadTestRunner {
+
+    private static final String STORE = "LoadTestRunner";
+
+    private static final String[][] DEFAULTS = {
+            {"documents", "1000"},
+            {"documentChars", "20000"},
+            {"latencyMillis", "1"},
+            {"latencyJitterMillis", "0"},
+            {"pageSize", "100"},
+            {"failureRate", "0"},
+            {"queueDepth", "64"},
+            {"deserializerThreads", "0"},
+            {"pipelines", "1"},
+            {"maxInFlightWrites", "32"},
+            {"storageFormat", "XMI"},
+            {"journal", "false"}};
+
+    /**
+     * Annotates whitespace separated tokens as a cheap stand-in of an analysis engine
+     */
+    public static class WhitespaceTokenizer extends JCasAnnotator_ImplBase {
+        @Override
+        public void process(JCas aJCas) {
+            String lText = aJCas.getDocumentText();
+            int lBegin = -1;
+            for (int i=0; i<=lText.length(); i++) {
+                boolean lWhitespace = (i == lText.length()) || Character.isWhitespace(lText.charAt(i));
+                if (lWhitespace && (lBegin >= 0)) {
+                    new Token(aJCas, lBegin, i).addToIndexes();
+                    lBegin = -1;
+                }
+                else if (!lWhitespace && (lBegin < 0)) {
+                    lBegin = i;
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> lArgs = new LinkedHashMap<>();
+        for (String[] lDefault:DEFAULTS) lArgs.put(lDefault[0], lDefault[1]);
+        for (String lArg:args) {
+            String[] lKeyValue = lArg.split("=", 2);
+            if ((lKeyValue.length != 2) || !lArgs.containsKey(lKeyValue[0])) throw new IllegalArgumentException("Unknown argument: "+lArg+" - Known: "+lArgs.keySet());
+            lArgs.put(lKeyValue[0], lKeyValue[1]);
+        }
+        System.out.println("Load test: "+lArgs);
+        File lDataset = Files.createTempDirectory("wikitextspannlp").toFile();
+        File lJournal = new File(lDataset, "journal.db");
+        try {
+            long lDatasetBytes = createDataset(lDataset, Integer.parseInt(lArgs.get("documents")), Integer.parseInt(lArgs.get("documentChars")));
+            ExternalResourceDescription lStore = createExternalResourceDescription(SimulatedWikiTextSpanStore.class, "file:simulated",
+                    SimulatedWikiTextSpanStore.PARAM_NAME, STORE,
+                    SimulatedWikiTextSpanStore.PARAM_DBNAME, "simulated",
+                    SimulatedWikiTextSpanStore.PARAM_DATASETDIRECTORY, lDataset.getAbsolutePath(),
+                    SimulatedWikiTextSpanStore.PARAM_LATENCYMILLIS, Integer.parseInt(lArgs.get("latencyMillis")),
+                    SimulatedWikiTextSpanStore.PARAM_LATENCYJITTERMILLIS, Integer.parseInt(lArgs.get("latencyJitterMillis")),
+                    SimulatedWikiTextSpanStore.PARAM_PAGESIZE, Integer.parseInt(lArgs.get("pageSize")),
+                    SimulatedWikiTextSpanStore.PARAM_FAILURERATE, Float.parseFloat(lArgs.get("failureRate")));
+            CollectionReaderDescription lReader = createReaderDescription(WikiDragonCassandraCollectionReader.class,
+                    WikiDragonCassandraCollectionReader.PARAM_KEYSPACE, "simulated",
+                    WikiDragonCassandraCollectionReader.PARAM_DBNAME, "simulated",
+                    WikiDragonCassandraCollectionReader.PARAM_PROCESSINGSTATE, WikiDragonCassandraCollectionReader.ProcessingState.UNPROCESSED,
+                    WikiDragonCassandraCollectionReader.PARAM_SKIPZEROLENGTH, true,
+                    WikiDragonCassandraCollectionReader.PARAM_TOTALMODE, WikiDragonCassandraCollectionReader.TotalMode.ESTIMATE,
+                    WikiDragonCassandraCollectionReader.PARAM_QUEUEDEPTH, Integer.parseInt(lArgs.get("queueDepth")),
+                    WikiDragonCassandraCollectionReader.PARAM_DESERIALIZERTHREADS, Integer.parseInt(lArgs.get("deserializerThreads")),
+                    WikiDragonCassandraCollectionReader.PARAM_CONCURRENTCONSUMERS, Integer.parseInt(lArgs.get("pipelines")) > 1,
+                    WikiDragonCassandraCollectionReader.RES_STORE, lStore);
+            AnalysisEngineDescription lWriter = createEngineDescription(WikiDragonCassandraWriter.class,
+                    WikiDragonCassandraWriter.PARAM_KEYSPACE, "simulated",
+                    WikiDragonCassandraWriter.PARAM_DBNAME, "simulated",
+                    WikiDragonCassandraWriter.PARAM_MAXINFLIGHTWRITES, Integer.parseInt(lArgs.get("maxInFlightWrites")),
+                    WikiDragonCassandraWriter.PARAM_STORAGEFORMAT, WikiDragonCassandraWriter.StorageFormat.valueOf(lArgs.get("storageFormat")),
+                    WikiDragonCassandraWriter.PARAM_JOURNALFILE, Boolean.parseBoolean(lArgs.get("journal")) ? lJournal.getAbsolutePath() : null,
+                    WikiDragonCassandraWriter.PARAM_JOURNALRETRYDELAYMILLIS, 100,
+                    WikiDragonCassandraWriter.RES_STORE, lStore);
+            AggregateBuilder lBuilder = new AggregateBuilder();
+            lBuilder.add(createEngineDescription(WhitespaceTokenizer.class));
+            lBuilder.add(lWriter);
+            long lStart = System.nanoTime();
+            int lPipelines = Integer.parseInt(lArgs.get("pipelines"));
+            if (lPipelines > 1) {
+                runPipelines(lReader, lBuilder.createAggregateDescription(), lPipelines);
+            }
+            else {
+                SimplePipeline.runPipeline(lReader, lBuilder.createAggregateDescription());
+            }
+            double lSeconds = (System.nanoTime() - lStart) / 1e9;
+            SimulatedWikiTextSpanStore lResult = SimulatedWikiTextSpanStore.get(STORE);
+            long lDocuments = lResult.getProcessedCount();
+            System.out.println(String.format(Locale.ROOT, "Documents: %d in %.2fs, %.1f documents/sec", lDocuments, lSeconds, lDocuments / lSeconds));
+            System.out.println(String.format(Locale.ROOT, "Read: %.1f MB/sec (dataset %.1f MB), Written: %.1f MB/sec", lResult.getBytesRead() / lSeconds / 1e6, lDatasetBytes / 1e6, lResult.getBytesWritten() / lSeconds / 1e6));
+            System.out.println("Page requests: "+getPercentiles(lResult.getReadLatency()));
+            System.out.println("Updates: "+getPercentiles(lResult.getWriteLatency()));
+            System.out.println("Simulated failures: "+lResult.getFailures());
+        }
+        finally {
+            SimulatedWikiTextSpanStore.drop(STORE);
+            File[] lFiles = lDataset.listFiles();
+            if (lFiles != null) for (File lFile:lFiles) lFile.delete();
+            lDataset.delete();
+        }
+    }
+
+    /**
+     * Runs pipelines in threads of their own which share one reader, each with its own engines and CAS
+     */
+    private static void runPipelines(CollectionReaderDescription pReader, AnalysisEngineDescription pEngine, int pPipelines) throws Exception {
+        CollectionReader lReader = createReader(pReader);
+        List<AnalysisEngine> lEngines = new ArrayList<>();
+        for (int i=0; i<pPipelines; i++) lEngines.add(createEngine(pEngine));
+        AtomicReference<Exception> lFailure = new AtomicReference<>();
+        List<Thread> lThreads = new ArrayList<>();
+        for (AnalysisEngine lEngine:lEngines) {
+            Thread lThread = new Thread(() -> {
+                try {
+                    CAS lCas = lEngine.newCAS();
+                    while ((lFailure.get() == null) && lReader.hasNext()) {
+                        lReader.getNext(lCas);
+                        lEngine.process(lCas);
+                        lCas.reset();
+                    }
+                    lEngine.collectionProcessComplete();
+                }
+                catch (Exception e) {
+                    lFailure.compareAndSet(null, e);
+                }
+                finally {
+                    lEngine.destroy();
+                }
+            }, "Pipeline-"+lThreads.size());
+            lThreads.add(lThread);
+            lThread.start();
+        }
+        for (Thread lThread:lThreads) lThread.join();
+        lReader.destroy();
+        if (lFailure.get() != null) throw lFailure.get();
+    }
+
+    private static long createDataset(File pDirectory, int pDocuments, int pDocumentChars) throws Exception {
+        CAS lCas = SyntheticCorpus.createCas();
+        long lBytes = 0;
+        for (int i=0; i<pDocuments; i++) {
+            lCas.reset();
+            SyntheticCorpus.fill(lCas, pDocumentChars, i);
+            File lFile = new File(pDirectory, "synthetic-"+i+".xmi");
+            try (OutputStream lOutput = new FileOutputStream(lFile)) {
+                XmiCasSerializer.serialize(lCas, lOutput);
+            }
+            lBytes += lFile.length();
+        }
+        return lBytes;
+    }
+
+    private static String getPercentiles(Timer pTimer) {
+        Snapshot lSnapshot = pTimer.getSnapshot();
+        return String.format(Locale.ROOT, "count=%d, p50=%.2fms, p95=%.2fms, p99=%.2fms, max=%.2fms", pTimer.getCount(),
+                lSnapshot.getMedian()/1e6, lSnapshot.get95thPercentile()/1e6, lSnapshot.get99thPercentile()/1e6, lSnapshot.getMax()/1e6);
+    }
+
+}
@@ -0,0 +1,95 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.datastax.driver.core.Row;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filtering of the scanned rows and their handoff from the DocumentPrefetcher to the consumer.
+ * The rows are in-memory stand-ins with the columns dbname,raw,textlen,xmilen,processed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrefetchBenchmark {
+
+    private static final String DBNAME = "simplewiki";
+
+    private static final int ROWS = 100000;
+
+    @Param({"64"})
+    public int queueDepth;
+
+    private List<Row> rows;
+    private ByteBuffer xmi;
+
+    @Setup
+    public void setup() {
+        Random lRandom = new Random(1);
+        rows = new ArrayList<>(ROWS);
+        for (int i=0; i<ROWS; i++) {
+            rows.add(createRow(lRandom.nextInt(4) == 0 ? "dewiki" : DBNAME, "raw-"+i, lRandom.nextInt(20) == 0 ? 0 : 1 + lRandom.nextInt(100000), lRandom.nextBoolean()));
+        }
+        xmi = ByteBuffer.wrap("<xmi:XMI xmlns:xmi=\"http://www.omg.org/XMI\" xmi:version=\"2.0\"/>".getBytes(Charset.forName("UTF-8")));
+    }
+
+    private static Row createRow(String pDBName, String pRaw, int pTextLength, boolean pProcessed) {
+        return (Row)Proxy.newProxyInstance(Row.class.getClassLoader(), new Class<?>[]{Row.class}, (pProxy, pMethod, pArgs) -> {
+            int lIndex = pArgs != null && pArgs.length == 1 && pArgs[0] instanceof Integer ? (Integer)pArgs[0] : -1;
+            switch (pMethod.getName()) {
+                case "getString": return lIndex == 0 ? pDBName : pRaw;
+                case "getInt": return pTextLength;
+                case "getBool": return pProcessed;
+                case "isNull": return false;
+                default: throw new UnsupportedOperationException(pMethod.getName());
+            }
+        });
+    }
+
+    private boolean isRelevant(Row pRow) {
+        return WikiDragonCassandraCollectionReader.isRelevant(pRow.getString(0), pRow.getInt(2), pRow.getBool(4), DBNAME, WikiDragonCassandraCollectionReader.ProcessingState.UNPROCESSED, true);
+    }
+
+    /**
+     * Filtering on the calling thread
+     */
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public int accept() {
+        int lRelevant = 0;
+        for (Row lRow:rows) {
+            if (isRelevant(lRow)) lRelevant++;
+        }
+        return lRelevant;
+    }
+
+    /**
+     * Filtering and decoding on the prefetch thread and handoff through the queue
+     */
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void prefetch(Blackhole pBlackhole) throws Exception {
+        DocumentPrefetcher lPrefetcher = new DocumentPrefetcher(rows.iterator(), this::isRelevant, (pRow, pDocumentsRead, pRelevantDocumentsRead) -> new WikiTextSpanDocument(pRow.getString(1), xmi.duplicate(), null, pRow.getInt(3), pDocumentsRead, pRelevantDocumentsRead, null, null, null, null), queueDepth);
+        try {
+            WikiTextSpanDocument lDocument;
+            while ((lDocument = lPrefetcher.take()) != null) {
+                pBlackhole.consume(lDocument);
+            }
+        }
+        finally {
+            lPrefetcher.close();
+        }
+    }
+
+}
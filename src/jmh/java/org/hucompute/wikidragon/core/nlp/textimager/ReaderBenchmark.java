@@ -0,0 +1,64 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.impl.XmiCasDeserializer;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading of a document as done by WikiDragonCassandraCollectionReader.getNext(CAS):
+ * Deserialization of the stored payload followed by the DocumentMetaData patching
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReaderBenchmark {
+
+    private static final int DOCUMENTS = 8;
+
+    @Param({"20000", "200000"})
+    public int documentChars;
+
+    @Param({"XMI", "BINARY", "BINARY_LZ4"})
+    public WikiDragonCassandraWriter.StorageFormat storageFormat;
+
+    private ByteBuffer[] payloads;
+    private CAS cas;
+    private long documentsRead;
+
+    @Setup
+    public void setup() throws Exception {
+        cas = SyntheticCorpus.createCas();
+        byte[] lTypeSystemHash = BinaryCasCodec.hashTypeSystem(BinaryCasCodec.serializeTypeSystem(cas.getTypeSystem()));
+        payloads = new ByteBuffer[DOCUMENTS];
+        for (int i=0; i<DOCUMENTS; i++) {
+            cas.reset();
+            SyntheticCorpus.fill(cas, documentChars, i);
+            ReusableByteArrayOutputStream lOutput = new ReusableByteArrayOutputStream(1024*1024);
+            WikiDragonCassandraWriter.serialize(cas, storageFormat, lTypeSystemHash, lOutput);
+            payloads[i] = lOutput.toByteBuffer();
+        }
+        cas.reset();
+        documentsRead = 0;
+    }
+
+    @Benchmark
+    public int load() throws Exception {
+        ByteBuffer lPayload = payloads[(int)(documentsRead++ % DOCUMENTS)].duplicate();
+        cas.reset();
+        if (storageFormat == WikiDragonCassandraWriter.StorageFormat.XMI) {
+            XmiCasDeserializer.deserialize(new ByteBufferInputStream(lPayload), cas, false);
+        }
+        else {
+            BinaryCasCodec.deserialize(new ByteBufferInputStream(lPayload), cas.getTypeSystem(), cas);
+        }
+        WikiDragonCassandraCollectionReader.patchDocumentMetaData(cas, documentsRead);
+        return cas.getDocumentText().length();
+    }
+
+}
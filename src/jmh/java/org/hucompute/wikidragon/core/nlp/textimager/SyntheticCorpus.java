@@ -0,0 +1,76 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.fit.factory.TypeSystemDescriptionFactory;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.util.CasCreationUtils;
+import org.hucompute.wikidragon.core.nlp.annotation.HtmlTag;
+import org.hucompute.wikidragon.core.nlp.annotation.WikiTextSpan;
+
+import java.util.Random;
+
+/**
+ * Synthetic Wikipedia-like documents: Paragraphs of pseudo-random words with links, a WikiTextSpan covering the
+ * document and HtmlTag annotations for paragraphs, links and emphasis. The documents are deterministic for a seed.
+ */
+public class SyntheticCorpus {
+
+    private static final String[] WORDS = {"the", "of", "and", "in", "is", "was", "city", "river", "population", "century",
+            "located", "north", "government", "history", "language", "university", "football", "album", "released", "station",
+            "Berlin", "Frankfurt", "Europe", "Germany", "railway", "church", "village", "district", "municipality", "species"};
+
+    /**
+     * @return Empty CAS with the type systems found by uimaFIT, which include WikiTextSpan, HtmlTag and DocumentMetaData
+     */
+    public static CAS createCas() throws ResourceInitializationException {
+        return CasCreationUtils.createCas(TypeSystemDescriptionFactory.createTypeSystemDescription(), null, null);
+    }
+
+    /**
+     * Fills the empty CAS with a document of about pChars characters
+     */
+    public static void fill(CAS pCas, int pChars, long pSeed) throws Exception {
+        JCas lJCas = pCas.getJCas();
+        Random lRandom = new Random(pSeed);
+        StringBuilder lText = new StringBuilder(pChars + 1024);
+        int lOrder = 0;
+        while (lText.length() < pChars) {
+            int lParagraphBegin = lText.length();
+            int lWords = 40 + lRandom.nextInt(120);
+            for (int w=0; w<lWords; w++) {
+                if (w > 0) lText.append(' ');
+                int lWordBegin = lText.length();
+                lText.append(WORDS[lRandom.nextInt(WORDS.length)]);
+                if (lRandom.nextInt(12) == 0) {
+                    HtmlTag lLink = new HtmlTag(lJCas, lWordBegin, lText.length());
+                    lLink.setTag("a");
+                    lLink.setAttr("href=\"/wiki/"+lText.substring(lWordBegin)+"\"");
+                    lLink.setDepth(2);
+                    lLink.setOrder(lOrder++);
+                    lLink.addToIndexes();
+                }
+                else if (lRandom.nextInt(40) == 0) {
+                    HtmlTag lEmphasis = new HtmlTag(lJCas, lWordBegin, lText.length());
+                    lEmphasis.setTag("b");
+                    lEmphasis.setDepth(2);
+                    lEmphasis.setOrder(lOrder++);
+                    lEmphasis.addToIndexes();
+                }
+            }
+            lText.append('.');
+            HtmlTag lParagraph = new HtmlTag(lJCas, lParagraphBegin, lText.length());
+            lParagraph.setTag("p");
+            lParagraph.setDepth(1);
+            lParagraph.setOrder(lOrder++);
+            lParagraph.addToIndexes();
+            lText.append('\n');
+        }
+        lJCas.setDocumentText(lText.toString());
+        lJCas.setDocumentLanguage("en");
+        WikiTextSpan lSpan = new WikiTextSpan(lJCas, 0, lText.length());
+        lSpan.setUid("synthetic-"+pSeed);
+        lSpan.addToIndexes();
+    }
+
+}
@@ -0,0 +1,62 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.impl.XmiCasSerializer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of a document as done by WikiDragonCassandraWriter.process(JCas)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriterBenchmark {
+
+    @Param({"20000", "200000"})
+    public int documentChars;
+
+    @Param({"XMI", "BINARY", "BINARY_LZ4", "BINARY_XZ"})
+    public WikiDragonCassandraWriter.StorageFormat storageFormat;
+
+    private CAS cas;
+    private byte[] typeSystemHash;
+    private ReusableByteArrayOutputStream output;
+
+    @Setup
+    public void setup() throws Exception {
+        cas = SyntheticCorpus.createCas();
+        SyntheticCorpus.fill(cas, documentChars, 1);
+        typeSystemHash = BinaryCasCodec.hashTypeSystem(BinaryCasCodec.serializeTypeSystem(cas.getTypeSystem()));
+        output = new ReusableByteArrayOutputStream(1024*1024);
+    }
+
+    /**
+     * Serialization into a pooled buffer which is bound to the statement as it is
+     */
+    @Benchmark
+    public void serialize(Blackhole pBlackhole) throws Exception {
+        output.reset();
+        WikiDragonCassandraWriter.serialize(cas, storageFormat, typeSystemHash, output);
+        pBlackhole.consume(output.toByteBuffer());
+    }
+
+    /**
+     * Baseline: XMI serialized into a fresh buffer, decoded into a String and encoded again by the driver
+     */
+    @Benchmark
+    public void serializeXmiString(Blackhole pBlackhole) throws Exception {
+        ByteArrayOutputStream lOutput = new ByteArrayOutputStream();
+        XmiCasSerializer.serialize(cas, lOutput);
+        String lXMI = lOutput.toString("UTF-8");
+        pBlackhole.consume(lXMI.getBytes(Charset.forName("UTF-8")));
+    }
+
+}
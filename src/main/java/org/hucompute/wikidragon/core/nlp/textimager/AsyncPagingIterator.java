@@ -0,0 +1,42 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over a ResultSet and requests the next page in the background as soon as less than the threshold
+ * of rows of the current page is left, so the consumer does not stall on a round trip at every page boundary.
+ */
+public class AsyncPagingIterator implements Iterator<Row> {
+
+    private final ResultSet resultSet;
+    private final int threshold;
+
+    /**
+     * @param pResultSet ResultSet to iterate
+     * @param pFetchSize Fetch size of the statement. The next page is requested when half of it is consumed
+     */
+    public AsyncPagingIterator(ResultSet pResultSet, int pFetchSize) {
+        resultSet = pResultSet;
+        threshold = Math.max(1, pFetchSize / 2);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !resultSet.isExhausted();
+    }
+
+    @Override
+    public Row next() {
+        if ((resultSet.getAvailableWithoutFetching() <= threshold) && !resultSet.isFullyFetched()) {
+            resultSet.fetchMoreResults();
+        }
+        Row lResult = resultSet.one();
+        if (lResult == null) throw new NoSuchElementException();
+        return lResult;
+    }
+
+}
@@ -0,0 +1,241 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.datastax.driver.core.*;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Executes statements asynchronously while keeping the count of statements in flight bounded.
+ * Failures are collected and reported by checkFailures() and flush().
+ */
+public class AsyncStatementWriter {
+
+    private static Logger logger = LogManager.getLogger(AsyncStatementWriter.class);
+
+    private final Session session;
+    private final int maxInFlight;
+    private final Semaphore semaphore;
+    private final boolean groupPartitions;
+    private final AtomicLong failures = new AtomicLong();
+    private volatile Throwable firstFailure;
+    private final Timer latency;
+
+    /**
+     * @param pSession Session to execute the statements with, null if only submit(Supplier, Runnable) is used
+     * @param pMaxInFlight Maximal count of statements in flight
+     * @param pGroupPartitions Group statements of one write(Collection) call which share a partition into unlogged batches
+     */
+    public AsyncStatementWriter(Session pSession, int pMaxInFlight, boolean pGroupPartitions) {
+        this(pSession, pMaxInFlight, pGroupPartitions, new Timer());
+    }
+
+    /**
+     * @param pLatency Timer which records the latencies of the writes, e.g. of a MetricRegistry
+     */
+    public AsyncStatementWriter(Session pSession, int pMaxInFlight, boolean pGroupPartitions, Timer pLatency) {
+        latency = pLatency;
+        session = pSession;
+        maxInFlight = Math.max(1, pMaxInFlight);
+        semaphore = new Semaphore(maxInFlight);
+        groupPartitions = pGroupPartitions;
+    }
+
+    public void write(Statement pStatement) throws InterruptedException {
+        write(pStatement, null);
+    }
+
+    /**
+     * @param pOnComplete Called once when the statement has completed, successfully or not, also if the call throws.
+     *                    May be null
+     */
+    public void write(Statement pStatement, Runnable pOnComplete) throws InterruptedException {
+        submit(() -> session.executeAsync(pStatement), pOnComplete);
+    }
+
+    /**
+     * Submits a request which is not a statement of the session, e.g. an update of a WikiTextSpanStore,
+     * under the same bound of requests in flight
+     * @param pRequest Starts the request
+     * @param pOnComplete Called once when the request has completed, successfully or not, also if the call throws.
+     *                    May be null
+     */
+    public void submit(Supplier<? extends ListenableFuture<?>> pRequest, Runnable pOnComplete) throws InterruptedException {
+        try {
+            semaphore.acquire();
+        }
+        catch (InterruptedException e) {
+            if (pOnComplete != null) pOnComplete.run();
+            throw e;
+        }
+        Timer.Context lLatency = latency.time();
+        ListenableFuture<?> lFuture;
+        try {
+            lFuture = pRequest.get();
+        }
+        catch (RuntimeException e) {
+            semaphore.release();
+            if (pOnComplete != null) pOnComplete.run();
+            throw e;
+        }
+        Futures.addCallback(lFuture, new FutureCallback<Object>() {
+            @Override
+            public void onSuccess(Object pResult) {
+                lLatency.stop();
+                semaphore.release();
+                if ((pResult instanceof ResultSet) && !((ResultSet)pResult).wasApplied()) {
+                    recordFailure(new IOException("Update could not be applied"));
+                }
+                if (pOnComplete != null) pOnComplete.run();
+            }
+
+            @Override
+            public void onFailure(Throwable pThrowable) {
+                lLatency.stop();
+                semaphore.release();
+                recordFailure(pThrowable);
+                if (pOnComplete != null) pOnComplete.run();
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void recordFailure(Throwable pThrowable) {
+        if (firstFailure == null) firstFailure = pThrowable;
+        failures.incrementAndGet();
+        logger.error("Write failed: "+pThrowable.getMessage(), pThrowable);
+    }
+
+    public void write(Collection<? extends Statement> pStatements) throws InterruptedException {
+        write(pStatements, null);
+    }
+
+    /**
+     * @param pOnComplete Called once all statements have completed, successfully or not. If the call throws, it is
+     *                    called once the statements which have been written already have completed. May be null
+     */
+    public void write(Collection<? extends Statement> pStatements, Runnable pOnComplete) throws InterruptedException {
+        List<Statement> lStatements = groupPartitions ? group(pStatements) : new ArrayList<>(pStatements);
+        if (pOnComplete == null) {
+            for (Statement lStatement:lStatements) {
+                write(lStatement, null);
+            }
+            return;
+        }
+        // One count per statement and one for the submission, so pOnComplete does not run while statements are added
+        AtomicInteger lRemaining = new AtomicInteger(lStatements.size() + 1);
+        Runnable lOnComplete = () -> {
+            if (lRemaining.decrementAndGet() == 0) pOnComplete.run();
+        };
+        int lStarted = 0;
+        try {
+            for (Statement lStatement:lStatements) {
+                lStarted++;
+                write(lStatement, lOnComplete);
+            }
+        }
+        finally {
+            if (lRemaining.addAndGet(-(lStatements.size() - lStarted + 1)) == 0) pOnComplete.run();
+        }
+    }
+
+    /**
+     * Writes the statements under a single permit, followed by pThen once all of them have succeeded, e.g. for
+     * bookkeeping which must not be applied before the statements
+     * @param pThen Starts the request after the statements, null to write them like write(Collection, Runnable)
+     * @param pOnComplete Called once all statements and pThen have completed, successfully or not. May be null
+     */
+    public void write(Collection<? extends Statement> pStatements, Supplier<ListenableFuture<Void>> pThen, Runnable pOnComplete) throws InterruptedException {
+        if (pThen == null) {
+            write(pStatements, pOnComplete);
+            return;
+        }
+        List<Statement> lStatements = groupPartitions ? group(pStatements) : new ArrayList<>(pStatements);
+        submit(() -> {
+            List<ListenableFuture<ResultSet>> lFutures = new ArrayList<>();
+            for (Statement lStatement:lStatements) lFutures.add(session.executeAsync(lStatement));
+            return Futures.transformAsync(Futures.allAsList(lFutures), r -> pThen.get());
+        }, pOnComplete);
+    }
+
+    private List<Statement> group(Collection<? extends Statement> pStatements) {
+        List<Statement> lResult = new ArrayList<>();
+        Configuration lConfiguration = session.getCluster().getConfiguration();
+        ProtocolVersion lProtocolVersion = lConfiguration.getProtocolOptions().getProtocolVersion();
+        Map<ByteBuffer, List<Statement>> lPartitions = new LinkedHashMap<>();
+        for (Statement lStatement:pStatements) {
+            ByteBuffer lRoutingKey = lStatement.getRoutingKey(lProtocolVersion, lConfiguration.getCodecRegistry());
+            if (lRoutingKey == null) {
+                lResult.add(lStatement);
+            }
+            else {
+                lPartitions.computeIfAbsent(lRoutingKey, k -> new ArrayList<>()).add(lStatement);
+            }
+        }
+        for (List<Statement> lPartition:lPartitions.values()) {
+            if (lPartition.size() == 1) {
+                lResult.add(lPartition.get(0));
+            }
+            else {
+                BatchStatement lBatch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+                lBatch.addAll(lPartition);
+                lResult.add(lBatch);
+            }
+        }
+        return lResult;
+    }
+
+    /**
+     * Throws an IOException if writes failed since the last call. The failures are reset afterwards.
+     */
+    public void checkFailures() throws IOException {
+        long lFailures = failures.getAndSet(0);
+        if (lFailures > 0) {
+            Throwable lFirstFailure = firstFailure;
+            firstFailure = null;
+            throw new IOException(lFailures+" write(s) failed, first failure: "+(lFirstFailure != null ? lFirstFailure.getMessage() : null), lFirstFailure);
+        }
+    }
+
+    /**
+     * Waits for all writes in flight and reports failures
+     */
+    public void flush() throws IOException, InterruptedException {
+        semaphore.acquire(maxInFlight);
+        semaphore.release(maxInFlight);
+        checkFailures();
+    }
+
+    /**
+     * @return Latencies of the writes from submission to completion, including retries and speculative executions
+     */
+    public Timer getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return Summary of the latency percentiles in milliseconds
+     */
+    public String getLatencySummary() {
+        Snapshot lSnapshot = latency.getSnapshot();
+        return String.format(Locale.ROOT, "writes=%d, p50=%.1fms, p95=%.1fms, p99=%.1fms, p999=%.1fms, max=%.1fms", latency.getCount(),
+                lSnapshot.getMedian()/1e6, lSnapshot.get95thPercentile()/1e6, lSnapshot.get99thPercentile()/1e6, lSnapshot.get999thPercentile()/1e6, lSnapshot.getMax()/1e6);
+    }
+
+    public int getInFlight() {
+        return maxInFlight - semaphore.availablePermits();
+    }
+
+}
@@ -0,0 +1,165 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import net.jpountz.lz4.LZ4BlockInputStream;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.impl.CASMgrSerializer;
+import org.apache.uima.cas.impl.Serialization;
+import org.apache.uima.cas.impl.TypeSystemImpl;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZInputStream;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Binary storage format of CASes: UIMA compressed binary serialization (form 6) with an optional LZ4 or XZ stage.
+ * A payload starts with a header of the magic bytes, the compression and the hash of the type system the CAS was
+ * serialized with, so it can be deserialized into CASes of a different type system.
+ */
+public class BinaryCasCodec {
+
+    public enum Compression {NONE, LZ4, XZ};
+
+    private static final byte[] MAGIC = new byte[]{'W', 'D', 'C', '1'};
+
+    public static final int TYPESYSTEM_HASH_LENGTH = 16;
+
+    public static final int HEADER_LENGTH = MAGIC.length + 1 + TYPESYSTEM_HASH_LENGTH;
+
+    public static void serialize(CAS pCas, byte[] pTypeSystemHash, Compression pCompression, OutputStream pOutput) throws IOException {
+        pOutput.write(MAGIC);
+        pOutput.write(pCompression.ordinal());
+        pOutput.write(pTypeSystemHash, 0, TYPESYSTEM_HASH_LENGTH);
+        OutputStream lOutput;
+        switch (pCompression) {
+            case LZ4: {
+                lOutput = new LZ4BlockOutputStream(new NonClosingOutputStream(pOutput));
+                break;
+            }
+            case XZ: {
+                lOutput = new XZOutputStream(new NonClosingOutputStream(pOutput), new LZMA2Options());
+                break;
+            }
+            default: {
+                lOutput = new NonClosingOutputStream(pOutput);
+            }
+        }
+        try {
+            Serialization.serializeWithCompression(pCas, lOutput, pCas.getTypeSystem());
+        }
+        catch (ResourceInitializationException e) {
+            throw new IOException(e);
+        }
+        lOutput.close();
+    }
+
+    /**
+     * @param pTypeSystem Type system the payload has been serialized with
+     */
+    public static void deserialize(InputStream pInput, TypeSystem pTypeSystem, CAS pCas) throws IOException {
+        byte[] lHeader = readHeader(pInput);
+        InputStream lInput;
+        switch (Compression.values()[lHeader[MAGIC.length]]) {
+            case LZ4: {
+                lInput = new LZ4BlockInputStream(pInput);
+                break;
+            }
+            case XZ: {
+                lInput = new XZInputStream(pInput);
+                break;
+            }
+            default: {
+                lInput = pInput;
+            }
+        }
+        try {
+            Serialization.deserializeCAS(pCas, lInput, pTypeSystem, null);
+        }
+        catch (ResourceInitializationException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return Hash of the type system the payload has been serialized with
+     */
+    public static byte[] getTypeSystemHash(ByteBuffer pPayload) throws IOException {
+        byte[] lHeader = readHeader(new ByteBufferInputStream(pPayload));
+        return Arrays.copyOfRange(lHeader, MAGIC.length+1, HEADER_LENGTH);
+    }
+
+    /**
+     * Reads the hash of the type system from the header and resets the stream to its start
+     * @param pInput Stream which supports mark and reset
+     */
+    public static byte[] getTypeSystemHash(InputStream pInput) throws IOException {
+        pInput.mark(HEADER_LENGTH);
+        byte[] lHeader = readHeader(pInput);
+        pInput.reset();
+        return Arrays.copyOfRange(lHeader, MAGIC.length+1, HEADER_LENGTH);
+    }
+
+    private static byte[] readHeader(InputStream pInput) throws IOException {
+        byte[] lHeader = new byte[HEADER_LENGTH];
+        new DataInputStream(pInput).readFully(lHeader);
+        if (!Arrays.equals(Arrays.copyOf(lHeader, MAGIC.length), MAGIC) || (lHeader[MAGIC.length] >= Compression.values().length)) {
+            throw new IOException("Invalid binary CAS header");
+        }
+        return lHeader;
+    }
+
+    public static byte[] serializeTypeSystem(TypeSystem pTypeSystem) throws IOException {
+        CASMgrSerializer lSerializer = new CASMgrSerializer();
+        lSerializer.addTypeSystem((TypeSystemImpl)pTypeSystem);
+        ByteArrayOutputStream lOutput = new ByteArrayOutputStream();
+        try (ObjectOutputStream lObjectOutput = new ObjectOutputStream(lOutput)) {
+            lObjectOutput.writeObject(lSerializer);
+        }
+        return lOutput.toByteArray();
+    }
+
+    public static TypeSystem deserializeTypeSystem(byte[] pSerializedTypeSystem) throws IOException {
+        try (ObjectInputStream lInput = new ObjectInputStream(new ByteArrayInputStream(pSerializedTypeSystem))) {
+            TypeSystemImpl lTypeSystem = ((CASMgrSerializer)lInput.readObject()).getTypeSystem();
+            lTypeSystem.commit();
+            return lTypeSystem;
+        }
+        catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public static byte[] hashTypeSystem(byte[] pSerializedTypeSystem) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(pSerializedTypeSystem);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class NonClosingOutputStream extends FilterOutputStream {
+
+        private NonClosingOutputStream(OutputStream pOutput) {
+            super(pOutput);
+        }
+
+        @Override
+        public void write(byte[] pBytes, int pOffset, int pLength) throws IOException {
+            out.write(pBytes, pOffset, pLength);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+}
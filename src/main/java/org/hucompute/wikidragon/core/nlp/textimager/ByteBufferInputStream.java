@@ -0,0 +1,44 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * InputStream which reads the remaining bytes of a ByteBuffer without copying them first.
+ * The position of the given buffer is not changed.
+ */
+public class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    public ByteBufferInputStream(ByteBuffer pBuffer) {
+        buffer = pBuffer.duplicate();
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] pBytes, int pOffset, int pLength) {
+        if (pLength == 0) return 0;
+        if (!buffer.hasRemaining()) return -1;
+        int lLength = Math.min(pLength, buffer.remaining());
+        buffer.get(pBytes, pOffset, lLength);
+        return lLength;
+    }
+
+    @Override
+    public long skip(long pCount) {
+        int lCount = (int)Math.max(0, Math.min(pCount, buffer.remaining()));
+        buffer.position(buffer.position() + lCount);
+        return lCount;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+}
@@ -0,0 +1,270 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.datastax.driver.core.*;
+import com.datastax.driver.core.policies.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.uima.fit.component.initialize.ConfigurationParameterInitializer;
+import org.apache.uima.fit.descriptor.ConfigurationParameter;
+import org.apache.uima.resource.DataResource;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.resource.SharedResourceObject;
+
+import java.util.*;
+
+/**
+ * Shared Cassandra connection of WikiDragonCassandraCollectionReader and WikiDragonCassandraWriter.
+ * Components which are configured with the same hosts, credentials and pooling options share one Cluster and one
+ * Session per keyspace in the JVM. Both are reference-counted and closed when the last component releases them.
+ *
+ * The provider can be bound as external resource, e.g.
+ * createExternalResourceDescription(CassandraConnectionProvider.class, "file:cassandra", PARAM_CONTACTHOSTS, ...).
+ * The URL is not used. Components without a bound provider create one from their own parameters.
+ */
+public class CassandraConnectionProvider implements SharedResourceObject {
+
+    private static Logger logger = LogManager.getLogger(CassandraConnectionProvider.class);
+
+    /**
+     * NONE: No speculative executions.
+     * CONSTANT: Start a speculative execution after speculativeDelayMillis.
+     * PERCENTILE: Start a speculative execution when a request takes longer than speculativePercentile of the recent latencies.
+     * Only idempotent statements are executed speculatively.
+     */
+    public enum SpeculativeExecution {NONE, CONSTANT, PERCENTILE};
+
+    /**
+     * DEFAULT: Retry read and write timeouts once if the coordinator has enough replicas (DefaultRetryPolicy).
+     * FALLTHROUGH: Never retry, failures are reported to the component.
+     * Policies which lower the consistency level are not offered, since they would silently weaken the guarantees
+     * of the writes which mark documents as processed.
+     */
+    public enum Retry {DEFAULT, FALLTHROUGH};
+
+    private static final long MAX_TRACKED_LATENCY_MILLIS = 60000;
+
+    public static final String PARAM_USER = "user";
+    @ConfigurationParameter(name=PARAM_USER, mandatory=true)
+    private String user;
+
+    public static final String PARAM_PASSWORD = "password";
+    @ConfigurationParameter(name=PARAM_PASSWORD, mandatory=true)
+    private String password;
+
+    public static final String PARAM_CONTACTHOSTS = "contactHosts";
+    @ConfigurationParameter(name=PARAM_CONTACTHOSTS, mandatory=true)
+    private String[] contactHosts;
+
+    public static final String PARAM_CORECONNECTIONSPERHOST = "coreConnectionsPerHost";
+    @ConfigurationParameter(name=PARAM_CORECONNECTIONSPERHOST, mandatory=false, defaultValue="1")
+    private int coreConnectionsPerHost = 1;
+
+    public static final String PARAM_MAXCONNECTIONSPERHOST = "maxConnectionsPerHost";
+    @ConfigurationParameter(name=PARAM_MAXCONNECTIONSPERHOST, mandatory=false, defaultValue="1")
+    private int maxConnectionsPerHost = 1;
+
+    public static final String PARAM_MAXREQUESTSPERCONNECTION = "maxRequestsPerConnection";
+    @ConfigurationParameter(name=PARAM_MAXREQUESTSPERCONNECTION, mandatory=false, defaultValue="1024")
+    private int maxRequestsPerConnection = 1024;
+
+    /**
+     * Local datacenter of the DCAwareRoundRobinPolicy. Empty to use the datacenter of the contact points
+     */
+    public static final String PARAM_LOCALDC = "localDC";
+    @ConfigurationParameter(name=PARAM_LOCALDC, mandatory=false, defaultValue="")
+    private String localDC = "";
+
+    /**
+     * Route requests to a replica of the partition they address (TokenAwarePolicy)
+     */
+    public static final String PARAM_TOKENAWARE = "tokenAware";
+    @ConfigurationParameter(name=PARAM_TOKENAWARE, mandatory=false, defaultValue="true")
+    private boolean tokenAware = true;
+
+    public static final String PARAM_SPECULATIVEEXECUTION = "speculativeExecution";
+    @ConfigurationParameter(name=PARAM_SPECULATIVEEXECUTION, mandatory=false, defaultValue="NONE")
+    private SpeculativeExecution speculativeExecution = SpeculativeExecution.NONE;
+
+    public static final String PARAM_SPECULATIVEDELAYMILLIS = "speculativeDelayMillis";
+    @ConfigurationParameter(name=PARAM_SPECULATIVEDELAYMILLIS, mandatory=false, defaultValue="500")
+    private int speculativeDelayMillis = 500;
+
+    public static final String PARAM_SPECULATIVEPERCENTILE = "speculativePercentile";
+    @ConfigurationParameter(name=PARAM_SPECULATIVEPERCENTILE, mandatory=false, defaultValue="99.0")
+    private float speculativePercentile = 99.0f;
+
+    /**
+     * Maximal count of speculative executions per request, in addition to the initial execution
+     */
+    public static final String PARAM_MAXSPECULATIVEEXECUTIONS = "maxSpeculativeExecutions";
+    @ConfigurationParameter(name=PARAM_MAXSPECULATIVEEXECUTIONS, mandatory=false, defaultValue="2")
+    private int maxSpeculativeExecutions = 2;
+
+    public static final String PARAM_RETRY = "retry";
+    @ConfigurationParameter(name=PARAM_RETRY, mandatory=false, defaultValue="DEFAULT")
+    private Retry retry = Retry.DEFAULT;
+
+    /**
+     * Log the decisions of the retry policy
+     */
+    public static final String PARAM_LOGRETRIES = "logRetries";
+    @ConfigurationParameter(name=PARAM_LOGRETRIES, mandatory=false, defaultValue="false")
+    private boolean logRetries = false;
+
+    /**
+     * Socket timeouts of the driver. Documents which are stored in chunks (see WikiDragonCassandraWriter.PARAM_CHUNKTHRESHOLD)
+     * keep single requests small enough for the driver defaults of 5000 and 12000
+     */
+    public static final String PARAM_CONNECTTIMEOUTMILLIS = "connectTimeoutMillis";
+    @ConfigurationParameter(name=PARAM_CONNECTTIMEOUTMILLIS, mandatory=false, defaultValue="30000")
+    private int connectTimeoutMillis = 30000;
+
+    public static final String PARAM_READTIMEOUTMILLIS = "readTimeoutMillis";
+    @ConfigurationParameter(name=PARAM_READTIMEOUTMILLIS, mandatory=false, defaultValue="30000")
+    private int readTimeoutMillis = 30000;
+
+    private static class SharedCluster {
+        private final Cluster cluster;
+        private final Map<String, Session> sessions = new HashMap<>();
+        private final Map<String, Integer> sessionReferences = new HashMap<>();
+
+        private SharedCluster(Cluster pCluster) {
+            cluster = pCluster;
+        }
+    }
+
+    private static final Map<String, SharedCluster> sharedClusters = new HashMap<>();
+
+    public CassandraConnectionProvider() {
+    }
+
+    /**
+     * Provider of a component which is not bound to an external resource
+     */
+    public CassandraConnectionProvider(String[] pContactHosts, String pUser, String pPassword) {
+        contactHosts = pContactHosts;
+        user = pUser;
+        password = pPassword;
+    }
+
+    @Override
+    public void load(DataResource aData) throws ResourceInitializationException {
+        ConfigurationParameterInitializer.initialize(this, aData);
+    }
+
+    private String getClusterKey() {
+        return Arrays.toString(contactHosts)+"|"+user+"|"+password.hashCode()+"|"+coreConnectionsPerHost+"|"+maxConnectionsPerHost+"|"+maxRequestsPerConnection+"|"+localDC+"|"+tokenAware
+                +"|"+speculativeExecution+"|"+speculativeDelayMillis+"|"+speculativePercentile+"|"+maxSpeculativeExecutions+"|"+retry+"|"+logRetries
+                +"|"+connectTimeoutMillis+"|"+readTimeoutMillis;
+    }
+
+    private Cluster buildCluster() {
+        Cluster.Builder lBuilder = Cluster.builder();
+        for (String lHost:contactHosts) {
+            lBuilder.addContactPoint(lHost);
+        }
+        lBuilder.withCredentials(user, password);
+        lBuilder.getConfiguration().getQueryOptions().setConsistencyLevel(ConsistencyLevel.ANY);
+        lBuilder.getConfiguration().getSocketOptions().setConnectTimeoutMillis(connectTimeoutMillis);
+        lBuilder.getConfiguration().getSocketOptions().setReadTimeoutMillis(readTimeoutMillis);
+        PoolingOptions lPoolingOptions = new PoolingOptions();
+        lPoolingOptions.setConnectionsPerHost(HostDistance.LOCAL, coreConnectionsPerHost, Math.max(coreConnectionsPerHost, maxConnectionsPerHost));
+        lPoolingOptions.setMaxRequestsPerConnection(HostDistance.LOCAL, maxRequestsPerConnection);
+        lBuilder.withPoolingOptions(lPoolingOptions);
+        DCAwareRoundRobinPolicy.Builder lDCAwareBuilder = DCAwareRoundRobinPolicy.builder();
+        if (localDC.length() > 0) lDCAwareBuilder.withLocalDc(localDC);
+        LoadBalancingPolicy lPolicy = lDCAwareBuilder.build();
+        lBuilder.withLoadBalancingPolicy(tokenAware ? new TokenAwarePolicy(lPolicy) : lPolicy);
+        RetryPolicy lRetryPolicy;
+        switch (retry) {
+            case FALLTHROUGH: {
+                lRetryPolicy = FallthroughRetryPolicy.INSTANCE;
+                break;
+            }
+            default: {
+                lRetryPolicy = DefaultRetryPolicy.INSTANCE;
+            }
+        }
+        lBuilder.withRetryPolicy(logRetries ? new LoggingRetryPolicy(lRetryPolicy) : lRetryPolicy);
+        PercentileTracker lPercentileTracker = null;
+        switch (speculativeExecution) {
+            case CONSTANT: {
+                lBuilder.withSpeculativeExecutionPolicy(new ConstantSpeculativeExecutionPolicy(speculativeDelayMillis, maxSpeculativeExecutions));
+                break;
+            }
+            case PERCENTILE: {
+                lPercentileTracker = ClusterWidePercentileTracker.builder(MAX_TRACKED_LATENCY_MILLIS).build();
+                lBuilder.withSpeculativeExecutionPolicy(new PercentileSpeculativeExecutionPolicy(lPercentileTracker, speculativePercentile, maxSpeculativeExecutions));
+                break;
+            }
+        }
+        Cluster lCluster = lBuilder.build();
+        if (lPercentileTracker != null) lCluster.register(lPercentileTracker);
+        return lCluster;
+    }
+
+    /**
+     * @return Shared session whose keyspace is set to pKeyspace. It has to be returned by release(Session)
+     */
+    public Session connect(String pKeyspace) {
+        synchronized (sharedClusters) {
+            String lKey = getClusterKey();
+            SharedCluster lSharedCluster = sharedClusters.get(lKey);
+            if (lSharedCluster == null) {
+                logger.info("Opening shared Cassandra Cluster...");
+                lSharedCluster = new SharedCluster(buildCluster());
+                sharedClusters.put(lKey, lSharedCluster);
+            }
+            Session lSession = lSharedCluster.sessions.get(pKeyspace);
+            if (lSession == null) {
+                try {
+                    lSession = lSharedCluster.cluster.connect(pKeyspace);
+                }
+                catch (RuntimeException e) {
+                    if (lSharedCluster.sessions.isEmpty()) {
+                        lSharedCluster.cluster.close();
+                        sharedClusters.remove(lKey);
+                    }
+                    throw e;
+                }
+                lSharedCluster.sessions.put(pKeyspace, lSession);
+                lSharedCluster.sessionReferences.put(pKeyspace, 0);
+            }
+            lSharedCluster.sessionReferences.put(pKeyspace, lSharedCluster.sessionReferences.get(pKeyspace)+1);
+            return lSession;
+        }
+    }
+
+    /**
+     * Releases a session of connect(String). The session and the cluster are closed when they are not used anymore
+     */
+    public void release(Session pSession) {
+        synchronized (sharedClusters) {
+            String lKey = getClusterKey();
+            SharedCluster lSharedCluster = sharedClusters.get(lKey);
+            if (lSharedCluster == null) return;
+            for (Map.Entry<String, Session> lEntry:lSharedCluster.sessions.entrySet()) {
+                if (lEntry.getValue() == pSession) {
+                    String lKeyspace = lEntry.getKey();
+                    int lReferences = lSharedCluster.sessionReferences.get(lKeyspace) - 1;
+                    if (lReferences > 0) {
+                        lSharedCluster.sessionReferences.put(lKeyspace, lReferences);
+                    }
+                    else {
+                        logger.info("Closing shared Cassandra Session of keyspace "+lKeyspace+"...");
+                        pSession.close();
+                        lSharedCluster.sessions.remove(lKeyspace);
+                        lSharedCluster.sessionReferences.remove(lKeyspace);
+                    }
+                    break;
+                }
+            }
+            if (lSharedCluster.sessions.isEmpty()) {
+                logger.info("Closing shared Cassandra Cluster...");
+                lSharedCluster.cluster.close();
+                sharedClusters.remove(lKey);
+            }
+        }
+    }
+
+}
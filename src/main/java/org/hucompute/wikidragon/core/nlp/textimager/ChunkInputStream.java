@@ -0,0 +1,120 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.DriverException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Payload of a document which is stored in chunks (see WikiDragonCassandraWriter.PARAM_CHUNKTHRESHOLD), read as
+ * stream. The chunks are paged in by the driver while the stream is consumed, the next page is requested as soon
+ * as the current one is half consumed. So at most two pages of chunks are held in memory. The first page is only
+ * requested when the stream is read, so documents which wait to be deserialized do not hold chunks.
+ */
+public class ChunkInputStream extends InputStream {
+
+    private final Session session;
+    private final Statement query;
+    private final int chunkCount;
+    private final String raw;
+    private ResultSet resultSet;
+    private ByteBuffer current;
+    private int chunk = 0;
+    private boolean binary;
+    private boolean closed = false;
+
+    /**
+     * @param pQuery Query of the columns chunk,data,binary of the chunks of the document in order
+     * @param pChunkCount Count of chunks of the document
+     * @param pRaw Key of the document
+     */
+    public ChunkInputStream(Session pSession, Statement pQuery, int pChunkCount, String pRaw) {
+        session = pSession;
+        query = pQuery;
+        chunkCount = pChunkCount;
+        raw = pRaw;
+    }
+
+    private void open() throws IOException {
+        if (closed) throw new IOException("Stream of "+raw+" is closed");
+        if (resultSet == null) {
+            try {
+                resultSet = session.execute(query);
+            }
+            catch (DriverException e) {
+                throw new IOException("Fetching the chunks of "+raw+" failed: "+e.getMessage(), e);
+            }
+            if (!nextChunk()) throw new IOException("Chunks of "+raw+" are missing");
+        }
+    }
+
+    /**
+     * @return True if the payload is a binary CAS (see BinaryCasCodec), false if it is UTF-8 encoded XMI
+     */
+    public boolean isBinary() throws IOException {
+        open();
+        return binary;
+    }
+
+    private boolean nextChunk() throws IOException {
+        if (chunk >= chunkCount) return false;
+        Row lRow;
+        try {
+            int lFetchSize = resultSet.getExecutionInfo().getStatement().getFetchSize();
+            if ((lFetchSize > 0) && (resultSet.getAvailableWithoutFetching() <= lFetchSize / 2) && !resultSet.isFullyFetched()) {
+                resultSet.fetchMoreResults();
+            }
+            lRow = resultSet.one();
+        }
+        catch (DriverException e) {
+            throw new IOException("Fetching the chunks of "+raw+" failed: "+e.getMessage(), e);
+        }
+        if ((lRow == null) || (lRow.getInt(0) != chunk)) {
+            throw new IOException("Chunk "+chunk+" of "+chunkCount+" of "+raw+" is missing");
+        }
+        if (chunk == 0) binary = lRow.getBool(2);
+        current = lRow.getBytesUnsafe(1);
+        if (current == null) current = ByteBuffer.allocate(0);
+        chunk++;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        open();
+        while (!current.hasRemaining()) {
+            if (!nextChunk()) return -1;
+        }
+        return current.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] pBuffer, int pOffset, int pLength) throws IOException {
+        if (pLength == 0) return 0;
+        open();
+        while (!current.hasRemaining()) {
+            if (!nextChunk()) return -1;
+        }
+        int lLength = Math.min(pLength, current.remaining());
+        current.get(pBuffer, pOffset, lLength);
+        return lLength;
+    }
+
+    @Override
+    public int available() {
+        return current != null ? current.remaining() : 0;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        current = null;
+        resultSet = null;
+    }
+
+}
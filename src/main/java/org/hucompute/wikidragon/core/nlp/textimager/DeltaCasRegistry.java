@@ -0,0 +1,75 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Marker;
+import org.apache.uima.cas.impl.CASImpl;
+import org.apache.uima.cas.impl.XmiSerializationSharedData;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Hands the XMI ids of a loaded document from WikiDragonCassandraCollectionReader to WikiDragonCassandraWriter,
+ * which needs them to serialize the annotations added by the pipeline as delta of the stored XMI.
+ * The reader registers a CAS after loading a document and marks it, everything created afterwards belongs to the delta.
+ */
+public class DeltaCasRegistry {
+
+    /**
+     * XMI ids of a loaded document
+     */
+    public static class Delta {
+        private final XmiSerializationSharedData sharedData;
+        private final int mergePoint;
+        private final Marker marker;
+
+        private Delta(XmiSerializationSharedData pSharedData, Marker pMarker) {
+            sharedData = pSharedData;
+            mergePoint = pSharedData.getMaxXmiId();
+            marker = pMarker;
+        }
+
+        public XmiSerializationSharedData getSharedData() {
+            return sharedData;
+        }
+
+        /**
+         * @return Highest XMI id of the loaded document. Elements of a delta with higher ids are new
+         */
+        public int getMergePoint() {
+            return mergePoint;
+        }
+
+        public Marker getMarker() {
+            return marker;
+        }
+    }
+
+    private static final Map<CAS, Delta> deltas = new WeakHashMap<>();
+
+    private static CAS getBaseCas(CAS pCas) {
+        return ((CASImpl)pCas.getLowLevelCAS()).getBaseCAS();
+    }
+
+    /**
+     * Marks the CAS, which has been loaded with the shared data
+     */
+    public static void register(CAS pCas, XmiSerializationSharedData pSharedData) {
+        Delta lDelta = new Delta(pSharedData, getBaseCas(pCas).createMarker());
+        synchronized (deltas) {
+            deltas.put(getBaseCas(pCas), lDelta);
+        }
+    }
+
+    /**
+     * @return Delta of the document in the CAS, or null if the CAS has not been registered since it has been reset
+     */
+    public static Delta get(CAS pCas) {
+        Delta lDelta;
+        synchronized (deltas) {
+            lDelta = deltas.get(getBaseCas(pCas));
+        }
+        return (lDelta != null) && lDelta.marker.isValid() ? lDelta : null;
+    }
+
+}
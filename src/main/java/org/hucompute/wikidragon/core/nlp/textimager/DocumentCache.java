@@ -0,0 +1,201 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mapdb.DB;
+import org.mapdb.DBException;
+import org.mapdb.DBMaker;
+import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Local cache of the payloads of documents in a memory-mapped MapDB file, keyed by (dbname, raw). Each entry holds
+ * the payload, XMI compressed with LZ4, together with textlen, xmilen, processed and the writetime of xmilen the
+ * payload has been read with. An entry is only valid as long as the writetime of the document in Cassandra is the
+ * same, so documents which have been written since are fetched again.
+ *
+ * The cache is bounded by the size of its store. Entries which have not been read for the longest time are evicted
+ * first. The file is a cache only: it is not written transactionally and is recreated if it cannot be opened.
+ * Thread-safe.
+ */
+public class DocumentCache implements Closeable {
+
+    private static Logger logger = LogManager.getLogger(DocumentCache.class);
+
+    private static final byte XMI = 0;
+
+    private static final byte BINARY = 1;
+
+    /**
+     * writetime, textlen, xmilen, processed, kind, length of the uncompressed payload
+     */
+    private static final int HEADER_LENGTH = 8 + 4 + 4 + 1 + 1 + 4;
+
+    /**
+     * Payload and metadata of a cached document
+     */
+    public static class Entry {
+        private final long writeTime;
+        private final int textLength;
+        private final int xmiLength;
+        private final boolean processed;
+        private final boolean binary;
+        private final ByteBuffer payload;
+
+        private Entry(long pWriteTime, int pTextLength, int pXMILength, boolean pProcessed, boolean pBinary, ByteBuffer pPayload) {
+            writeTime = pWriteTime;
+            textLength = pTextLength;
+            xmiLength = pXMILength;
+            processed = pProcessed;
+            binary = pBinary;
+            payload = pPayload;
+        }
+
+        public long getWriteTime() {
+            return writeTime;
+        }
+
+        public int getTextLength() {
+            return textLength;
+        }
+
+        public int getXMILength() {
+            return xmiLength;
+        }
+
+        public boolean isProcessed() {
+            return processed;
+        }
+
+        /**
+         * @return True if the payload is a binary CAS (see BinaryCasCodec), false if it is UTF-8 encoded XMI
+         */
+        public boolean isBinary() {
+            return binary;
+        }
+
+        public ByteBuffer getPayload() {
+            return payload;
+        }
+    }
+
+    private final File file;
+    private final DB db;
+    private final HTreeMap<String, byte[]> documents;
+    private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+    private final LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+
+    /**
+     * @param pFile MapDB file of the cache
+     * @param pMaxSizeBytes Size of the store above which entries are evicted
+     */
+    public DocumentCache(File pFile, long pMaxSizeBytes) {
+        file = pFile;
+        DB lDB;
+        try {
+            lDB = open(pFile);
+        }
+        catch (DBException e) {
+            logger.warn("Document cache "+pFile+" could not be opened ("+e.getMessage()+") - Recreating it");
+            if (!pFile.delete()) logger.warn("Document cache "+pFile+" could not be deleted");
+            lDB = open(pFile);
+        }
+        db = lDB;
+        // Eviction takes place while entries are put, in the order of the last access
+        documents = db.hashMap("documents", Serializer.STRING, Serializer.BYTE_ARRAY)
+                .expireStoreSize(pMaxSizeBytes)
+                .expireAfterCreate()
+                .expireAfterUpdate()
+                .expireAfterGet()
+                .counterEnable()
+                .createOrOpen();
+        logger.info("Document cache "+pFile+" holds "+documents.size()+" documents");
+    }
+
+    private static DB open(File pFile) {
+        return DBMaker.fileDB(pFile).fileMmapEnableIfSupported().fileMmapPreclearDisable().closeOnJvmShutdown().make();
+    }
+
+    private static String getKey(String pDBName, String pRaw) {
+        return pDBName+'\u0000'+pRaw;
+    }
+
+    /**
+     * @param pWriteTime Writetime of xmilen of the document in Cassandra
+     * @return Entry of the document, or null if it is not cached or has been read with another writetime
+     */
+    public Entry get(String pDBName, String pRaw, long pWriteTime) {
+        byte[] lValue = documents.get(getKey(pDBName, pRaw));
+        if (lValue == null) return null;
+        ByteBuffer lHeader = ByteBuffer.wrap(lValue);
+        long lWriteTime = lHeader.getLong();
+        if (lWriteTime != pWriteTime) return null;
+        int lTextLength = lHeader.getInt();
+        int lXMILength = lHeader.getInt();
+        boolean lProcessed = lHeader.get() != 0;
+        boolean lBinary = lHeader.get() == BINARY;
+        int lLength = lHeader.getInt();
+        ByteBuffer lPayload;
+        if (lBinary) {
+            lPayload = ByteBuffer.wrap(lValue, HEADER_LENGTH, lLength).slice();
+        }
+        else {
+            byte[] lXMI = new byte[lLength];
+            decompressor.decompress(lValue, HEADER_LENGTH, lXMI, 0, lLength);
+            lPayload = ByteBuffer.wrap(lXMI);
+        }
+        return new Entry(lWriteTime, lTextLength, lXMILength, lProcessed, lBinary, lPayload);
+    }
+
+    /**
+     * Stores the payload of a document, replacing an older entry
+     * @param pWriteTime Writetime of xmilen the payload has been read with
+     * @param pPayload Binary CAS, which is already compressed, or UTF-8 encoded XMI. Its position is not changed
+     */
+    public void put(String pDBName, String pRaw, long pWriteTime, int pTextLength, int pXMILength, boolean pProcessed, ByteBuffer pPayload, boolean pBinary) {
+        byte[] lPayload = new byte[pPayload.remaining()];
+        pPayload.duplicate().get(lPayload);
+        byte[] lValue;
+        int lLength;
+        if (pBinary) {
+            lValue = new byte[HEADER_LENGTH + lPayload.length];
+            System.arraycopy(lPayload, 0, lValue, HEADER_LENGTH, lPayload.length);
+            lLength = lValue.length;
+        }
+        else {
+            lValue = new byte[HEADER_LENGTH + compressor.maxCompressedLength(lPayload.length)];
+            lLength = HEADER_LENGTH + compressor.compress(lPayload, 0, lPayload.length, lValue, HEADER_LENGTH);
+        }
+        ByteBuffer.wrap(lValue).putLong(pWriteTime).putInt(pTextLength).putInt(pXMILength).put(pProcessed ? (byte)1 : (byte)0).put(pBinary ? BINARY : XMI).putInt(lPayload.length);
+        documents.put(getKey(pDBName, pRaw), lLength == lValue.length ? lValue : Arrays.copyOf(lValue, lLength));
+    }
+
+    public void remove(String pDBName, String pRaw) {
+        documents.remove(getKey(pDBName, pRaw));
+    }
+
+    /**
+     * @return Count of cached documents
+     */
+    public long size() {
+        return documents.sizeLong();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() {
+        if (!db.isClosed()) db.close();
+    }
+
+}
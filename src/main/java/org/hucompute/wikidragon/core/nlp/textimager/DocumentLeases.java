@@ -0,0 +1,178 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Session;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.impl.CASImpl;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Leases of documents in the table wikitextspannlp_leases, which keep concurrently running pipelines from processing
+ * the same documents. A document is claimed with a lightweight transaction which only succeeds if there is no lease
+ * of it yet. The lease expires by its TTL, so the documents of a worker which has died are claimed again afterwards.
+ * Each instance claims as an owner of its own, so readers in the same JVM do not share their leases.
+ *
+ * The reader extends the lease when it delivers the document and hands it to WikiDragonCassandraWriter with the CAS
+ * (see register(CAS, Lease)), which releases it once it has written the document. A released lease is kept as marker
+ * until it expires, so workers which have read the document before it was written do not claim it again. Thread-safe.
+ */
+public class DocumentLeases {
+
+    private static Logger logger = LogManager.getLogger(DocumentLeases.class);
+
+    public static final String TABLE = "wikitextspannlp_leases";
+
+    /**
+     * Lease of a document which has been delivered
+     */
+    public static class Lease {
+        private final String keyspace;
+        private final String dbname;
+        private final String raw;
+        private final String owner;
+        private final int leaseSeconds;
+
+        private Lease(String pKeyspace, String pDBName, String pRaw, String pOwner, int pLeaseSeconds) {
+            keyspace = pKeyspace;
+            dbname = pDBName;
+            raw = pRaw;
+            owner = pOwner;
+            leaseSeconds = pLeaseSeconds;
+        }
+
+        /**
+         * @return True if the lease is of the document in the keyspace and dbname
+         */
+        public boolean isOf(String pKeyspace, String pDBName, String pRaw) {
+            return keyspace.equals(pKeyspace) && dbname.equals(pDBName) && raw.equals(pRaw);
+        }
+
+        /**
+         * @param pRelease Statement of prepareRelease(Session)
+         */
+        public BoundStatement bindRelease(PreparedStatement pRelease) {
+            return pRelease.bind(leaseSeconds, dbname, raw, owner);
+        }
+
+        public String getRaw() {
+            return raw;
+        }
+    }
+
+    /**
+     * Leases of the documents the CASes have been loaded with, by base CAS
+     */
+    private static final Map<CAS, Lease> casLeases = new WeakHashMap<>();
+
+    private final Session session;
+    private final String dbname;
+    private final int leaseSeconds;
+    private final String owner = ManagementFactory.getRuntimeMXBean().getName()+"/"+UUID.randomUUID();
+    private final PreparedStatement claimStatement;
+    private final PreparedStatement extendStatement;
+    private final Set<String> held = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param pSession Session whose keyspace has been set already
+     * @param pLeaseSeconds Lease time, which has to cover the wait of a document in the queue of the reader and,
+     * from its delivery, its processing
+     */
+    public DocumentLeases(Session pSession, String pDBName, int pLeaseSeconds) {
+        session = pSession;
+        dbname = pDBName;
+        leaseSeconds = pLeaseSeconds;
+        createTable(session);
+        claimStatement = session.prepare("insert into "+TABLE+" (dbname, raw, owner) values (?, ?, ?) if not exists using ttl ?");
+        extendStatement = session.prepare("update "+TABLE+" using ttl ? set owner=? where dbname=? and raw=? if owner=?");
+    }
+
+    public static void createTable(Session pSession) {
+        pSession.execute("create table if not exists "+TABLE+" (dbname text, raw text, owner text, released boolean, primary key ((dbname, raw)))");
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * @return True once the lease has been taken, false if the document is leased already
+     */
+    public ListenableFuture<Boolean> claim(String pRaw) {
+        return Futures.transform(session.executeAsync(claimStatement.bind(dbname, pRaw, owner, leaseSeconds)), (ResultSet pResult) -> {
+            if (pResult.wasApplied()) held.add(pRaw);
+            return pResult.wasApplied();
+        });
+    }
+
+    /**
+     * Extends the lease of a document which is delivered by leaseSeconds, so its time in the queue does not count
+     * against its processing. The extension is asynchronous, a failed one leaves the lease as claimed
+     * @return Lease of the document, or null if it has not been claimed
+     */
+    public Lease deliver(String pRaw) {
+        if (!held.remove(pRaw)) return null;
+        ListenableFuture<ResultSet> lExtension = session.executeAsync(extendStatement.bind(leaseSeconds, owner, dbname, pRaw, owner));
+        Futures.addCallback(lExtension, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet pResult) {
+                if (!pResult.wasApplied()) logger.warn("Lease of "+pRaw+" has expired before delivery - Processing it anyway");
+            }
+
+            @Override
+            public void onFailure(Throwable pThrowable) {
+                logger.warn("Extending the lease of "+pRaw+" failed: "+pThrowable.getMessage()+" - Ignoring it");
+            }
+        }, MoreExecutors.directExecutor());
+        return new Lease(session.getLoggedKeyspace(), dbname, pRaw, owner, leaseSeconds);
+    }
+
+    /**
+     * @return Release of a lease which binds the lease time of the marker, dbname, raw and the owner
+     */
+    public static PreparedStatement prepareRelease(Session pSession) {
+        return pSession.prepare("update "+TABLE+" using ttl ? set released=true where dbname=? and raw=? if owner=?");
+    }
+
+    private static CAS getBaseCas(CAS pCas) {
+        return ((CASImpl)pCas.getLowLevelCAS()).getBaseCAS();
+    }
+
+    /**
+     * Hands the lease of the document the CAS has been loaded with to the writer of the pipeline
+     * @param pLease Lease, null if the document is not leased
+     */
+    public static void register(CAS pCas, Lease pLease) {
+        synchronized (casLeases) {
+            if (pLease != null) {
+                casLeases.put(getBaseCas(pCas), pLease);
+            }
+            else {
+                casLeases.remove(getBaseCas(pCas));
+            }
+        }
+    }
+
+    /**
+     * @return Lease of the document in the CAS, or null. It is not registered afterwards
+     */
+    public static Lease take(CAS pCas) {
+        synchronized (casLeases) {
+            return casLeases.remove(getBaseCas(pCas));
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.datastax.driver.core.Row;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.uima.collection.CollectionException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Background stage which pulls rows from a scan, filters and decodes them and stages the resulting documents
+ * in a bounded queue. The order of the scan is kept. take() may be called by several consumers at the same time.
+ */
+public class DocumentPrefetcher implements Closeable {
+
+    private static Logger logger = LogManager.getLogger(DocumentPrefetcher.class);
+
+    private static final WikiTextSpanDocument END = new WikiTextSpanDocument(null, null, null, 0, 0, 0, null, null, null, null);
+
+    public interface RowDecoder {
+        WikiTextSpanDocument decode(Row pRow, long pDocumentsRead, long pRelevantDocumentsRead);
+    }
+
+    private final Iterator<Row> rows;
+    private final Predicate<Row> filter;
+    private final RowDecoder decoder;
+    private final BlockingQueue<WikiTextSpanDocument> queue;
+    private final Thread thread;
+    private volatile Throwable failure;
+    private volatile boolean closed = false;
+    private volatile boolean ended = false;
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * @param pRows Rows of the scan
+     * @param pFilter Rows which do not pass the filter are skipped but counted as read
+     * @param pDecoder Decodes an accepted row
+     * @param pQueueDepth Count of documents which may be staged ahead of the consumer
+     */
+    public DocumentPrefetcher(Iterator<Row> pRows, Predicate<Row> pFilter, RowDecoder pDecoder, int pQueueDepth) {
+        rows = pRows;
+        filter = pFilter;
+        decoder = pDecoder;
+        queue = new ArrayBlockingQueue<>(Math.max(1, pQueueDepth));
+        thread = new Thread(this::run, "DocumentPrefetcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        long lDocumentsRead = 0;
+        long lRelevantDocumentsRead = 0;
+        try {
+            while (!closed && rows.hasNext()) {
+                Row lRow = rows.next();
+                lDocumentsRead++;
+                if (filter.test(lRow)) {
+                    lRelevantDocumentsRead++;
+                    WikiTextSpanDocument lDocument = decoder.decode(lRow, lDocumentsRead, lRelevantDocumentsRead);
+                    while (!closed && !queue.offer(lDocument, 100, TimeUnit.MILLISECONDS));
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (Throwable e) {
+            failure = e;
+            logger.error(e.getMessage(), e);
+        }
+        finally {
+            try {
+                while (!closed && !queue.offer(END, 100, TimeUnit.MILLISECONDS));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return The next document in scan order or null if the scan is exhausted
+     */
+    public WikiTextSpanDocument take() throws CollectionException {
+        if (ended) return null;
+        WikiTextSpanDocument lResult;
+        long lStart = System.nanoTime();
+        try {
+            lResult = queue.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CollectionException(e);
+        }
+        finally {
+            waitNanos.addAndGet(System.nanoTime() - lStart);
+        }
+        if (lResult == END) {
+            ended = true;
+            // Consumers which are blocked in take() receive the end as well
+            queue.offer(END);
+            if (failure != null) throw new CollectionException(new IOException("Fetching documents failed: "+failure.getMessage(), failure));
+            return null;
+        }
+        return lResult;
+    }
+
+    /**
+     * @return Total time in nanoseconds the consumers blocked in take() waiting for documents
+     */
+    public long getWaitNanos() {
+        return waitNanos.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        queue.clear();
+    }
+
+}
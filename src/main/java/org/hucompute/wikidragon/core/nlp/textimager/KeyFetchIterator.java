@@ -0,0 +1,72 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.datastax.driver.core.*;
+
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Fetches the rows of a list of documents by key in the order of the list. A window of queries is kept in flight,
+ * so the latency of a single query is hidden as long as the consumer is slower than the cluster.
+ * Documents which have been deleted since the list has been built are skipped.
+ */
+public class KeyFetchIterator implements Iterator<Row> {
+
+    private final Session session;
+    private final PreparedStatement statement;
+    private final String dbname;
+    private final Iterator<String> raws;
+    private final int window;
+    private final Deque<ResultSetFuture> inFlight = new ConcurrentLinkedDeque<>();
+    private volatile boolean closed = false;
+    private Row next;
+
+    /**
+     * @param pStatement Select of one document which binds dbname and raw
+     * @param pRaws Keys of the documents in the order they are returned
+     * @param pWindow Maximal count of queries in flight
+     */
+    public KeyFetchIterator(Session pSession, PreparedStatement pStatement, String pDBName, Iterator<String> pRaws, int pWindow) {
+        session = pSession;
+        statement = pStatement;
+        dbname = pDBName;
+        raws = pRaws;
+        window = Math.max(1, pWindow);
+        fill();
+    }
+
+    private void fill() {
+        while (!closed && (inFlight.size() < window) && raws.hasNext()) {
+            inFlight.addLast(session.executeAsync(statement.bind(dbname, raws.next())));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while ((next == null) && !closed && !inFlight.isEmpty()) {
+            next = inFlight.pollFirst().getUninterruptibly().one();
+            fill();
+        }
+        return next != null;
+    }
+
+    @Override
+    public Row next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        Row lResult = next;
+        next = null;
+        return lResult;
+    }
+
+    /**
+     * Cancels the queries in flight. May be called from another thread than the consumer
+     */
+    public void close() {
+        closed = true;
+        for (ResultSetFuture lFuture:inFlight) lFuture.cancel(true);
+        inFlight.clear();
+    }
+
+}
@@ -0,0 +1,122 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.codahale.metrics.Counter;
+import com.datastax.driver.core.Row;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Claims the documents of a scan (see DocumentLeases) and skips those another worker holds. The claims of a window
+ * of rows are in flight at the same time, so the latency of the lightweight transactions is hidden. Rows which do
+ * not pass the filter are returned without a claim, the order of the scan is kept.
+ */
+public class LeaseClaimIterator implements Iterator<Row> {
+
+    private static Logger logger = LogManager.getLogger(LeaseClaimIterator.class);
+
+    private static class Candidate {
+        private final Row row;
+        private final ListenableFuture<Boolean> claim;
+
+        private Candidate(Row pRow, ListenableFuture<Boolean> pClaim) {
+            row = pRow;
+            claim = pClaim;
+        }
+    }
+
+    private final Iterator<Row> rows;
+    private final Predicate<Row> filter;
+    private final Function<Row, ListenableFuture<Boolean>> claimer;
+    private final int window;
+    private final Counter rejected;
+    private final Deque<Candidate> candidates = new ConcurrentLinkedDeque<>();
+    private volatile boolean closed = false;
+    private Row next;
+
+    /**
+     * @param pRows Rows of the scan
+     * @param pFilter Rows which pass the filter are claimed
+     * @param pClaimer Claims the document of a row
+     * @param pWindow Maximal count of claims in flight
+     * @param pRejected Counts the rows of documents which could not be claimed
+     */
+    public LeaseClaimIterator(Iterator<Row> pRows, Predicate<Row> pFilter, Function<Row, ListenableFuture<Boolean>> pClaimer, int pWindow, Counter pRejected) {
+        rows = pRows;
+        filter = pFilter;
+        claimer = pClaimer;
+        window = Math.max(1, pWindow);
+        rejected = pRejected;
+        fill();
+    }
+
+    private void fill() {
+        while (!closed && (candidates.size() < window) && rows.hasNext()) {
+            Row lRow = rows.next();
+            candidates.addLast(new Candidate(lRow, filter.test(lRow) ? claimer.apply(lRow) : null));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while ((next == null) && !closed && !candidates.isEmpty()) {
+            Candidate lCandidate = candidates.pollFirst();
+            if ((lCandidate.claim == null) || isClaimed(lCandidate)) {
+                next = lCandidate.row;
+            }
+            else {
+                rejected.inc();
+            }
+            fill();
+        }
+        return next != null;
+    }
+
+    private boolean isClaimed(Candidate pCandidate) {
+        try {
+            return pCandidate.claim.get();
+        }
+        catch (ExecutionException e) {
+            // The lease may have been taken anyway, then it expires
+            logger.warn("Claiming "+pCandidate.row.getString(1)+" failed: "+e.getCause().getMessage()+" - Skipping it");
+            return false;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            return false;
+        }
+    }
+
+    @Override
+    public Row next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        Row lResult = next;
+        next = null;
+        return lResult;
+    }
+
+    public Iterator<Row> getRows() {
+        return rows;
+    }
+
+    /**
+     * Cancels the claims in flight. May be called from another thread than the consumer
+     */
+    public void close() {
+        closed = true;
+        for (Candidate lCandidate:candidates) {
+            if (lCandidate.claim != null) lCandidate.claim.cancel(true);
+        }
+        candidates.clear();
+    }
+
+}
@@ -0,0 +1,105 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.impl.Serialization;
+import org.apache.uima.cas.impl.XmiCasDeserializer;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.util.CasCreationUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+
+/**
+ * Worker pool which parses XMI (or loads other payloads) into CASes of its own and turns them into binary CAS blobs (serial form 0).
+ * Since the worker CASes share the type system of the target CAS, loading a blob into the target CAS
+ * is a plain copy of the heaps instead of a SAX parse.
+ */
+public class ParallelXmiDeserializer implements Closeable {
+
+    public interface CasLoader {
+        void load(CAS pCas) throws Exception;
+    }
+
+    private final TypeSystem typeSystem;
+    private final ExecutorService executorService;
+    private final ThreadLocal<CAS> workerCas;
+
+    /**
+     * @param pTypeSystem Type system of the CASes the blobs are loaded into
+     * @param pThreads Count of worker threads
+     */
+    public ParallelXmiDeserializer(TypeSystem pTypeSystem, int pThreads) {
+        typeSystem = pTypeSystem;
+        executorService = Executors.newFixedThreadPool(Math.max(1, pThreads), new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ParallelXmiDeserializer-%d").build());
+        workerCas = ThreadLocal.withInitial(() -> {
+            try {
+                return CasCreationUtils.createCas(typeSystem, null, null, null);
+            }
+            catch (ResourceInitializationException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * @param pXMI UTF-8 encoded XMI
+     * @return Future of the binary CAS blob
+     */
+    public Future<byte[]> submit(ByteBuffer pXMI) {
+        return submit(lCas -> XmiCasDeserializer.deserialize(new ByteBufferInputStream(pXMI), lCas, false));
+    }
+
+    /**
+     * @param pLoader Loads the document into a worker CAS
+     * @return Future of the binary CAS blob
+     */
+    public Future<byte[]> submit(CasLoader pLoader) {
+        return executorService.submit(() -> {
+            CAS lCas = workerCas.get();
+            lCas.reset();
+            try {
+                pLoader.load(lCas);
+                ByteArrayOutputStream lOutput = new ByteArrayOutputStream();
+                Serialization.serializeCAS(lCas, lOutput);
+                return lOutput.toByteArray();
+            }
+            finally {
+                lCas.reset();
+            }
+        });
+    }
+
+    /**
+     * Waits for the blob and loads it into the CAS, which has to use the type system of this deserializer
+     */
+    public void load(Future<byte[]> pBinaryCas, CAS pCas) throws IOException {
+        byte[] lBinaryCas;
+        try {
+            lBinaryCas = pBinaryCas.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Invalid document: "+e.getCause().getMessage(), e.getCause());
+        }
+        Serialization.deserializeCAS(pCas, new ByteArrayInputStream(lBinaryCas));
+    }
+
+    public TypeSystem getTypeSystem() {
+        return typeSystem;
+    }
+
+    @Override
+    public void close() {
+        executorService.shutdownNow();
+    }
+
+}
@@ -0,0 +1,200 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Keys of the unprocessed documents per dbname in the table wikitextspannlp_pending. The keys of a dbname are spread
+ * over BUCKETS partitions by their hash, so a partition stays bounded for large corpora. WikiDragonCassandraWriter
+ * removes a key once it has set processed of the document, WikiDragonCassandraCollectionReader.PARAM_PENDINGQUEUE
+ * reads only the listed documents instead of scanning the whole table.
+ *
+ * Keys of documents which are imported later have to be added by the importer or by running backfill() again.
+ * A listed document which has been processed in the meantime is filtered by the reader, so the table may hold more
+ * keys than necessary, but it must not miss any.
+ */
+public class PendingWorkQueue {
+
+    private static Logger logger = LogManager.getLogger(PendingWorkQueue.class);
+
+    public static final String TABLE = "wikitextspannlp_pending";
+
+    /**
+     * Count of partitions per dbname. Changing it requires the table to be recreated and filled again
+     */
+    public static final int BUCKETS = 256;
+
+    /**
+     * Removed keys are dropped after this grace period. A key which is resurrected by a replica that has missed the
+     * removal only causes a lookup of a processed document, so the period can be far shorter than the default
+     */
+    private static final int GC_GRACE_SECONDS = 3 * 3600;
+
+    public static void createTable(Session pSession) {
+        pSession.execute("create table if not exists "+TABLE+" (dbname text, bucket int, raw text, primary key ((dbname, bucket), raw)) with gc_grace_seconds="+GC_GRACE_SECONDS);
+    }
+
+    public static boolean exists(Session pSession) {
+        return pSession.getCluster().getMetadata().getKeyspace(pSession.getLoggedKeyspace()).getTable(TABLE) != null;
+    }
+
+    /**
+     * @return Bucket of the key. String.hashCode() is specified, so all clients compute the same bucket
+     */
+    public static int getBucket(String pRaw) {
+        return Math.floorMod(pRaw.hashCode(), BUCKETS);
+    }
+
+    /**
+     * @return Insert of a key which binds dbname, bucket and raw
+     */
+    public static PreparedStatement prepareAdd(Session pSession) {
+        PreparedStatement lResult = pSession.prepare("insert into "+TABLE+" (dbname, bucket, raw) values (?, ?, ?)");
+        lResult.setIdempotent(true);
+        return lResult;
+    }
+
+    /**
+     * @return Delete of a key which binds dbname, bucket and raw
+     */
+    public static PreparedStatement prepareRemove(Session pSession) {
+        PreparedStatement lResult = pSession.prepare("delete from "+TABLE+" where dbname=? and bucket=? and raw=?");
+        lResult.setIdempotent(true);
+        return lResult;
+    }
+
+    /**
+     * @return Delete of the key of the document, see prepareRemove
+     */
+    public static BoundStatement bindRemove(PreparedStatement pRemove, String pDBName, String pRaw) {
+        return pRemove.bind(pDBName, getBucket(pRaw), pRaw);
+    }
+
+    /**
+     * @return Keys of the dbname in the buckets of the shard, bucket by bucket. The buckets are queried lazily
+     * @param pFetchSize Count of keys per page, 0 uses the default of the driver
+     */
+    public static Iterator<String> keys(Session pSession, String pDBName, int pShardIndex, int pShardCount, int pFetchSize) {
+        PreparedStatement lStatement = pSession.prepare("select raw from "+TABLE+" where dbname=? and bucket=?");
+        int lFetchSize = pFetchSize > 0 ? pFetchSize : pSession.getCluster().getConfiguration().getQueryOptions().getFetchSize();
+        return new Iterator<String>() {
+            private int bucket = pShardIndex;
+            private Iterator<Row> rows = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!rows.hasNext() && (bucket < BUCKETS)) {
+                    Statement lBucket = lStatement.bind(pDBName, bucket).setFetchSize(lFetchSize);
+                    rows = new AsyncPagingIterator(pSession.execute(lBucket), lFetchSize);
+                    bucket += pShardCount;
+                }
+                return rows.hasNext();
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return rows.next().getString(0);
+            }
+        };
+    }
+
+    /**
+     * @return Rows of the listed documents of the dbname in the buckets of the shard, see keys() and KeyFetchIterator
+     * @param pColumns Comma separated list of the columns of wikitextspannlp to select
+     * @param pWindow Maximal count of documents which are fetched at the same time
+     */
+    public static KeyFetchIterator fetch(Session pSession, String pColumns, String pDBName, int pShardIndex, int pShardCount, int pFetchSize, int pWindow) {
+        Iterator<String> lKeys = keys(pSession, pDBName, pShardIndex, pShardCount, pFetchSize);
+        return new KeyFetchIterator(pSession, pSession.prepare("select "+pColumns+" from wikitextspannlp where dbname=? and raw=?"), pDBName, lKeys, pWindow);
+    }
+
+    /**
+     * Adds the keys of all unprocessed documents of the dbname by a token range scan of wikitextspannlp. Documents
+     * without a processed value count as unprocessed. Existing keys are kept, so it may be run on a filled table
+     * @param pDBName dbname of the documents, null for all
+     * @return Count of added keys
+     */
+    public static long backfill(Session pSession, String pDBName, int pRangeCount, int pConcurrency, int pMaxInFlightWrites) throws IOException, InterruptedException {
+        TokenRangeScanner lScan = new TokenRangeScanner(pSession, pSession.getLoggedKeyspace(), "wikitextspannlp", "dbname,raw,processed", "dbname,raw", null, null, pRangeCount, pConcurrency, 0, 10000);
+        try {
+            return backfill(pSession, lScan, pDBName, pMaxInFlightWrites);
+        }
+        finally {
+            lScan.close();
+        }
+    }
+
+    /**
+     * @param pScan Rows of wikitextspannlp with the columns dbname, raw and processed
+     */
+    static long backfill(Session pSession, Iterator<Row> pScan, String pDBName, int pMaxInFlightWrites) throws IOException, InterruptedException {
+        createTable(pSession);
+        PreparedStatement lAdd = prepareAdd(pSession);
+        AsyncStatementWriter lWriter = new AsyncStatementWriter(pSession, pMaxInFlightWrites, false);
+        long lRead = 0;
+        long lAdded = 0;
+        long lLastTime = System.currentTimeMillis();
+        while (pScan.hasNext()) {
+            Row lRow = pScan.next();
+            lRead++;
+            if (((pDBName == null) || pDBName.equals(lRow.getString(0))) && !lRow.getBool(2)) {
+                lWriter.write(lAdd.bind(lRow.getString(0), getBucket(lRow.getString(1)), lRow.getString(1)));
+                lAdded++;
+            }
+            if (System.currentTimeMillis() - lLastTime >= 60000) {
+                lLastTime = System.currentTimeMillis();
+                lWriter.checkFailures();
+                logger.info("Backfilling "+TABLE+" - Documents Read: "+lRead+", Keys Added: "+lAdded);
+            }
+        }
+        lWriter.flush();
+        logger.info("Backfilled "+TABLE+" - Documents Read: "+lRead+", Keys Added: "+lAdded);
+        return lAdded;
+    }
+
+    /**
+     * Backfills the table of a keyspace. Arguments of the form key=value: contactHosts (comma separated), user,
+     * password, keyspace, dbname (optional, all if omitted), tokenRangeCount, scanConcurrency, maxInFlightWrites
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> lArgs = new LinkedHashMap<>();
+        lArgs.put("contactHosts", null);
+        lArgs.put("user", null);
+        lArgs.put("password", null);
+        lArgs.put("keyspace", null);
+        lArgs.put("dbname", null);
+        lArgs.put("tokenRangeCount", "0");
+        lArgs.put("scanConcurrency", "4");
+        lArgs.put("maxInFlightWrites", "64");
+        for (String lArg:args) {
+            String[] lKeyValue = lArg.split("=", 2);
+            if ((lKeyValue.length != 2) || !lArgs.containsKey(lKeyValue[0])) throw new IllegalArgumentException("Unknown argument: "+lArg+" - Known: "+lArgs.keySet());
+            lArgs.put(lKeyValue[0], lKeyValue[1]);
+        }
+        for (String lKey:new String[]{"contactHosts", "user", "password", "keyspace"}) {
+            if (lArgs.get(lKey) == null) throw new IllegalArgumentException("Missing argument: "+lKey);
+        }
+        CassandraConnectionProvider lConnectionProvider = new CassandraConnectionProvider(lArgs.get("contactHosts").split(","), lArgs.get("user"), lArgs.get("password"));
+        Session lSession = lConnectionProvider.connect(lArgs.get("keyspace"));
+        try {
+            backfill(lSession, lArgs.get("dbname"), Integer.parseInt(lArgs.get("tokenRangeCount")), Integer.parseInt(lArgs.get("scanConcurrency")), Integer.parseInt(lArgs.get("maxInFlightWrites")));
+        }
+        finally {
+            lConnectionProvider.release(lSession);
+        }
+    }
+
+}
@@ -0,0 +1,27 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * ByteArrayOutputStream whose content can be wrapped into a ByteBuffer without copying it, so the
+ * stream can be bound to a statement directly and reused after reset() once the statement has completed.
+ */
+public class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+
+    public ReusableByteArrayOutputStream(int pSize) {
+        super(pSize);
+    }
+
+    /**
+     * @return Buffer backed by the internal array of this stream. It is valid until the next write or reset()
+     */
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+
+    public int capacity() {
+        return buf.length;
+    }
+
+}
@@ -0,0 +1,214 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.Token;
+import com.datastax.driver.core.TokenRange;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mapdb.Atomic;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.*;
+
+/**
+ * Position of a token range scan which is stored in a local MapDB file. For each unwrapped token range of the scan
+ * a low-water mark is kept: the token up to which all delivered documents of the range have been completed, so an
+ * interrupted scan can be resumed by querying (token, end] of each range. Documents are delivered in token order
+ * within a range, but may be completed in any order, e.g. by concurrent consumers.
+ *
+ * commit() stores the positions which have been captured by the previous commit(), so the stored checkpoint trails
+ * one interval behind the completed documents, which leaves time for their asynchronous writes. Documents which were
+ * still in the pipeline when the run died are read again after a restart. Not thread-safe.
+ */
+public class ScanCheckpoint implements Closeable {
+
+    private static Logger logger = LogManager.getLogger(ScanCheckpoint.class);
+
+    private final Metadata metadata;
+    private final DB db;
+    private final Map<String, String> positions;
+    private final Atomic.String identity;
+    private final Atomic.Long documentsRead;
+    private final Atomic.Long relevantDocumentsRead;
+    private final Atomic.Long documentsTotal;
+    private final Atomic.Long relevantDocumentsTotal;
+    private final Atomic.Boolean complete;
+    private final boolean resumed;
+    private final List<TokenRange> ranges = new ArrayList<>();
+    private final TreeMap<Token, Integer> rangeStarts = new TreeMap<>();
+    private final Token[] current;
+    private final List<TreeMap<Token, Boolean>> delivered = new ArrayList<>();
+    private Token[] captured;
+    private long capturedDocumentsRead;
+    private long capturedRelevantDocumentsRead;
+
+    /**
+     * @param pFile MapDB file of the checkpoint
+     * @param pIdentity Description of the scan. A stored checkpoint of a different scan is not resumed
+     * @param pMetadata Metadata of the cluster, used to parse the stored tokens
+     * @param pRanges Unwrapped token ranges of a new scan
+     * @param pResume Resume the stored checkpoint if there is one. Otherwise it is discarded
+     */
+    public ScanCheckpoint(File pFile, String pIdentity, Metadata pMetadata, List<TokenRange> pRanges, boolean pResume) {
+        metadata = pMetadata;
+        db = DBMaker.fileDB(pFile).transactionEnable().closeOnJvmShutdown().make();
+        positions = db.hashMap("positions", Serializer.STRING, Serializer.STRING).createOrOpen();
+        identity = db.atomicString("identity").createOrOpen();
+        documentsRead = db.atomicLong("documentsRead").createOrOpen();
+        relevantDocumentsRead = db.atomicLong("relevantDocumentsRead").createOrOpen();
+        documentsTotal = db.atomicLong("documentsTotal", -1).createOrOpen();
+        relevantDocumentsTotal = db.atomicLong("relevantDocumentsTotal", -1).createOrOpen();
+        complete = db.atomicBoolean("complete").createOrOpen();
+        if (pResume && pIdentity.equals(identity.get()) && !positions.isEmpty()) {
+            resumed = true;
+            for (String lRange:new TreeSet<>(positions.keySet())) {
+                String[] lBounds = lRange.split(",", 2);
+                ranges.add(metadata.newTokenRange(metadata.newToken(lBounds[0]), metadata.newToken(lBounds[1])));
+            }
+            logger.info("Resuming checkpoint "+pFile+" after "+relevantDocumentsRead.get()+" relevant documents");
+        }
+        else {
+            if (pResume) logger.warn("No checkpoint of this scan in "+pFile+" - Starting from the beginning");
+            resumed = false;
+            positions.clear();
+            for (TokenRange lRange:pRanges) {
+                positions.put(getRangeKey(lRange), lRange.getStart().toString());
+                ranges.add(lRange);
+            }
+            identity.set(pIdentity);
+            documentsRead.set(0);
+            relevantDocumentsRead.set(0);
+            documentsTotal.set(-1);
+            relevantDocumentsTotal.set(-1);
+            complete.set(false);
+            db.commit();
+        }
+        for (int i=0; i<ranges.size(); i++) {
+            rangeStarts.put(ranges.get(i).getStart(), i);
+        }
+        current = new Token[ranges.size()];
+        captured = new Token[ranges.size()];
+        for (int i=0; i<ranges.size(); i++) delivered.add(new TreeMap<>());
+    }
+
+    private static String getRangeKey(TokenRange pRange) {
+        return pRange.getStart()+","+pRange.getEnd();
+    }
+
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    public boolean isComplete() {
+        return complete.get();
+    }
+
+    /**
+     * @return Ranges which remain to be scanned, each starting after the stored position
+     */
+    public List<TokenRange> getRemainingRanges() {
+        List<TokenRange> lResult = new ArrayList<>();
+        if (complete.get()) return lResult;
+        for (TokenRange lRange:ranges) {
+            Token lPosition = metadata.newToken(positions.get(getRangeKey(lRange)));
+            boolean lOpenEnd = lRange.getEnd().compareTo(lRange.getStart()) <= 0;
+            if (lOpenEnd || (lPosition.compareTo(lRange.getEnd()) < 0)) {
+                lResult.add(metadata.newTokenRange(lPosition, lRange.getEnd()));
+            }
+        }
+        return lResult;
+    }
+
+    /**
+     * Records the token of a delivered document, which holds back the position of its range until it is completed.
+     * Documents have to be delivered in the order of the scan
+     */
+    public void deliver(Token pToken) {
+        Map.Entry<Token, Integer> lEntry = rangeStarts.lowerEntry(pToken);
+        if (lEntry != null) delivered.get(lEntry.getValue()).put(pToken, Boolean.FALSE);
+    }
+
+    /**
+     * Records the completion of a delivered document and advances the position of its range past all documents
+     * which have been completed without an earlier document still pending
+     */
+    public void complete(Token pToken) {
+        Map.Entry<Token, Integer> lEntry = rangeStarts.lowerEntry(pToken);
+        if (lEntry == null) return;
+        TreeMap<Token, Boolean> lDelivered = delivered.get(lEntry.getValue());
+        if (!lDelivered.containsKey(pToken)) return;
+        lDelivered.put(pToken, Boolean.TRUE);
+        while (!lDelivered.isEmpty() && lDelivered.firstEntry().getValue()) {
+            current[lEntry.getValue()] = lDelivered.pollFirstEntry().getKey();
+        }
+    }
+
+    /**
+     * Stores the positions captured by the previous call and captures the current positions
+     */
+    public void commit(long pDocumentsRead, long pRelevantDocumentsRead) {
+        store(captured, capturedDocumentsRead, capturedRelevantDocumentsRead);
+        captured = current.clone();
+        capturedDocumentsRead = pDocumentsRead;
+        capturedRelevantDocumentsRead = pRelevantDocumentsRead;
+    }
+
+    private void store(Token[] pPositions, long pDocumentsRead, long pRelevantDocumentsRead) {
+        for (int i=0; i<pPositions.length; i++) {
+            if (pPositions[i] != null) positions.put(getRangeKey(ranges.get(i)), pPositions[i].toString());
+        }
+        if (pRelevantDocumentsRead > relevantDocumentsRead.get()) {
+            documentsRead.set(pDocumentsRead);
+            relevantDocumentsRead.set(pRelevantDocumentsRead);
+        }
+        db.commit();
+    }
+
+    /**
+     * Marks the scan as complete. A resumed complete scan delivers no documents
+     */
+    public void markComplete(long pDocumentsRead, long pRelevantDocumentsRead) {
+        documentsRead.set(pDocumentsRead);
+        relevantDocumentsRead.set(pRelevantDocumentsRead);
+        complete.set(true);
+        db.commit();
+    }
+
+    public long getDocumentsRead() {
+        return documentsRead.get();
+    }
+
+    public long getRelevantDocumentsRead() {
+        return relevantDocumentsRead.get();
+    }
+
+    /**
+     * @return Stored exact count of the documents, or -1
+     */
+    public long getDocumentsTotal() {
+        return documentsTotal.get();
+    }
+
+    /**
+     * @return Stored exact count of the relevant documents, or -1
+     */
+    public long getRelevantDocumentsTotal() {
+        return relevantDocumentsTotal.get();
+    }
+
+    public void setTotals(long pDocumentsTotal, long pRelevantDocumentsTotal) {
+        documentsTotal.set(pDocumentsTotal);
+        relevantDocumentsTotal.set(pRelevantDocumentsTotal);
+        db.commit();
+    }
+
+    @Override
+    public void close() {
+        if (!db.isClosed()) db.close();
+    }
+
+}
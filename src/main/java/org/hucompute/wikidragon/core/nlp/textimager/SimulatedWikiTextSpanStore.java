@@ -0,0 +1,325 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.uima.fit.component.initialize.ConfigurationParameterInitializer;
+import org.apache.uima.fit.descriptor.ConfigurationParameter;
+import org.apache.uima.resource.DataResource;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.resource.SharedResourceObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * In-process stand-in of the wikitextspannlp table for load tests without a cluster. It serves the rows of a local
+ * dataset in pages and applies updates asynchronously, each request after a simulated latency and failing with
+ * the configured probability. Failed updates are not applied.
+ *
+ * Stores with the same name share their rows, so a reader and a writer whose resources are created separately
+ * see the same table. The dataset is loaded and the simulation parameters are taken when a name is used first.
+ *
+ * The dataset is a directory of XMI files. The name of a file without .xmi is the raw key of the document and
+ * its size is taken as text length. All documents are unprocessed.
+ *
+ * It is part of the main artifact, so pipelines can be tested against it without a cluster, and is supported as
+ * external resource RES_STORE of WikiDragonCassandraCollectionReader and WikiDragonCassandraWriter. It stands in
+ * for the table, not for the session, so it covers the plain scan and update of whole documents only, see
+ * WikiTextSpanStore.
+ */
+public class SimulatedWikiTextSpanStore implements WikiTextSpanStore, SharedResourceObject {
+
+    private static Logger logger = LogManager.getLogger(SimulatedWikiTextSpanStore.class);
+
+    private static final int TEXTLEN = 2, PROCESSED = 4, XMI = 5, CASBIN = 6;
+
+    private static final String[] COLUMNS = {"dbname", "raw", "textlen", "xmilen", "processed", "xmi", "casbin"};
+
+    public static final String PARAM_NAME = "name";
+    @ConfigurationParameter(name=PARAM_NAME, mandatory=false, defaultValue="default")
+    private String name = "default";
+
+    public static final String PARAM_DBNAME = "dbname";
+    @ConfigurationParameter(name=PARAM_DBNAME, mandatory=false, defaultValue="simulated")
+    private String dbname = "simulated";
+
+    public static final String PARAM_DATASETDIRECTORY = "datasetDirectory";
+    @ConfigurationParameter(name=PARAM_DATASETDIRECTORY, mandatory=false)
+    private String datasetDirectory;
+
+    public static final String PARAM_LATENCYMILLIS = "latencyMillis";
+    @ConfigurationParameter(name=PARAM_LATENCYMILLIS, mandatory=false, defaultValue="1")
+    private int latencyMillis = 1;
+
+    /**
+     * Maximal random latency which is added to latencyMillis
+     */
+    public static final String PARAM_LATENCYJITTERMILLIS = "latencyJitterMillis";
+    @ConfigurationParameter(name=PARAM_LATENCYJITTERMILLIS, mandatory=false, defaultValue="0")
+    private int latencyJitterMillis = 0;
+
+    /**
+     * Count of rows per page of a scan. Each page is one request
+     */
+    public static final String PARAM_PAGESIZE = "pageSize";
+    @ConfigurationParameter(name=PARAM_PAGESIZE, mandatory=false, defaultValue="100")
+    private int pageSize = 100;
+
+    /**
+     * Probability of a request to fail
+     */
+    public static final String PARAM_FAILURERATE = "failureRate";
+    @ConfigurationParameter(name=PARAM_FAILURERATE, mandatory=false, defaultValue="0")
+    private float failureRate = 0;
+
+    private static class Table {
+        private final ConcurrentSkipListMap<String, Object[]> rows = new ConcurrentSkipListMap<>();
+        private final TypeSystemStore typeSystemStore = new TypeSystemStore(null);
+        private final ScheduledExecutorService executorService = Executors.newScheduledThreadPool(4, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("SimulatedWikiTextSpanStore-%d").build());
+        private final Timer readLatency = new Timer();
+        private final Timer writeLatency = new Timer();
+        private final Counter bytesRead = new Counter();
+        private final Counter bytesWritten = new Counter();
+        private final Counter failures = new Counter();
+        private int latencyMillis;
+        private int latencyJitterMillis;
+        private int pageSize;
+        private float failureRate;
+    }
+
+    private static final Map<String, Table> tables = new HashMap<>();
+
+    private Table table;
+
+    @Override
+    public void load(DataResource aData) throws ResourceInitializationException {
+        ConfigurationParameterInitializer.initialize(this, aData);
+        synchronized (tables) {
+            table = tables.get(name);
+            if (table == null) {
+                Table lTable = new Table();
+                lTable.latencyMillis = latencyMillis;
+                lTable.latencyJitterMillis = latencyJitterMillis;
+                lTable.pageSize = Math.max(1, pageSize);
+                lTable.failureRate = failureRate;
+                if (datasetDirectory != null) {
+                    try {
+                        loadDataset(lTable, new File(datasetDirectory));
+                    }
+                    catch (IOException e) {
+                        throw new ResourceInitializationException(e);
+                    }
+                }
+                tables.put(name, lTable);
+                table = lTable;
+            }
+        }
+    }
+
+    private void loadDataset(Table pTable, File pDirectory) throws IOException {
+        File[] lFiles = pDirectory.listFiles((pDir, pName) -> pName.endsWith(".xmi"));
+        if (lFiles == null) throw new IOException("Not a directory: "+pDirectory);
+        long lBytes = 0;
+        for (File lFile:lFiles) {
+            byte[] lXMI = Files.readAllBytes(lFile.toPath());
+            String lRaw = lFile.getName().substring(0, lFile.getName().length() - 4);
+            pTable.rows.put(getKey(dbname, lRaw), new Object[]{dbname, lRaw, lXMI.length, lXMI.length, false, ByteBuffer.wrap(lXMI), null});
+            lBytes += lXMI.length;
+        }
+        logger.info("Loaded "+lFiles.length+" documents with "+lBytes+" bytes into simulated store "+name);
+    }
+
+    /**
+     * @return Store of the table with the name, or null if no store of this name has been loaded
+     */
+    public static SimulatedWikiTextSpanStore get(String pName) {
+        synchronized (tables) {
+            Table lTable = tables.get(pName);
+            if (lTable == null) return null;
+            SimulatedWikiTextSpanStore lResult = new SimulatedWikiTextSpanStore();
+            lResult.name = pName;
+            lResult.table = lTable;
+            return lResult;
+        }
+    }
+
+    /**
+     * Discards the table with the name
+     */
+    public static void drop(String pName) {
+        synchronized (tables) {
+            Table lTable = tables.remove(pName);
+            if (lTable != null) lTable.executorService.shutdownNow();
+        }
+    }
+
+    private static String getKey(String pDBName, String pRaw) {
+        return pDBName+"\u0000"+pRaw;
+    }
+
+    private long nextLatencyMillis() {
+        return table.latencyMillis + (table.latencyJitterMillis > 0 ? ThreadLocalRandom.current().nextInt(table.latencyJitterMillis + 1) : 0);
+    }
+
+    private boolean nextFailure() {
+        return (table.failureRate > 0) && (ThreadLocalRandom.current().nextFloat() < table.failureRate);
+    }
+
+    @Override
+    public Iterator<Row> scan() {
+        Iterator<Object[]> lRows = table.rows.values().iterator();
+        return new Iterator<Row>() {
+            private int remainingInPage = 0;
+
+            @Override
+            public boolean hasNext() {
+                return lRows.hasNext();
+            }
+
+            @Override
+            public Row next() {
+                if (remainingInPage == 0) {
+                    fetchPage();
+                    remainingInPage = table.pageSize;
+                }
+                remainingInPage--;
+                Object[] lValues = lRows.next();
+                table.bytesRead.inc(getLength(lValues[XMI]) + getLength(lValues[CASBIN]));
+                return createRow(lValues);
+            }
+        };
+    }
+
+    private void fetchPage() {
+        Timer.Context lContext = table.readLatency.time();
+        try {
+            Thread.sleep(nextLatencyMillis());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DriverException("Interrupted while fetching a page");
+        }
+        finally {
+            lContext.stop();
+        }
+        if (nextFailure()) {
+            table.failures.inc();
+            throw new DriverException("Simulated failure of a page request");
+        }
+    }
+
+    private static int getLength(Object pPayload) {
+        return pPayload != null ? ((ByteBuffer)pPayload).remaining() : 0;
+    }
+
+    /**
+     * @return Row of the values which supports the getters by index and by column name the reader uses
+     */
+    private static Row createRow(Object[] pValues) {
+        return (Row)Proxy.newProxyInstance(Row.class.getClassLoader(), new Class<?>[]{Row.class}, (pProxy, pMethod, pArgs) -> {
+            if (pMethod.getDeclaringClass() == Object.class) {
+                switch (pMethod.getName()) {
+                    case "equals": return pProxy == pArgs[0];
+                    case "hashCode": return System.identityHashCode(pProxy);
+                    default: return "Row"+Arrays.toString(pValues);
+                }
+            }
+            if ((pArgs == null) || (pArgs.length != 1)) throw new UnsupportedOperationException(pMethod.getName());
+            int lIndex = pArgs[0] instanceof Integer ? (Integer)pArgs[0] : Arrays.asList(COLUMNS).indexOf(pArgs[0]);
+            if (lIndex < 0) throw new IllegalArgumentException(pArgs[0]+" is not a column");
+            Object lValue = pValues[lIndex];
+            switch (pMethod.getName()) {
+                case "isNull": return lValue == null;
+                case "getString": return (String)lValue;
+                case "getInt": return lValue != null ? (Integer)lValue : 0;
+                case "getBool": return lValue != null ? (Boolean)lValue : false;
+                case "getBytes":
+                case "getBytesUnsafe": return lValue != null ? ((ByteBuffer)lValue).duplicate() : null;
+                default: throw new UnsupportedOperationException(pMethod.getName());
+            }
+        });
+    }
+
+    @Override
+    public long size() {
+        return table.rows.size();
+    }
+
+    @Override
+    public ListenableFuture<?> update(String pDBName, String pRaw, ByteBuffer pPayload, boolean pBinary) {
+        SettableFuture<Void> lResult = SettableFuture.create();
+        Timer.Context lContext = table.writeLatency.time();
+        table.executorService.schedule(() -> {
+            lContext.stop();
+            if (nextFailure()) {
+                table.failures.inc();
+                lResult.setException(new DriverException("Simulated failure of an update"));
+                return;
+            }
+            ByteBuffer lPayload = ByteBuffer.allocate(pPayload.remaining());
+            lPayload.put(pPayload.duplicate()).flip();
+            table.rows.compute(getKey(pDBName, pRaw), (pKey, pValues) -> {
+                int lTextLength = pValues != null ? (Integer)pValues[TEXTLEN] : 0;
+                return new Object[]{pDBName, pRaw, lTextLength, lPayload.remaining(), true, pBinary ? null : lPayload, pBinary ? lPayload : null};
+            });
+            table.bytesWritten.inc(lPayload.remaining());
+            lResult.set(null);
+        }, nextLatencyMillis(), TimeUnit.MILLISECONDS);
+        return lResult;
+    }
+
+    @Override
+    public TypeSystemStore getTypeSystemStore() {
+        return table.typeSystemStore;
+    }
+
+    /**
+     * @return Latencies of the page requests of scans
+     */
+    public Timer getReadLatency() {
+        return table.readLatency;
+    }
+
+    /**
+     * @return Latencies of the updates
+     */
+    public Timer getWriteLatency() {
+        return table.writeLatency;
+    }
+
+    public long getBytesRead() {
+        return table.bytesRead.getCount();
+    }
+
+    public long getBytesWritten() {
+        return table.bytesWritten.getCount();
+    }
+
+    public long getFailures() {
+        return table.failures.getCount();
+    }
+
+    /**
+     * @return Count of documents which are marked as processed
+     */
+    public long getProcessedCount() {
+        long lResult = 0;
+        for (Object[] lValues:table.rows.values()) {
+            if (Boolean.TRUE.equals(lValues[PROCESSED])) lResult++;
+        }
+        return lResult;
+    }
+
+}
@@ -0,0 +1,294 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.datastax.driver.core.*;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scans a table by splitting the token ring into ranges which are queried concurrently, each on one of its replicas.
+ * The rows of all ranges are merged into a single iterator. There is no guarantee about the order of the rows.
+ * A range which fails is resumed after its last queued row on another replica, its last attempt is left to the load
+ * balancing policy.
+ */
+public class TokenRangeScanner implements Iterator<Row>, Closeable {
+
+    private static Logger logger = LogManager.getLogger(TokenRangeScanner.class);
+
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
+    /**
+     * Count of attempts to scan a range before the scan fails
+     */
+    static final int RANGE_ATTEMPTS = 3;
+
+    private final Session session;
+    private final Metadata metadata;
+    private final String keyspace;
+    private final int fetchSize;
+    private final Object[] values;
+    private final PreparedStatement rangeStatement;
+    private final PreparedStatement openEndStatement;
+    private final PreparedStatement resumedRangeStatement;
+    private final PreparedStatement resumedOpenEndStatement;
+    private final BlockingQueue<Row> queue;
+    private final ExecutorService executorService;
+    private final AtomicInteger pendingRanges;
+    private volatile Throwable failure;
+    private volatile boolean closed = false;
+    private Row next;
+
+    /**
+     * @param pSession Session to use. Its keyspace has to be set already
+     * @param pKeyspace Keyspace of the table, used to determine the replicas of each range
+     * @param pTable Table to scan
+     * @param pColumns Comma separated list of the columns to select. The token of the partition key is appended if it
+     *                 is not selected already
+     * @param pPartitionKey Comma separated list of the partition key columns of the table
+     * @param pRestriction Additional restriction which is appended to the token restriction, may be null
+     * @param pValues Values of the bind markers in pRestriction
+     * @param pRangeCount Minimal count of ranges to split the ring into. 0 uses the ranges of the ring as they are
+     * @param pConcurrency Count of ranges which are queried at the same time
+     * @param pFetchSize Count of rows per page, 0 uses the default of the driver
+     * @param pQueueCapacity Count of rows which may be buffered before the queries are throttled
+     */
+    public TokenRangeScanner(Session pSession, String pKeyspace, String pTable, String pColumns, String pPartitionKey, String pRestriction, Object[] pValues, int pRangeCount, int pConcurrency, int pFetchSize, int pQueueCapacity) {
+        this(pSession, pKeyspace, pTable, pColumns, pPartitionKey, pRestriction, pValues, splitRing(pSession.getCluster().getMetadata().getTokenRanges(), pRangeCount), pConcurrency, pFetchSize, pQueueCapacity);
+    }
+
+    /**
+     * @param pRanges Unwrapped token ranges to scan
+     */
+    public TokenRangeScanner(Session pSession, String pKeyspace, String pTable, String pColumns, String pPartitionKey, String pRestriction, Object[] pValues, List<TokenRange> pRanges, int pConcurrency, int pFetchSize, int pQueueCapacity) {
+        this(pSession, pSession.getCluster().getMetadata(), pKeyspace, pTable, pColumns, pPartitionKey, pRestriction, pValues, pRanges, pConcurrency, pFetchSize, pQueueCapacity);
+    }
+
+    /**
+     * @param pMetadata Metadata of the cluster, used to determine the replicas of each range
+     * @param pFetchSize Count of rows per page, has to be set
+     */
+    TokenRangeScanner(Session pSession, Metadata pMetadata, String pKeyspace, String pTable, String pColumns, String pPartitionKey, String pRestriction, Object[] pValues, List<TokenRange> pRanges, int pConcurrency, int pFetchSize, int pQueueCapacity) {
+        session = pSession;
+        metadata = pMetadata;
+        keyspace = pKeyspace;
+        fetchSize = pFetchSize > 0 ? pFetchSize : session.getCluster().getConfiguration().getQueryOptions().getFetchSize();
+        values = pValues;
+        queue = new LinkedBlockingQueue<>(Math.max(1, pQueueCapacity));
+        List<TokenRange> lRanges = pRanges;
+        logger.info("Scanning "+pTable+" in "+lRanges.size()+" token ranges with a concurrency of "+pConcurrency);
+        // The token of each row is the position a failed range is resumed at
+        String lToken = "token("+pPartitionKey+")";
+        String lColumns = pColumns.replace(" ", "").contains(lToken) ? pColumns : pColumns+","+lToken;
+        String lRestriction = pRestriction != null ? " and "+pRestriction : "";
+        String lSelect = "select "+lColumns+" from "+pTable+" where "+lToken;
+        rangeStatement = session.prepare(lSelect+" > ? and "+lToken+" <= ?"+lRestriction);
+        openEndStatement = session.prepare(lSelect+" > ?"+lRestriction);
+        resumedRangeStatement = session.prepare(lSelect+" >= ? and "+lToken+" <= ?"+lRestriction);
+        resumedOpenEndStatement = session.prepare(lSelect+" >= ?"+lRestriction);
+        pendingRanges = new AtomicInteger(lRanges.size());
+        executorService = Executors.newFixedThreadPool(Math.max(1, pConcurrency), new ThreadFactoryBuilder().setDaemon(true).setNameFormat("TokenRangeScanner-%d").build());
+        int lIndex = 0;
+        for (TokenRange lRange:lRanges) {
+            int lRangeIndex = lIndex++;
+            executorService.submit(() -> scanRange(lRange, lRangeIndex));
+        }
+        executorService.shutdown();
+    }
+
+    /**
+     * @param pResumeToken Token of the partition the range is resumed at, null to scan the whole range
+     */
+    private BoundStatement bindRange(TokenRange pRange, Token pResumeToken) {
+        BoundStatement lStatement;
+        Token lStart = pResumeToken != null ? pResumeToken : pRange.getStart();
+        if (pRange.getEnd().compareTo(pRange.getStart()) <= 0) {
+            // Unwrapped range (start, minToken]: Everything after start
+            lStatement = (pResumeToken != null ? resumedOpenEndStatement : openEndStatement).bind().setToken(0, lStart);
+            bindValues(lStatement, 1, values);
+        }
+        else {
+            lStatement = (pResumeToken != null ? resumedRangeStatement : rangeStatement).bind().setToken(0, lStart).setToken(1, pRange.getEnd());
+            bindValues(lStatement, 2, values);
+        }
+        lStatement.setFetchSize(fetchSize);
+        return lStatement;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void bindValues(BoundStatement pStatement, int pOffset, Object[] pValues) {
+        if (pValues != null) {
+            for (int i=0; i<pValues.length; i++) {
+                pStatement.set(pOffset+i, pValues[i], (Class<Object>)pValues[i].getClass());
+            }
+        }
+    }
+
+    /**
+     * Splits the ranges of the ring into at least pRangeCount unwrapped ranges
+     */
+    public static List<TokenRange> splitRing(Set<TokenRange> pRingRanges, int pRangeCount) {
+        int lSplits = 1;
+        if ((pRangeCount > pRingRanges.size()) && (pRingRanges.size() > 0)) {
+            lSplits = (pRangeCount + pRingRanges.size() - 1) / pRingRanges.size();
+        }
+        List<TokenRange> lResult = new ArrayList<>();
+        for (TokenRange lRingRange:pRingRanges) {
+            for (TokenRange lSplit:lSplits > 1 ? lRingRange.splitEvenly(lSplits) : Collections.singletonList(lRingRange)) {
+                lResult.addAll(lSplit.unwrap());
+            }
+        }
+        return lResult;
+    }
+
+    /**
+     * Splits the ring into at least pRangeCount unwrapped ranges and returns the share of shard pShardIndex of pShardCount.
+     * With the Murmur3Partitioner the ring is cut into pShardCount equal token intervals, independent of the topology.
+     * Otherwise the ranges, sorted by their start, are dealt round-robin to the shards.
+     */
+    public static List<TokenRange> getShardRanges(Metadata pMetadata, int pRangeCount, int pShardIndex, int pShardCount) {
+        List<TokenRange> lRanges = splitRing(pMetadata.getTokenRanges(), pRangeCount);
+        if (pShardCount <= 1) return lRanges;
+        List<TokenRange> lResult = new ArrayList<>();
+        if (!lRanges.isEmpty() && (lRanges.get(0).getStart().getValue() instanceof Long)) {
+            BigInteger lRingSize = BigInteger.ONE.shiftLeft(64);
+            BigInteger lMin = BigInteger.valueOf(Long.MIN_VALUE);
+            long lShardStart = lMin.add(lRingSize.multiply(BigInteger.valueOf(pShardIndex)).divide(BigInteger.valueOf(pShardCount))).longValue();
+            long lShardEnd = pShardIndex == pShardCount-1 ? Long.MAX_VALUE : lMin.add(lRingSize.multiply(BigInteger.valueOf(pShardIndex+1)).divide(BigInteger.valueOf(pShardCount))).longValue();
+            Token lMinToken = pMetadata.newToken(Long.toString(Long.MIN_VALUE));
+            for (TokenRange lRange:lRanges) {
+                long lStart = (Long)lRange.getStart().getValue();
+                long lEnd = lRange.getEnd().compareTo(lRange.getStart()) <= 0 ? Long.MAX_VALUE : (Long)lRange.getEnd().getValue();
+                long lIntersectionStart = Math.max(lStart, lShardStart);
+                long lIntersectionEnd = Math.min(lEnd, lShardEnd);
+                if (lIntersectionStart < lIntersectionEnd) {
+                    Token lEndToken = lIntersectionEnd == Long.MAX_VALUE ? lMinToken : pMetadata.newToken(Long.toString(lIntersectionEnd));
+                    lResult.add(pMetadata.newTokenRange(pMetadata.newToken(Long.toString(lIntersectionStart)), lEndToken));
+                }
+            }
+        }
+        else {
+            List<TokenRange> lSorted = new ArrayList<>(lRanges);
+            Collections.sort(lSorted);
+            for (int i=pShardIndex; i<lSorted.size(); i+=pShardCount) {
+                lResult.add(lSorted.get(i));
+            }
+        }
+        return lResult;
+    }
+
+    /**
+     * @return Fraction of the ring which is covered by the unwrapped range, or -1 if the partitioner is not supported
+     */
+    public static double getRingFraction(TokenRange pRange) {
+        if (!(pRange.getStart().getValue() instanceof Long)) return -1;
+        double lStart = (Long)pRange.getStart().getValue();
+        double lEnd = pRange.getEnd().compareTo(pRange.getStart()) <= 0 ? Long.MAX_VALUE : (Long)pRange.getEnd().getValue();
+        return (lEnd - lStart) / Math.pow(2, 64);
+    }
+
+    /**
+     * @param pExcluded Replicas the range has failed on
+     * @return Replica which is up and has not failed, or null to leave the choice to the load balancing policy
+     */
+    static Host selectReplica(Set<Host> pReplicas, Set<Host> pExcluded, int pIndex) {
+        List<Host> lUpReplicas = new ArrayList<>();
+        for (Host lHost:pReplicas) {
+            if (lHost.isUp() && !pExcluded.contains(lHost)) lUpReplicas.add(lHost);
+        }
+        return lUpReplicas.isEmpty() ? null : lUpReplicas.get(pIndex % lUpReplicas.size());
+    }
+
+    private void scanRange(TokenRange pRange, int pIndex) {
+        // Partition of the last queued row and the count of its queued rows, a failed range is resumed at it
+        Token lPartition = null;
+        int lPartitionRows = 0;
+        Set<Host> lFailedReplicas = new HashSet<>();
+        try {
+            for (int lAttempt=1; ; lAttempt++) {
+                // The replica is chosen when the range starts, so it reflects the current state of the hosts
+                Host lReplica = lAttempt < RANGE_ATTEMPTS ? selectReplica(metadata.getReplicas(keyspace, pRange), lFailedReplicas, pIndex) : null;
+                BoundStatement lStatement = bindRange(pRange, lPartition);
+                if (lReplica != null) lStatement.setHost(lReplica);
+                try {
+                    int lSkip = lPartitionRows;
+                    Iterator<Row> lRows = new AsyncPagingIterator(session.execute(lStatement), fetchSize);
+                    while (lRows.hasNext()) {
+                        Row lRow = lRows.next();
+                        Token lToken = lRow.getPartitionKeyToken();
+                        if (!lToken.equals(lPartition)) {
+                            lPartition = lToken;
+                            lPartitionRows = 0;
+                            lSkip = 0;
+                        }
+                        else if (lSkip > 0) {
+                            // Queued before the range has been resumed
+                            lSkip--;
+                            continue;
+                        }
+                        while (!queue.offer(lRow, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                            if (closed) return;
+                        }
+                        lPartitionRows++;
+                    }
+                    return;
+                }
+                catch (DriverException e) {
+                    if (closed || (lAttempt >= RANGE_ATTEMPTS)) throw e;
+                    if (lReplica != null) lFailedReplicas.add(lReplica);
+                    logger.warn("Scan of token range "+pRange+" failed on "+(lReplica != null ? lReplica : "the coordinator")+": "+e.getMessage()+" - Resuming at "+(lPartition != null ? lPartition : pRange.getStart()));
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (Throwable e) {
+            if (failure == null) failure = e;
+            logger.error(e.getMessage(), e);
+        }
+        finally {
+            pendingRanges.decrementAndGet();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while ((next == null) && !closed) {
+                if (failure != null) {
+                    throw new IllegalStateException("Token range scan failed: "+failure.getMessage(), failure);
+                }
+                boolean lDone = pendingRanges.get() == 0;
+                next = queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if ((next == null) && lDone) break;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return next != null;
+    }
+
+    @Override
+    public Row next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        Row lResult = next;
+        next = null;
+        return lResult;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        executorService.shutdownNow();
+        queue.clear();
+    }
+
+}
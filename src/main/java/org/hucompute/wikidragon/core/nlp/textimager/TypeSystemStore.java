@@ -0,0 +1,84 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.uima.cas.TypeSystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores the type systems binary CASes have been serialized with in the table wikitextspannlp_typesystems,
+ * keyed by their hash, and caches them in both directions.
+ */
+public class TypeSystemStore {
+
+    private static Logger logger = LogManager.getLogger(TypeSystemStore.class);
+
+    public static final String TABLE = "wikitextspannlp_typesystems";
+
+    private final Session session;
+    private final Map<TypeSystem, byte[]> hashes = new ConcurrentHashMap<>();
+    private final Map<ByteBuffer, TypeSystem> typeSystems = new ConcurrentHashMap<>();
+    private PreparedStatement insertStatement;
+    private PreparedStatement selectStatement;
+
+    /**
+     * @param pSession Session whose keyspace has been set already, null to keep the type systems in memory only
+     */
+    public TypeSystemStore(Session pSession) {
+        session = pSession;
+    }
+
+    public static void createTable(Session pSession) {
+        pSession.execute("create table if not exists "+TABLE+" (hash blob primary key, typesystem blob)");
+    }
+
+    /**
+     * @return Hash of the type system, which is stored if it is not known yet
+     */
+    public byte[] register(TypeSystem pTypeSystem) throws IOException {
+        byte[] lHash = hashes.get(pTypeSystem);
+        if (lHash == null) {
+            byte[] lSerialized = BinaryCasCodec.serializeTypeSystem(pTypeSystem);
+            lHash = BinaryCasCodec.hashTypeSystem(lSerialized);
+            if (session != null) {
+                if (insertStatement == null) {
+                    insertStatement = session.prepare("insert into "+TABLE+" (hash, typesystem) values (?, ?) if not exists");
+                }
+                session.execute(insertStatement.bind(ByteBuffer.wrap(lHash), ByteBuffer.wrap(lSerialized)));
+            }
+            hashes.put(pTypeSystem, lHash);
+            typeSystems.put(ByteBuffer.wrap(lHash), pTypeSystem);
+        }
+        return lHash;
+    }
+
+    public TypeSystem get(byte[] pHash) throws IOException {
+        ByteBuffer lKey = ByteBuffer.wrap(pHash);
+        TypeSystem lResult = typeSystems.get(lKey);
+        if (lResult == null) {
+            if (session == null) throw new IOException("Unknown type system of binary CAS");
+            synchronized (this) {
+                if (selectStatement == null) {
+                    selectStatement = session.prepare("select typesystem from "+TABLE+" where hash=?");
+                }
+            }
+            Row lRow = session.execute(selectStatement.bind(lKey)).one();
+            if (lRow == null) throw new IOException("Unknown type system of binary CAS");
+            ByteBuffer lSerialized = lRow.getBytes(0);
+            byte[] lBytes = new byte[lSerialized.remaining()];
+            lSerialized.get(lBytes);
+            lResult = BinaryCasCodec.deserializeTypeSystem(lBytes);
+            typeSystems.put(lKey, lResult);
+            logger.info("Loaded type system of binary CASes with "+lBytes.length+" bytes");
+        }
+        return lResult;
+    }
+
+}
@@ -1,6 +1,9 @@
 package org.hucompute.wikidragon.core.nlp.textimager;
 
+import com.codahale.metrics.*;
+import com.codahale.metrics.Timer;
 import com.datastax.driver.core.*;
+import com.datastax.driver.core.exceptions.DriverException;
 import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -8,16 +11,22 @@ import org.apache.uima.UimaContext;
 import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.CASException;
 import org.apache.uima.cas.impl.XmiCasDeserializer;
+import org.apache.uima.cas.impl.XmiSerializationSharedData;
 import org.apache.uima.collection.CollectionException;
 import org.apache.uima.fit.component.CasCollectionReader_ImplBase;
 import org.apache.uima.fit.descriptor.ConfigurationParameter;
+import org.apache.uima.fit.descriptor.ExternalResource;
 import org.apache.uima.fit.util.JCasUtil;
 import org.apache.uima.resource.ResourceInitializationException;
 import org.apache.uima.util.Progress;
 import org.xml.sax.SAXException;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * WikiDragonCassandraCollectionReader
@@ -26,8 +35,57 @@ public class WikiDragonCassandraCollectionReader extends CasCollectionReader_Imp
 
     private static Logger logger = LogManager.getLogger(WikiDragonCassandraCollectionReader.class);
 
+    /**
+     * Documents without a processed value count as unprocessed. FilterMode.SERVER, INDEX and VIEW cannot select them
+     * by their processing state, so they only read them with ANY
+     */
     public enum ProcessingState {PROCESSED, UNPROCESSED, ANY};
 
+    public enum ScanMode {SEQUENTIAL, TOKENRANGES};
+
+    /**
+     * EXACT: Count the relevant documents in a full pass before the first document is delivered.
+     * ESTIMATE: Estimate the count of relevant documents from a sample of the token ring.
+     * BACKGROUND: Start with the estimate and compute the exact count in a background thread while documents are delivered.
+     */
+    public enum TotalMode {EXACT, ESTIMATE, BACKGROUND};
+
+    /**
+     * CLIENT: Filter rows by dbname, processing state and text length after they have been transferred.
+     * SERVER: Restrict the queries by dbname, processing state and text length using ALLOW FILTERING (Cassandra 3.10+).
+     * INDEX: Like SERVER, backed by a secondary index on dbname.
+     * VIEW: Query the keys of the materialized view wikitextspannlp_keys_by_state, which is partitioned by (dbname, processed)
+     * and holds no payloads. The documents are fetched from wikitextspannlp by key.
+     */
+    public enum FilterMode {CLIENT, SERVER, INDEX, VIEW};
+
+    /**
+     * SCAN: Deliver the documents in the order of the scan.
+     * LARGEST_FIRST, SMALLEST_FIRST: Collect keys and xmilen of the relevant documents in a pass without payloads,
+     * then fetch the documents by key in the order of their size. Largest first keeps giant documents from
+     * stalling the end of a run.
+     */
+    public enum SizeOrder {SCAN, LARGEST_FIRST, SMALLEST_FIRST};
+
+    /**
+     * Handling of documents whose xmilen exceeds largeDocumentThreshold.
+     * INCLUDE: Deliver them like other documents.
+     * SKIP: Treat them as not relevant.
+     * LAST: Deliver them after all other documents, which requires the pass without payloads of SizeOrder.
+     */
+    public enum LargeDocuments {INCLUDE, SKIP, LAST};
+
+    private static final int ESTIMATE_RING_SPLITS = 1024;
+
+    private static final String FILTER_INDEX = "wikitextspannlp_dbname_idx";
+
+    private static final String FILTER_VIEW = "wikitextspannlp_keys_by_state";
+
+    /**
+     * Columns of FILTER_VIEW, scans which select only these do not fetch the documents
+     */
+    private static final List<String> FILTER_VIEW_COLUMNS = Arrays.asList("dbname", "raw", "textlen", "xmilen", "processed");
+
     public static final String PARAM_KEYSPACE = "keyspace";
     @ConfigurationParameter(name=PARAM_KEYSPACE, mandatory=true)
     private String keyspace;
@@ -37,17 +95,31 @@ public class WikiDragonCassandraCollectionReader extends CasCollectionReader_Imp
     private String dbname;
     
     public static final String PARAM_USER = "user";
-    @ConfigurationParameter(name=PARAM_USER, mandatory=true)
+    @ConfigurationParameter(name=PARAM_USER, mandatory=false)
     private String user;
     
     public static final String PARAM_PASSWORD = "password";
-    @ConfigurationParameter(name=PARAM_PASSWORD, mandatory=true)
+    @ConfigurationParameter(name=PARAM_PASSWORD, mandatory=false)
     private String password;
 
     public static final String PARAM_CONTACTHOSTS = "contactHosts";
-    @ConfigurationParameter(name=PARAM_CONTACTHOSTS, mandatory=true)
+    @ConfigurationParameter(name=PARAM_CONTACTHOSTS, mandatory=false)
     private String[] contactHosts;
 
+    /**
+     * Shared connection. If it is not bound, contactHosts, user and password are mandatory
+     */
+    public static final String RES_CONNECTION = "connection";
+    @ExternalResource(key=RES_CONNECTION, mandatory=false)
+    private CassandraConnectionProvider connectionProvider;
+
+    /**
+     * Store which is read instead of a Cassandra connection, e.g. SimulatedWikiTextSpanStore
+     */
+    public static final String RES_STORE = "store";
+    @ExternalResource(key=RES_STORE, mandatory=false)
+    private WikiTextSpanStore store;
+
     public static final String PARAM_PROCESSINGSTATE = "processingState";
     @ConfigurationParameter(name=PARAM_PROCESSINGSTATE, mandatory=true)
     private ProcessingState processingState;
@@ -56,18 +128,319 @@ public class WikiDragonCassandraCollectionReader extends CasCollectionReader_Imp
     @ConfigurationParameter(name=PARAM_SKIPZEROLENGTH, mandatory=true)
     private boolean skipZeroLength;
 
-    private ResultSet resultSet;
-    private String[] next = null;
-    private String language;
+    public static final String PARAM_SCANMODE = "scanMode";
+    @ConfigurationParameter(name=PARAM_SCANMODE, mandatory=false, defaultValue="SEQUENTIAL")
+    private ScanMode scanMode;
+
+    /**
+     * Minimal count of token ranges the ring is split into in ScanMode.TOKENRANGES. 0 uses the ranges of the ring as they are.
+     */
+    public static final String PARAM_TOKENRANGECOUNT = "tokenRangeCount";
+    @ConfigurationParameter(name=PARAM_TOKENRANGECOUNT, mandatory=false, defaultValue="0")
+    private int tokenRangeCount;
+
+    /**
+     * Count of token ranges which are queried at the same time in ScanMode.TOKENRANGES
+     */
+    public static final String PARAM_SCANCONCURRENCY = "scanConcurrency";
+    @ConfigurationParameter(name=PARAM_SCANCONCURRENCY, mandatory=false, defaultValue="4")
+    private int scanConcurrency;
+
+    public static final String PARAM_TOTALMODE = "totalMode";
+    @ConfigurationParameter(name=PARAM_TOTALMODE, mandatory=false, defaultValue="EXACT")
+    private TotalMode totalMode;
+
+    /**
+     * Count of token ranges (each 1/1024 of the ring) which are counted to estimate the total in TotalMode.ESTIMATE and TotalMode.BACKGROUND
+     */
+    public static final String PARAM_ESTIMATESAMPLES = "estimateSamples";
+    @ConfigurationParameter(name=PARAM_ESTIMATESAMPLES, mandatory=false, defaultValue="16")
+    private int estimateSamples;
+
+    public static final String PARAM_FILTERMODE = "filterMode";
+    @ConfigurationParameter(name=PARAM_FILTERMODE, mandatory=false, defaultValue="CLIENT")
+    private FilterMode filterMode;
+
+    /**
+     * Create the secondary index or materialized view of FilterMode.INDEX or FilterMode.VIEW if it does not exist.
+     * Otherwise the reader falls back to FilterMode.SERVER.
+     */
+    public static final String PARAM_CREATEFILTERSCHEMA = "createFilterSchema";
+    @ConfigurationParameter(name=PARAM_CREATEFILTERSCHEMA, mandatory=false, defaultValue="false")
+    private boolean createFilterSchema;
+
+    /**
+     * ProcessingState.UNPROCESSED: Read only the documents listed in the pending work queue wikitextspannlp_pending
+     * (see PendingWorkQueue) by key instead of scanning the whole table. Listed documents are filtered on the client,
+     * so documents which have been processed since they were listed are skipped
+     */
+    public static final String PARAM_PENDINGQUEUE = "pendingQueue";
+    @ConfigurationParameter(name=PARAM_PENDINGQUEUE, mandatory=false, defaultValue="false")
+    private boolean pendingQueue;
+
+    /**
+     * Count of rows per page. 0 uses the default of the driver. The next page is requested in the background when half of a page is consumed.
+     */
+    public static final String PARAM_FETCHSIZE = "fetchSize";
+    @ConfigurationParameter(name=PARAM_FETCHSIZE, mandatory=false, defaultValue="0")
+    private int fetchSize;
+
+    public static final String PARAM_SIZEORDER = "sizeOrder";
+    @ConfigurationParameter(name=PARAM_SIZEORDER, mandatory=false, defaultValue="SCAN")
+    private SizeOrder sizeOrder;
+
+    /**
+     * Size in bytes (xmilen) above which documents are handled by largeDocuments. 0 disables it
+     */
+    public static final String PARAM_LARGEDOCUMENTTHRESHOLD = "largeDocumentThreshold";
+    @ConfigurationParameter(name=PARAM_LARGEDOCUMENTTHRESHOLD, mandatory=false, defaultValue="0")
+    private int largeDocumentThreshold;
+
+    public static final String PARAM_LARGEDOCUMENTS = "largeDocuments";
+    @ConfigurationParameter(name=PARAM_LARGEDOCUMENTS, mandatory=false, defaultValue="INCLUDE")
+    private LargeDocuments largeDocuments;
+
+    /**
+     * Count of chunks per page when a document which is stored in chunks is read
+     */
+    public static final String PARAM_CHUNKFETCHSIZE = "chunkFetchSize";
+    @ConfigurationParameter(name=PARAM_CHUNKFETCHSIZE, mandatory=false, defaultValue="4")
+    private int chunkFetchSize;
+
+    /**
+     * Count of documents which are fetched and staged ahead of getNext(CAS)
+     */
+    public static final String PARAM_QUEUEDEPTH = "queueDepth";
+    @ConfigurationParameter(name=PARAM_QUEUEDEPTH, mandatory=false, defaultValue="64")
+    private int queueDepth;
+
+    /**
+     * Count of threads which parse the XMI of upcoming documents ahead of getNext(CAS). 0 parses on the calling thread.
+     */
+    public static final String PARAM_DESERIALIZERTHREADS = "deserializerThreads";
+    @ConfigurationParameter(name=PARAM_DESERIALIZERTHREADS, mandatory=false, defaultValue="0")
+    private int deserializerThreads;
+
+    /**
+     * Allow several threads to call hasNext() and getNext(CAS) at the same time, e.g. processing pipelines which
+     * share the reader. hasNext() reserves the next document for the calling thread, which should take it with
+     * getNext(CAS). Documents are delivered in the order they are taken and loaded on the calling threads, which
+     * replaces deserializerThreads
+     */
+    public static final String PARAM_CONCURRENTCONSUMERS = "concurrentConsumers";
+    @ConfigurationParameter(name=PARAM_CONCURRENTCONSUMERS, mandatory=false, defaultValue="false")
+    private boolean concurrentConsumers;
+
+    /**
+     * Index of the share of the token ring this reader scans, in [0, shardCount)
+     */
+    public static final String PARAM_SHARDINDEX = "shardIndex";
+    @ConfigurationParameter(name=PARAM_SHARDINDEX, mandatory=false, defaultValue="0")
+    private int shardIndex;
+
+    /**
+     * Count of readers, e.g. in different JVMs, which scan disjoint shares of the token ring. The totals are those of the share.
+     * Sharding is not supported in FilterMode.VIEW, which falls back to FilterMode.SERVER.
+     */
+    public static final String PARAM_SHARDCOUNT = "shardCount";
+    @ConfigurationParameter(name=PARAM_SHARDCOUNT, mandatory=false, defaultValue="1")
+    private int shardCount;
+
+    /**
+     * MapDB file in which the position of the scan is checkpointed. Not set disables checkpointing.
+     * Checkpointing is not supported in FilterMode.VIEW. The checkpoint is marked complete once the pipeline closes the
+     * reader after the scan has been exhausted, until then the last delivered documents are read again on resume.
+     */
+    public static final String PARAM_CHECKPOINTFILE = "checkpointFile";
+    @ConfigurationParameter(name=PARAM_CHECKPOINTFILE, mandatory=false)
+    private String checkpointFile;
+
+    public static final String PARAM_CHECKPOINTINTERVALSECONDS = "checkpointIntervalSeconds";
+    @ConfigurationParameter(name=PARAM_CHECKPOINTINTERVALSECONDS, mandatory=false, defaultValue="60")
+    private int checkpointIntervalSeconds;
+
+    /**
+     * ProcessingState.UNPROCESSED: Claim each document with a lease of this many seconds (see DocumentLeases) and
+     * skip documents which another worker holds, so several pipelines can drain the same dbname without overlap.
+     * Documents are claimed when they are staged and the lease is extended when they are delivered, so it has to
+     * cover the time in the queue and the processing of one document. WikiDragonCassandraWriter releases the lease
+     * once the document is written. Skipped documents count as completed for the progress. 0 disables leases
+     */
+    public static final String PARAM_LEASESECONDS = "leaseSeconds";
+    @ConfigurationParameter(name=PARAM_LEASESECONDS, mandatory=false, defaultValue="0")
+    private int leaseSeconds;
+
+    /**
+     * Count of claims which are in flight at the same time
+     */
+    public static final String PARAM_CLAIMBATCHSIZE = "claimBatchSize";
+    @ConfigurationParameter(name=PARAM_CLAIMBATCHSIZE, mandatory=false, defaultValue="64")
+    private int claimBatchSize;
+
+    /**
+     * Resume the scan from checkpointFile. The stored exact totals are reused instead of counting again
+     */
+    public static final String PARAM_RESUME = "resume";
+    @ConfigurationParameter(name=PARAM_RESUME, mandatory=false, defaultValue="false")
+    private boolean resume;
+
+    /**
+     * MapDB file of a local cache of the payloads (see DocumentCache). Not set disables caching. With a cache the
+     * scan transfers no payloads: cached documents whose writetime of xmilen is unchanged are served from the file,
+     * the others are fetched by key and cached. Documents which are stored in chunks are not cached
+     */
+    public static final String PARAM_CACHEFILE = "cacheFile";
+    @ConfigurationParameter(name=PARAM_CACHEFILE, mandatory=false)
+    private String cacheFile;
+
+    /**
+     * Size of the cache file above which the least recently read documents are evicted
+     */
+    public static final String PARAM_CACHESIZEMB = "cacheSizeMB";
+    @ConfigurationParameter(name=PARAM_CACHESIZEMB, mandatory=false, defaultValue="10240")
+    private long cacheSizeMB;
+
+    /**
+     * Annotation layers of the table wikitextspannlp_layers (see WikiDragonCassandraWriter.PARAM_LAYER) which are
+     * merged into each document. Layers are merged in the order they have been written. Layers of a binary CAS or
+     * of a WikiTextSpanStore are not supported
+     */
+    public static final String PARAM_LAYERS = "layers";
+    @ConfigurationParameter(name=PARAM_LAYERS, mandatory=false)
+    private String[] layers;
+
+    /**
+     * Layer mappings of the form layer=type1,type2,... as configured for WikiDragonCassandraWriter.PARAM_LAYERTYPES.
+     * If layers is not set, the layers are selected by the mappings: all layers with a type which is kept by
+     * keepTypes and dropTypes are merged
+     */
+    public static final String PARAM_LAYERTYPES = "layerTypes";
+    @ConfigurationParameter(name=PARAM_LAYERTYPES, mandatory=false)
+    private String[] layerTypes;
+
+    /**
+     * Types whose annotations are loaded from XMI, including their subtypes. The elements of other types are skipped
+     * while parsing (see XmiTypeProjection). Not set loads all types. Documents loaded with a projection must not be
+     * written as a whole, use WikiDragonCassandraWriter.PARAM_LAYER
+     */
+    public static final String PARAM_KEEPTYPES = "keepTypes";
+    @ConfigurationParameter(name=PARAM_KEEPTYPES, mandatory=false)
+    private String[] keepTypes;
+
+    /**
+     * Types whose annotations, including those of their subtypes, are skipped while parsing XMI
+     */
+    public static final String PARAM_DROPTYPES = "dropTypes";
+    @ConfigurationParameter(name=PARAM_DROPTYPES, mandatory=false)
+    private String[] dropTypes;
+
+    /**
+     * Register each loaded XMI document in the DeltaCasRegistry, which allows a WikiDragonCassandraWriter with a
+     * layer to write only the annotations added by the pipeline
+     */
+    public static final String PARAM_TRACKDELTA = "trackDelta";
+    @ConfigurationParameter(name=PARAM_TRACKDELTA, mandatory=false, defaultValue="false")
+    private boolean trackDelta;
+
+    /**
+     * Name of the metric registry which is shared with other components (see WikiDragonMetrics) and published via JMX
+     */
+    public static final String PARAM_METRICREGISTRY = "metricRegistry";
+    @ConfigurationParameter(name=PARAM_METRICREGISTRY, mandatory=false, defaultValue="wikidragon")
+    private String metricRegistry;
+
+    /**
+     * Directory of a CSV reporter of the metrics. Not set disables it
+     */
+    public static final String PARAM_METRICSCSVDIRECTORY = "metricsCsvDirectory";
+    @ConfigurationParameter(name=PARAM_METRICSCSVDIRECTORY, mandatory=false)
+    private String metricsCsvDirectory;
+
+    public static final String PARAM_METRICSCONSOLE = "metricsConsole";
+    @ConfigurationParameter(name=PARAM_METRICSCONSOLE, mandatory=false, defaultValue="false")
+    private boolean metricsConsole;
+
+    public static final String PARAM_METRICSREPORTINTERVALSECONDS = "metricsReportIntervalSeconds";
+    @ConfigurationParameter(name=PARAM_METRICSREPORTINTERVALSECONDS, mandatory=false, defaultValue="60")
+    private int metricsReportIntervalSeconds;
+
+    /**
+     * Interval of the progress summaries in the log
+     */
+    public static final String PARAM_LOGINTERVALSECONDS = "logIntervalSeconds";
+    @ConfigurationParameter(name=PARAM_LOGINTERVALSECONDS, mandatory=false, defaultValue="60")
+    private int logIntervalSeconds;
+
+    private static class PendingDocument {
+        private final WikiTextSpanDocument document;
+        private Future<byte[]> binaryCas;
+        private XmiSerializationSharedData sharedData;
+
+        private PendingDocument(WikiTextSpanDocument pDocument) {
+            document = pDocument;
+        }
+    }
+
+    private static class ScheduledDocument {
+        private final String raw;
+        private final int xmiLength;
+
+        private ScheduledDocument(String pRaw, int pXMILength) {
+            raw = pRaw;
+            xmiLength = pXMILength;
+        }
+    }
+
+    private Iterator<Row> resultSet;
+    private TypeSystemStore typeSystemStore;
+    private boolean binaryColumn;
+    private boolean chunkColumn;
+    private PreparedStatement chunksStatement;
+    private DocumentCache cache;
+    private PreparedStatement payloadStatement;
+    private Counter cacheHits;
+    private Counter cacheMisses;
+    private Counter leasesRejected;
+    private final Gauge<Long> leasesRejectedGauge = () -> leasesRejected.getCount();
+    private DocumentLeases leases;
+    private volatile DocumentPrefetcher prefetcher;
+    private ParallelXmiDeserializer deserializer;
+    private final Deque<PendingDocument> pendingDocuments = new ArrayDeque<>();
+    private WikiTextSpanDocument next = null;
+    private volatile String language;
     private Cluster cluster;
     private Session session;
-    private long documentsRead;
-    private long relevantDocumentsRead;
-    private long prefetchDocumentsRead;
-    private long prefetchRelevantDocumentsRead;
-    private long documentsTotal;
-    private long relevantDocumentsTotal;
-    private boolean currentlyInComputePooledDocumentsRelevant = false;
+    private final AtomicLong documentsRead = new AtomicLong();
+    private final AtomicLong relevantDocumentsRead = new AtomicLong();
+    private volatile long documentsTotal;
+    private volatile long relevantDocumentsTotal;
+    private volatile boolean approximateTotal = false;
+    private Thread countThread;
+    private volatile boolean closed;
+    private final Object takeLock = new Object();
+    /**
+     * Token of the document each CAS has been loaded with, which is complete once the CAS is loaded again
+     */
+    private final Map<CAS, Token> casTokens = new IdentityHashMap<>();
+    private MetricRegistry metrics;
+    private Meter documentsMeter;
+    private Meter bytesReadMeter;
+    private Counter rowsRejected;
+    private Timer deserializeTimer;
+    private Histogram xmiLengthHistogram;
+    private Histogram textLengthHistogram;
+    private List<String> schedule;
+    private final AtomicLong logTime = new AtomicLong();
+    private final ThreadLocal<WikiTextSpanDocument> reserved = new ThreadLocal<>();
+    private final AtomicInteger activeDocuments = new AtomicInteger();
+    private volatile boolean exhausted;
+    private ScanCheckpoint checkpoint;
+    private PreparedStatement layersStatement;
+    private volatile XmiTypeProjection projection;
+    private volatile boolean warnedBinaryProjection;
+    private long checkpointTime;
+    private long documentsReadOffset;
+    private long relevantDocumentsReadOffset;
     
     @Override
     public void initialize(UimaContext aContext) throws ResourceInitializationException {
@@ -81,69 +454,582 @@ public class WikiDragonCassandraCollectionReader extends CasCollectionReader_Imp
     }
     
     private void init() throws CollectionException, IOException{
-        Cluster.Builder lBuilder = Cluster.builder();
-        for (String lHost:contactHosts) {
-            lBuilder.addContactPoint(lHost);
-        }
-        lBuilder.withCredentials(user, password);
-        lBuilder.getConfiguration().getQueryOptions().setConsistencyLevel(ConsistencyLevel.ANY);
-        lBuilder.getConfiguration().getSocketOptions().setConnectTimeoutMillis(30000); // Default: 5000
-        lBuilder.getConfiguration().getSocketOptions().setReadTimeoutMillis(30000); // Default 12000
-        cluster = lBuilder.build();
-        session = cluster.connect();
-        documentsRead = 0;
-        relevantDocumentsRead = 0;
-        prefetchDocumentsRead = 0;
-        prefetchRelevantDocumentsRead = 0;
-        computePooledDocumentsRelevant();
-        resultSet = session.execute("select dbname,raw,textlen,xmilen,processed,xmi from wikitextspannlp");
-        documentsRead = 0;
-        relevantDocumentsRead = 0;
-        prefetchDocumentsRead = 0;
-        prefetchRelevantDocumentsRead = 0;
-        prefetch();
-    }
-
-    private void computePooledDocumentsRelevant() throws IOException, CollectionException {
-        currentlyInComputePooledDocumentsRelevant = true;
-        session.execute("use "+keyspace);
-        resultSet = session.execute("select dbname,raw,textlen,xmilen,processed from wikitextspannlp");
-        prefetch();
-        long lLastTime = System.currentTimeMillis();
-        documentsTotal = 0;
-        relevantDocumentsTotal = 0;
-        while (hasNext()) {
-            getNext(null);
-            relevantDocumentsTotal++;
-            if (System.currentTimeMillis() - lLastTime >= 1000) {
-                lLastTime = System.currentTimeMillis();
-                logger.info("Documents Read: "+documentsTotal+", Documents Relevant: "+relevantDocumentsTotal);
-            }
-        }
-        logger.info("Documents Read: "+documentsTotal+", Documents Relevant: "+relevantDocumentsTotal);
-        currentlyInComputePooledDocumentsRelevant = false;
+        closed = false;
+        metrics = WikiDragonMetrics.acquire(metricRegistry, metricsCsvDirectory, metricsConsole, metricsReportIntervalSeconds);
+        documentsMeter = metrics.meter(MetricRegistry.name(WikiDragonCassandraCollectionReader.class, "documents"));
+        bytesReadMeter = metrics.meter(MetricRegistry.name(WikiDragonCassandraCollectionReader.class, "bytesRead"));
+        rowsRejected = metrics.counter(MetricRegistry.name(WikiDragonCassandraCollectionReader.class, "rowsRejected"));
+        deserializeTimer = metrics.timer(MetricRegistry.name(WikiDragonCassandraCollectionReader.class, "deserialize"));
+        xmiLengthHistogram = metrics.histogram(MetricRegistry.name(WikiDragonCassandraCollectionReader.class, "xmiLength"));
+        textLengthHistogram = metrics.histogram(MetricRegistry.name(WikiDragonCassandraCollectionReader.class, "textLength"));
+        cacheHits = metrics.counter(MetricRegistry.name(WikiDragonCassandraCollectionReader.class, "cacheHits"));
+        cacheMisses = metrics.counter(MetricRegistry.name(WikiDragonCassandraCollectionReader.class, "cacheMisses"));
+        // Counted per reader, since the rejected documents complete its progress
+        leasesRejected = new Counter();
+        WikiDragonMetrics.addToSum(metrics, MetricRegistry.name(WikiDragonCassandraCollectionReader.class, "leasesRejected"), leasesRejectedGauge);
+        WikiDragonMetrics.register(metrics, MetricRegistry.name(WikiDragonCassandraCollectionReader.class, "fetchWaitMillis"), (Gauge<Long>)this::getFetchWaitMillis);
+        if ((shardCount < 1) || (shardIndex < 0) || (shardIndex >= shardCount)) {
+            throw new IOException("Invalid shard "+shardIndex+" of "+shardCount);
+        }
+        if (((layers == null) || (layers.length == 0)) && (layerTypes != null) && (layerTypes.length > 0)) {
+            layers = selectLayers(XmiLayerSplitter.parseLayerTypes(layerTypes));
+            logger.info("Merging layers "+Arrays.toString(layers));
+        }
+        if (store != null) {
+            if ((filterMode != FilterMode.CLIENT) || (scanMode != ScanMode.SEQUENTIAL) || (shardCount > 1) || (checkpointFile != null)) {
+                logger.warn("A WikiTextSpanStore is scanned sequentially and filtered on the client - Ignoring filterMode, scanMode, sharding and checkpointing");
+            }
+            filterMode = FilterMode.CLIENT;
+            scanMode = ScanMode.SEQUENTIAL;
+            shardIndex = 0;
+            shardCount = 1;
+            checkpointFile = null;
+            if ((layers != null) && (layers.length > 0)) {
+                logger.warn("Layers of a WikiTextSpanStore are not supported - Ignoring "+PARAM_LAYERS);
+                layers = null;
+            }
+            if (cacheFile != null) {
+                logger.warn("Documents of a WikiTextSpanStore are not cached - Ignoring "+PARAM_CACHEFILE);
+                cacheFile = null;
+            }
+            if (pendingQueue) {
+                logger.warn("A WikiTextSpanStore has no pending work queue - Ignoring "+PARAM_PENDINGQUEUE);
+                pendingQueue = false;
+            }
+            if (leaseSeconds > 0) {
+                logger.warn("Documents of a WikiTextSpanStore are not leased - Ignoring "+PARAM_LEASESECONDS);
+                leaseSeconds = 0;
+            }
+            if (isScheduled()) {
+                logger.warn("Documents of a WikiTextSpanStore are delivered in scan order - Ignoring "+PARAM_SIZEORDER+" and LargeDocuments.LAST");
+                sizeOrder = SizeOrder.SCAN;
+                if (largeDocuments == LargeDocuments.LAST) largeDocuments = LargeDocuments.INCLUDE;
+            }
+        }
+        else {
+            if (connectionProvider == null) {
+                if ((contactHosts == null) || (user == null) || (password == null)) {
+                    throw new IOException("Neither a connection or store is bound nor contactHosts, user and password are set");
+                }
+                connectionProvider = new CassandraConnectionProvider(contactHosts, user, password);
+            }
+            session = connectionProvider.connect(keyspace);
+            cluster = session.getCluster();
+            if ((shardCount > 1) && (filterMode == FilterMode.VIEW)) {
+                logger.warn("Sharding is not supported in FilterMode.VIEW - Falling back to FilterMode.SERVER");
+                filterMode = FilterMode.SERVER;
+            }
+            WikiDragonMetrics.registerCluster(metrics, cluster);
+            if (pendingQueue) initPendingQueue();
+            if (leaseSeconds > 0) {
+                if (processingState != ProcessingState.UNPROCESSED) {
+                    logger.warn("Only unprocessed documents are leased - Ignoring "+PARAM_LEASESECONDS);
+                }
+                else {
+                    leases = new DocumentLeases(session, dbname, leaseSeconds);
+                    logger.info("Claiming documents with leases of "+leaseSeconds+" seconds as "+leases.getOwner());
+                }
+            }
+            initFilterSchema();
+            if ((filterMode != FilterMode.CLIENT) && (processingState == ProcessingState.UNPROCESSED)) {
+                logger.warn("Documents without a processed value are not selected by FilterMode."+filterMode+" - Use FilterMode.CLIENT to read them as unprocessed");
+            }
+            if ((layers != null) && (layers.length > 0)) {
+                if (cluster.getMetadata().getKeyspace(keyspace).getTable(WikiDragonCassandraWriter.LAYERS_TABLE) == null) {
+                    throw new IOException("Table "+WikiDragonCassandraWriter.LAYERS_TABLE+" does not exist");
+                }
+                layersStatement = session.prepare("select layer,mergepoint,xmi from "+WikiDragonCassandraWriter.LAYERS_TABLE+" where dbname=? and raw=? and layer in ?");
+            }
+        }
+        if ((checkpointFile != null) && isScheduled()) {
+            logger.warn("Checkpointing is not supported with size ordered scheduling - Ignoring "+PARAM_CHECKPOINTFILE);
+            checkpointFile = null;
+        }
+        if (checkpointFile != null) {
+            if (filterMode == FilterMode.VIEW) {
+                logger.warn("Checkpointing is not supported in FilterMode.VIEW - Ignoring "+PARAM_CHECKPOINTFILE);
+            }
+            else {
+                checkpoint = new ScanCheckpoint(new File(checkpointFile), keyspace+"|"+dbname+"|"+processingState+"|"+skipZeroLength+"|"+shardIndex+"/"+shardCount, cluster.getMetadata(), getScanRanges(tokenRangeCount), resume);
+            }
+        }
+        if (isScheduled()) {
+            computeSchedule();
+        }
+        else if ((checkpoint != null) && checkpoint.isResumed() && (checkpoint.getRelevantDocumentsTotal() >= 0)) {
+            documentsTotal = checkpoint.getDocumentsTotal();
+            relevantDocumentsTotal = checkpoint.getRelevantDocumentsTotal();
+            logger.info("Documents Read: "+documentsTotal+", Documents Relevant: "+relevantDocumentsTotal+" (Checkpoint)");
+        }
+        else switch (totalMode) {
+            case ESTIMATE: {
+                estimateDocumentsRelevant();
+                break;
+            }
+            case BACKGROUND: {
+                estimateDocumentsRelevant();
+                countThread = new Thread(() -> {
+                    try {
+                        computePooledDocumentsRelevant();
+                    }
+                    catch (RuntimeException e) {
+                        if (session != null) logger.error("Counting relevant documents failed: "+e.getMessage(), e);
+                    }
+                }, "WikiDragonCassandraCollectionReader-Count");
+                countThread.setDaemon(true);
+                countThread.start();
+                break;
+            }
+            default: {
+                computePooledDocumentsRelevant();
+            }
+        }
+        if (store != null) {
+            typeSystemStore = store.getTypeSystemStore();
+            binaryColumn = true;
+        }
+        else {
+            typeSystemStore = new TypeSystemStore(session);
+            // The payloads are always selected from the table, FilterMode.VIEW only scans the keys of the view
+            TableMetadata lTableMetadata = cluster.getMetadata().getKeyspace(keyspace).getTable("wikitextspannlp");
+            binaryColumn = (lTableMetadata != null) && (lTableMetadata.getColumn("casbin") != null);
+            chunkColumn = (lTableMetadata != null) && (lTableMetadata.getColumn("chunks") != null);
+            if (chunkColumn) {
+                chunksStatement = session.prepare("select chunk,data,binary from "+WikiDragonCassandraWriter.CHUNKS_TABLE+" where dbname=? and raw=? and chunk<?");
+            }
+        }
+        String lColumns = "dbname,raw,textlen,xmilen,processed,xmi"+(binaryColumn ? ",casbin" : "")+(chunkColumn ? ",chunks" : "");
+        if (cacheFile != null) {
+            cache = new DocumentCache(new File(cacheFile), cacheSizeMB * 1024 * 1024);
+            TableMetadata lTableMetadata = cluster.getMetadata().getKeyspace(keyspace).getTable("wikitextspannlp");
+            payloadStatement = session.prepare("select writetime(xmilen),textlen,xmilen,processed,xmi"+(lTableMetadata.getColumn("casbin") != null ? ",casbin" : "")
+                    +(chunkColumn ? ",chunks" : "")+" from wikitextspannlp where dbname=? and raw=?");
+            lColumns = "dbname,raw,textlen,xmilen,processed,writetime(xmilen)";
+        }
+        if (schedule != null) {
+            resultSet = new KeyFetchIterator(session, session.prepare("select "+lColumns+" from wikitextspannlp where dbname=? and raw=?"), dbname, schedule.iterator(), queueDepth);
+        }
+        else if (checkpoint != null) {
+            resultSet = openCheckpointScan(lColumns+",token(dbname,raw)");
+            documentsReadOffset = checkpoint.isResumed() ? checkpoint.getDocumentsRead() : 0;
+            relevantDocumentsReadOffset = checkpoint.isResumed() ? checkpoint.getRelevantDocumentsRead() : 0;
+            checkpointTime = System.currentTimeMillis();
+        }
+        else {
+            resultSet = openScan(lColumns);
+        }
+        if (leases != null) {
+            DocumentLeases lLeases = leases;
+            resultSet = new LeaseClaimIterator(resultSet, this::accept, pRow -> lLeases.claim(pRow.getString(1)), claimBatchSize, leasesRejected);
+        }
+        documentsRead.set(documentsReadOffset);
+        relevantDocumentsRead.set(relevantDocumentsReadOffset);
+        logTime.set(System.currentTimeMillis());
+        if (concurrentConsumers && (deserializerThreads > 0)) {
+            logger.warn("Documents are loaded on the threads of the consumers - Ignoring "+PARAM_DESERIALIZERTHREADS);
+            deserializerThreads = 0;
+        }
+        exhausted = false;
+        prefetcher = new DocumentPrefetcher(resultSet, this::acceptScanned, this::decode, queueDepth);
+        if (!concurrentConsumers) prefetch();
+    }
+
+    /**
+     * @return Layers of the mappings with at least one type which is kept by keepTypes and dropTypes
+     */
+    private String[] selectLayers(Map<String, String[]> pLayerTypes) {
+        List<String> lResult = new ArrayList<>();
+        for (Map.Entry<String, String[]> lEntry:pLayerTypes.entrySet()) {
+            for (String lType:lEntry.getValue()) {
+                if (isKept(lType)) {
+                    lResult.add(lEntry.getKey());
+                    break;
+                }
+            }
+        }
+        return lResult.toArray(new String[0]);
+    }
+
+    private boolean isKept(String pType) {
+        if (dropTypes != null) {
+            for (String lDropType:dropTypes) {
+                if (subsumes(lDropType, pType)) return false;
+            }
+        }
+        if ((keepTypes == null) || (keepTypes.length == 0)) return true;
+        for (String lKeepType:keepTypes) {
+            if (subsumes(lKeepType, pType)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return True if the types are equal or the JCas class of pType extends that of pSuperType. The type system
+     * is not known before the first CAS is loaded
+     */
+    private static boolean subsumes(String pSuperType, String pType) {
+        if (pSuperType.equals(pType)) return true;
+        try {
+            return Class.forName(pSuperType).isAssignableFrom(Class.forName(pType));
+        }
+        catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    private void initFilterSchema() {
+        KeyspaceMetadata lKeyspaceMetadata = cluster.getMetadata().getKeyspace(keyspace);
+        switch (filterMode) {
+            case INDEX: {
+                boolean lFound = false;
+                for (IndexMetadata lIndex:lKeyspaceMetadata.getTable("wikitextspannlp").getIndexes()) {
+                    if (lIndex.getTarget().equals("dbname")) lFound = true;
+                }
+                if (!lFound) {
+                    if (createFilterSchema) {
+                        logger.info("Creating secondary index "+FILTER_INDEX+" - Queries may be incomplete until it has been built");
+                        session.execute("create index if not exists "+FILTER_INDEX+" on wikitextspannlp (dbname)");
+                    }
+                    else {
+                        logger.warn("No secondary index on wikitextspannlp.dbname - Falling back to FilterMode.SERVER");
+                        filterMode = FilterMode.SERVER;
+                    }
+                }
+                break;
+            }
+            case VIEW: {
+                if (lKeyspaceMetadata.getMaterializedView(FILTER_VIEW) == null) {
+                    if (createFilterSchema) {
+                        logger.info("Creating materialized view "+FILTER_VIEW+" - Queries may be incomplete until it has been built");
+                        // Only keys and sizes, a copy of the payloads would double the storage and the partitions of the view
+                        session.execute("create materialized view if not exists "+FILTER_VIEW+" as select "+String.join(",", FILTER_VIEW_COLUMNS)+" from wikitextspannlp where dbname is not null and raw is not null and processed is not null primary key ((dbname,processed),raw)");
+                    }
+                    else {
+                        logger.warn("No materialized view "+FILTER_VIEW+" - Falling back to FilterMode.SERVER");
+                        filterMode = FilterMode.SERVER;
+                    }
+                }
+                break;
+            }
+        }
+    }
+
+    private void initPendingQueue() throws IOException {
+        if (processingState != ProcessingState.UNPROCESSED) {
+            logger.warn("The pending work queue lists unprocessed documents only - Ignoring "+PARAM_PENDINGQUEUE);
+            pendingQueue = false;
+            return;
+        }
+        if (!PendingWorkQueue.exists(session)) {
+            throw new IOException("Table "+PendingWorkQueue.TABLE+" does not exist - Create it with PendingWorkQueue.backfill");
+        }
+        if (filterMode != FilterMode.CLIENT) {
+            logger.warn("Documents of the pending work queue are filtered on the client - Ignoring "+PARAM_FILTERMODE);
+            filterMode = FilterMode.CLIENT;
+        }
+        if (checkpointFile != null) {
+            // Written documents leave the queue, so a new run continues where the last one has stopped anyway
+            logger.warn("The pending work queue is not checkpointed - Ignoring "+PARAM_CHECKPOINTFILE);
+            checkpointFile = null;
+        }
+    }
+
+    /**
+     * @return Restriction on dbname, processing state and text length with bind markers for getRestrictionValues()
+     */
+    private String getRestriction(boolean pView) {
+        StringBuilder lResult = new StringBuilder("dbname=?");
+        switch (processingState) {
+            case UNPROCESSED:
+            case PROCESSED: {
+                lResult.append(" and processed=?");
+                break;
+            }
+            case ANY: {
+                if (pView) lResult.append(" and processed in (true,false)");
+                break;
+            }
+        }
+        if (skipZeroLength) lResult.append(" and textlen>0");
+        lResult.append(" allow filtering");
+        return lResult.toString();
+    }
+
+    private Object[] getRestrictionValues() {
+        switch (processingState) {
+            case UNPROCESSED: return new Object[]{dbname, Boolean.FALSE};
+            case PROCESSED: return new Object[]{dbname, Boolean.TRUE};
+            default: return new Object[]{dbname};
+        }
+    }
+
+    private boolean isScheduled() {
+        return (sizeOrder != SizeOrder.SCAN) || ((largeDocuments == LargeDocuments.LAST) && (largeDocumentThreshold > 0));
+    }
+
+    private boolean isLarge(int pXMILength) {
+        return (largeDocumentThreshold > 0) && (pXMILength > largeDocumentThreshold);
+    }
+
+    /**
+     * Collects the keys of the relevant documents in a pass without payloads and orders them by sizeOrder and
+     * largeDocuments. The pass yields the exact totals as well
+     */
+    private void computeSchedule() {
+        List<ScheduledDocument> lDocuments = new ArrayList<>();
+        Iterator<Row> lScan = openScan("dbname,raw,textlen,xmilen,processed");
+        try {
+            long lLastTime = System.currentTimeMillis();
+            long lDocumentsTotal = 0;
+            while (lScan.hasNext()) {
+                Row lRow = lScan.next();
+                if (accept(lRow)) {
+                    lDocuments.add(new ScheduledDocument(lRow.getString(1), lRow.getInt(3)));
+                }
+                lDocumentsTotal++;
+                if (System.currentTimeMillis() - lLastTime >= logIntervalSeconds * 1000L) {
+                    lLastTime = System.currentTimeMillis();
+                    logger.info("Scheduling - Documents Read: "+lDocumentsTotal+", Documents Relevant: "+lDocuments.size());
+                }
+            }
+            documentsTotal = lDocumentsTotal;
+            relevantDocumentsTotal = lDocuments.size();
+            approximateTotal = false;
+        }
+        finally {
+            closeScan(lScan);
+        }
+        Comparator<ScheduledDocument> lOrder = Comparator.comparing(pDocument -> (largeDocuments == LargeDocuments.LAST) && isLarge(pDocument.xmiLength));
+        if (sizeOrder == SizeOrder.LARGEST_FIRST) lOrder = lOrder.thenComparing(pDocument -> -pDocument.xmiLength);
+        if (sizeOrder == SizeOrder.SMALLEST_FIRST) lOrder = lOrder.thenComparing(pDocument -> pDocument.xmiLength);
+        // The sort is stable, documents of the same size stay in scan order
+        lDocuments.sort(lOrder);
+        schedule = new ArrayList<>(lDocuments.size());
+        for (ScheduledDocument lDocument:lDocuments) schedule.add(lDocument.raw);
+        logger.info("Documents Read: "+documentsTotal+", Documents Relevant: "+relevantDocumentsTotal+", Sizes: "+getSizeSummary(lDocuments));
+    }
+
+    /**
+     * @return Percentiles and total of the xmilen of the documents
+     */
+    private String getSizeSummary(List<ScheduledDocument> pDocuments) {
+        if (pDocuments.isEmpty()) return "-";
+        int[] lSizes = new int[pDocuments.size()];
+        long lTotal = 0;
+        int lLarge = 0;
+        for (int i=0; i<lSizes.length; i++) {
+            lSizes[i] = pDocuments.get(i).xmiLength;
+            lTotal += lSizes[i];
+            if (isLarge(lSizes[i])) lLarge++;
+        }
+        Arrays.sort(lSizes);
+        return String.format(Locale.ROOT, "p50=%d, p90=%d, p99=%d, max=%d bytes, total=%.1f MB, above threshold: %d",
+                lSizes[lSizes.length/2], lSizes[(int)(lSizes.length*0.9)], lSizes[(int)(lSizes.length*0.99)], lSizes[lSizes.length-1], lTotal / 1e6, lLarge);
+    }
+
+    private void computePooledDocumentsRelevant() {
+        Iterator<Row> lScan = openScan(filterMode == FilterMode.CLIENT ? "dbname,raw,textlen,xmilen,processed" : "raw");
+        try {
+            long lLastTime = System.currentTimeMillis();
+            long lDocumentsTotal = 0;
+            long lRelevantDocumentsTotal = 0;
+            while (!closed && !Thread.currentThread().isInterrupted() && lScan.hasNext()) {
+                Row lRow = lScan.next();
+                if ((filterMode != FilterMode.CLIENT) || accept(lRow)) lRelevantDocumentsTotal++;
+                lDocumentsTotal++;
+                if (System.currentTimeMillis() - lLastTime >= logIntervalSeconds * 1000L) {
+                    lLastTime = System.currentTimeMillis();
+                    logger.info("Documents Read: "+lDocumentsTotal+", Documents Relevant: "+lRelevantDocumentsTotal);
+                }
+            }
+            // A count which has been stopped by close() is partial and must not replace the estimate
+            if (closed || Thread.interrupted()) {
+                logger.info("Counting stopped after "+lDocumentsTotal+" documents - Ignoring the partial count");
+                return;
+            }
+            logger.info("Documents Read: "+lDocumentsTotal+", Documents Relevant: "+lRelevantDocumentsTotal);
+            documentsTotal = lDocumentsTotal;
+            relevantDocumentsTotal = lRelevantDocumentsTotal;
+            approximateTotal = false;
+            // close() commits and closes the checkpoint under the same lock
+            synchronized (this) {
+                if (checkpoint != null) checkpoint.setTotals(lDocumentsTotal, lRelevantDocumentsTotal);
+            }
+        }
+        finally {
+            closeScan(lScan);
+        }
+    }
+
+    /**
+     * Estimates the totals of the share of this reader by counting evenly spread samples of its token ranges. Falls back to system.size_estimates
+     * of the contacted node if the partitioner does not support the computation of range sizes.
+     */
+    private void estimateDocumentsRelevant() {
+        if (store != null) {
+            documentsTotal = store.size();
+            relevantDocumentsTotal = documentsTotal;
+            approximateTotal = true;
+            return;
+        }
+        List<TokenRange> lRanges = getScanRanges(ESTIMATE_RING_SPLITS);
+        List<TokenRange> lSamples = new ArrayList<>();
+        double lFraction = 0;
+        // The samples are taken from the ranges of this shard, so they are scaled to the share of the shard
+        double lShardFraction = 0;
+        for (TokenRange lRange:lRanges) lShardFraction += TokenRangeScanner.getRingFraction(lRange);
+        int lStep = Math.max(1, lRanges.size() / Math.max(1, estimateSamples));
+        for (int i=0; i<lRanges.size(); i+=lStep) {
+            lSamples.add(lRanges.get(i));
+            lFraction += TokenRangeScanner.getRingFraction(lRanges.get(i));
+        }
+        if (lFraction > 0) {
+            long lDocuments = 0;
+            long lRelevantDocuments = 0;
+            boolean lServerSide = filterMode != FilterMode.CLIENT;
+            TokenRangeScanner lScan = new TokenRangeScanner(session, keyspace, "wikitextspannlp", lServerSide ? "raw" : "dbname,raw,textlen,xmilen,processed", "dbname,raw", lServerSide ? getRestriction(false) : null, lServerSide ? getRestrictionValues() : null, lSamples, scanConcurrency, fetchSize, 10000);
+            try {
+                while (lScan.hasNext()) {
+                    Row lRow = lScan.next();
+                    if (lServerSide || accept(lRow)) lRelevantDocuments++;
+                    lDocuments++;
+                }
+            }
+            finally {
+                lScan.close();
+            }
+            documentsTotal = Math.round(lDocuments * lShardFraction / lFraction);
+            relevantDocumentsTotal = Math.round(lRelevantDocuments * lShardFraction / lFraction);
+        }
+        else {
+            long lPartitions = 0;
+            for (Row lRow:session.execute("select partitions_count from system.size_estimates where keyspace_name=? and table_name=?", keyspace, "wikitextspannlp")) {
+                lPartitions += lRow.getLong(0);
+            }
+            documentsTotal = lPartitions / shardCount;
+            relevantDocumentsTotal = lPartitions / shardCount;
+        }
+        approximateTotal = true;
+        logger.info("Documents Estimated: "+documentsTotal+", Documents Relevant Estimated: "+relevantDocumentsTotal);
+    }
+
+    /**
+     * @return Unwrapped token ranges of the share of this reader, split into at least pRangeCount ranges
+     */
+    private List<TokenRange> getScanRanges(int pRangeCount) {
+        return TokenRangeScanner.getShardRanges(cluster.getMetadata(), pRangeCount, shardIndex, shardCount);
+    }
+
+    private Iterator<Row> openScan(String pColumns) {
+        if (store != null) return store.scan();
+        if (pendingQueue) {
+            // The buckets are split among the shards
+            return PendingWorkQueue.fetch(session, pColumns, dbname, shardIndex, shardCount, fetchSize, queueDepth);
+        }
+        boolean lView = filterMode == FilterMode.VIEW;
+        String lTable = lView ? FILTER_VIEW : "wikitextspannlp";
+        if (((scanMode == ScanMode.TOKENRANGES) || (shardCount > 1)) && !lView) {
+            // A sequential scan of a shard queries its ranges one after another
+            List<TokenRange> lRanges = getScanRanges(tokenRangeCount);
+            int lConcurrency = scanMode == ScanMode.TOKENRANGES ? scanConcurrency : 1;
+            if (filterMode == FilterMode.CLIENT) {
+                return new TokenRangeScanner(session, keyspace, lTable, pColumns, "dbname,raw", null, null, lRanges, lConcurrency, fetchSize, 10000);
+            }
+            else {
+                return new TokenRangeScanner(session, keyspace, lTable, pColumns, "dbname,raw", getRestriction(false), getRestrictionValues(), lRanges, lConcurrency, fetchSize, 10000);
+            }
+        }
+        else {
+            // The view holds only a few partitions per dbname, so splitting it into token ranges does not pay off
+            boolean lFetch = lView && !FILTER_VIEW_COLUMNS.containsAll(Arrays.asList(pColumns.split(",")));
+            Statement lStatement;
+            if (filterMode == FilterMode.CLIENT) {
+                lStatement = new SimpleStatement("select "+pColumns+" from "+lTable);
+            }
+            else {
+                lStatement = session.prepare("select "+(lFetch ? "raw" : pColumns)+" from "+lTable+" where "+getRestriction(lView)).bind(getRestrictionValues());
+            }
+            if (fetchSize > 0) lStatement.setFetchSize(fetchSize);
+            Iterator<Row> lRows = new AsyncPagingIterator(session.execute(lStatement), lStatement.getFetchSize() > 0 ? lStatement.getFetchSize() : cluster.getConfiguration().getQueryOptions().getFetchSize());
+            if (!lFetch) return lRows;
+            // The view holds no payloads, the documents are fetched from the table by the keys of the view
+            Iterator<String> lKeys = new Iterator<String>() {
+                @Override
+                public boolean hasNext() {
+                    return lRows.hasNext();
+                }
+
+                @Override
+                public String next() {
+                    return lRows.next().getString(0);
+                }
+            };
+            return new KeyFetchIterator(session, session.prepare("select "+pColumns+" from wikitextspannlp where dbname=? and raw=?"), dbname, lKeys, queueDepth);
+        }
+    }
+
+    /**
+     * Scans the remaining token ranges of the checkpoint. In ScanMode.SEQUENTIAL the ranges are scanned one after another
+     */
+    private Iterator<Row> openCheckpointScan(String pColumns) {
+        List<TokenRange> lRanges = checkpoint.getRemainingRanges();
+        int lConcurrency = scanMode == ScanMode.TOKENRANGES ? scanConcurrency : 1;
+        if (filterMode == FilterMode.CLIENT) {
+            return new TokenRangeScanner(session, keyspace, "wikitextspannlp", pColumns, "dbname,raw", null, null, lRanges, lConcurrency, fetchSize, 10000);
+        }
+        else {
+            return new TokenRangeScanner(session, keyspace, "wikitextspannlp", pColumns, "dbname,raw", getRestriction(false), getRestrictionValues(), lRanges, lConcurrency, fetchSize, 10000);
+        }
+    }
+
+    private void closeScan(Iterator<Row> pScan) {
+        if (pScan instanceof TokenRangeScanner) {
+            ((TokenRangeScanner)pScan).close();
+        }
+        else if (pScan instanceof KeyFetchIterator) {
+            ((KeyFetchIterator)pScan).close();
+        }
+        else if (pScan instanceof LeaseClaimIterator) {
+            ((LeaseClaimIterator)pScan).close();
+            closeScan(((LeaseClaimIterator)pScan).getRows());
+        }
     }
 
     private boolean accept(Row pRow) {
         if (pRow != null) {
-            String lDBName = pRow.getString(0);
-            String lRaw = pRow.getString(1);
-            int lTextLengthBytes = pRow.getInt(2);
-            boolean lProcessed = pRow.getBool(4);
-            if (lDBName.equals(dbname)) {
-                if ((lTextLengthBytes > 0) || !skipZeroLength) {
-                    switch (processingState) {
-                        case UNPROCESSED: {
-                            if (!lProcessed) return true;
-                            break;
-                        }
-                        case PROCESSED: {
-                            if (lProcessed) return true;
-                            break;
-                        }
-                        case ANY: {
-                            return true;
-                        }
+            if ((largeDocuments == LargeDocuments.SKIP) && isLarge(pRow.getInt(3))) return false;
+            return isRelevant(pRow.getString(0), pRow.getInt(2), pRow.isNull(4) ? null : pRow.getBool(4), dbname, processingState, skipZeroLength);
+        }
+        return false;
+    }
+
+    /**
+     * accept(Row) of the rows of the document scan, which counts the rejected rows
+     */
+    private boolean acceptScanned(Row pRow) {
+        boolean lResult = accept(pRow);
+        if (!lResult) rowsRejected.inc();
+        return lResult;
+    }
+
+    /**
+     * @param pProcessed Processed value of the document, null if it has none, which counts as unprocessed
+     */
+    static boolean isRelevant(String pDBName, int pTextLengthBytes, Boolean pProcessed, String pRelevantDBName, ProcessingState pProcessingState, boolean pSkipZeroLength) {
+        boolean lProcessed = Boolean.TRUE.equals(pProcessed);
+        if (pDBName.equals(pRelevantDBName)) {
+            if ((pTextLengthBytes > 0) || !pSkipZeroLength) {
+                switch (pProcessingState) {
+                    case UNPROCESSED: {
+                        if (!lProcessed) return true;
+                        break;
+                    }
+                    case PROCESSED: {
+                        if (lProcessed) return true;
+                        break;
+                    }
+                    case ANY: {
+                        return true;
                     }
                 }
             }
@@ -151,30 +1037,249 @@ public class WikiDragonCassandraCollectionReader extends CasCollectionReader_Imp
         return false;
     }
 
-    private void prefetch() {
-        boolean lFoundOne = false;
-        next = null;
-        while (!resultSet.isExhausted() && !lFoundOne) {
-            Row lRow = resultSet.one();
-            if (accept(lRow)) {
-                // dbname,raw,textlen,xmilen,processed,xmi
-                String lKey = lRow.getString(1);
-                String lXMILength = Integer.toString(lRow.getInt(3));
-                String lXMI = resultSet.getColumnDefinitions().size() == 6 ? lRow.getString(5) : null;
-                if ((lXMI != null) && (language == null)) {
-                    int lLangIndex = lXMI.indexOf(" language=\"");
-                    if (lLangIndex >= 0) {
-                        language = lXMI.substring(lLangIndex+11, lXMI.indexOf('\"', lLangIndex+11));
+    private WikiTextSpanDocument decode(Row pRow, long pDocumentsRead, long pRelevantDocumentsRead) {
+        if (cache != null) return decodeCached(pRow, pDocumentsRead, pRelevantDocumentsRead);
+        // dbname,raw,textlen,xmilen,processed,xmi[,casbin]
+        // Both payloads are taken as the raw bytes of the row (UTF-8 for xmi) to avoid decoding and re-encoding Strings
+        ByteBuffer lXMI = pRow.getBytesUnsafe("xmi");
+        ByteBuffer lBinaryCas = binaryColumn ? pRow.getBytesUnsafe("casbin") : null;
+        ChunkInputStream lChunks = null;
+        if (chunkColumn && !pRow.isNull("chunks") && (pRow.getInt("chunks") > 0)) {
+            // The chunks are fetched when the document is deserialized, a queue of documents would hold a page of chunks each otherwise
+            Statement lStatement = chunksStatement.bind(pRow.getString(0), pRow.getString(1), pRow.getInt("chunks")).setFetchSize(Math.max(1, chunkFetchSize));
+            lChunks = new ChunkInputStream(session, lStatement, pRow.getInt("chunks"), pRow.getString(1));
+            lXMI = null;
+            lBinaryCas = null;
+        }
+        else if (lBinaryCas != null) {
+            lXMI = null;
+        }
+        else if ((lXMI != null) && (language == null)) {
+            language = findLanguage(lXMI);
+        }
+        xmiLengthHistogram.update(pRow.getInt(3));
+        textLengthHistogram.update(pRow.getInt(2));
+        Token lToken = checkpoint != null ? pRow.getPartitionKeyToken() : null;
+        // The layers are fetched while the document waits in the queue
+        ResultSetFuture lLayers = layersStatement != null ? session.executeAsync(layersStatement.bind(pRow.getString(0), pRow.getString(1), Arrays.asList(layers))) : null;
+        return new WikiTextSpanDocument(pRow.getString(1), lXMI, lBinaryCas, pRow.getInt(3), pDocumentsRead, pRelevantDocumentsRead, lToken, lLayers, lChunks, null);
+    }
+
+    /**
+     * decode(Row, long, long) of a scan without payloads. The payload is taken from the cache or fetched by key
+     */
+    private WikiTextSpanDocument decodeCached(Row pRow, long pDocumentsRead, long pRelevantDocumentsRead) {
+        // dbname,raw,textlen,xmilen,processed,writetime(xmilen)
+        DocumentCache.Entry lEntry = pRow.isNull(5) ? null : cache.get(pRow.getString(0), pRow.getString(1), pRow.getLong(5));
+        ByteBuffer lXMI = null;
+        ByteBuffer lBinaryCas = null;
+        ResultSetFuture lPayload = null;
+        if (lEntry != null) {
+            cacheHits.inc();
+            if (lEntry.isBinary()) {
+                lBinaryCas = lEntry.getPayload();
+            }
+            else {
+                lXMI = lEntry.getPayload();
+            }
+        }
+        else {
+            cacheMisses.inc();
+            // The payload is fetched while the document waits in the queue
+            lPayload = session.executeAsync(payloadStatement.bind(pRow.getString(0), pRow.getString(1)));
+        }
+        xmiLengthHistogram.update(pRow.getInt(3));
+        textLengthHistogram.update(pRow.getInt(2));
+        Token lToken = checkpoint != null ? pRow.getPartitionKeyToken() : null;
+        ResultSetFuture lLayers = layersStatement != null ? session.executeAsync(layersStatement.bind(pRow.getString(0), pRow.getString(1), Arrays.asList(layers))) : null;
+        return new WikiTextSpanDocument(pRow.getString(1), lXMI, lBinaryCas, pRow.getInt(3), pDocumentsRead, pRelevantDocumentsRead, lToken, lLayers, null, lPayload);
+    }
+
+    /**
+     * @return Document with the payload of its payload query, which is cached unless it is stored in chunks
+     */
+    private WikiTextSpanDocument fetchPayload(WikiTextSpanDocument pDocument) throws IOException {
+        Row lRow;
+        try {
+            lRow = pDocument.getPayload().getUninterruptibly().one();
+        }
+        catch (DriverException e) {
+            throw new IOException("Fetching the payload of "+pDocument.getRaw()+" failed: "+e.getMessage(), e);
+        }
+        if (lRow == null) throw new IOException("Document "+pDocument.getRaw()+" has been deleted");
+        // writetime(xmilen),textlen,xmilen,processed,xmi[,casbin][,chunks]
+        ByteBuffer lXMI = lRow.getBytesUnsafe("xmi");
+        ByteBuffer lBinaryCas = lRow.getColumnDefinitions().contains("casbin") ? lRow.getBytesUnsafe("casbin") : null;
+        ChunkInputStream lChunks = null;
+        if (chunkColumn && !lRow.isNull("chunks") && (lRow.getInt("chunks") > 0)) {
+            Statement lStatement = chunksStatement.bind(dbname, pDocument.getRaw(), lRow.getInt("chunks")).setFetchSize(Math.max(1, chunkFetchSize));
+            lChunks = new ChunkInputStream(session, lStatement, lRow.getInt("chunks"), pDocument.getRaw());
+            lXMI = null;
+            lBinaryCas = null;
+        }
+        else {
+            if (lBinaryCas != null) lXMI = null;
+            ByteBuffer lCached = lBinaryCas != null ? lBinaryCas : lXMI;
+            if ((lCached != null) && !lRow.isNull(0)) {
+                cache.put(dbname, pDocument.getRaw(), lRow.getLong(0), lRow.getInt(1), lRow.getInt(2), lRow.getBool(3), lCached, lBinaryCas != null);
+            }
+        }
+        return new WikiTextSpanDocument(pDocument.getRaw(), lXMI, lBinaryCas, pDocument.getXMILength(), pDocument.getDocumentsRead(), pDocument.getRelevantDocumentsRead(), pDocument.getToken(), pDocument.getLayers(), lChunks, null);
+    }
+
+    private static final byte[] LANGUAGE_ATTRIBUTE = " language=\"".getBytes(Charset.forName("UTF-8"));
+
+    /**
+     * @return Value of the first language attribute in the UTF-8 encoded XMI, or null
+     */
+    private static String findLanguage(ByteBuffer pXMI) {
+        int lEnd = pXMI.limit() - LANGUAGE_ATTRIBUTE.length;
+        for (int i=pXMI.position(); i<=lEnd; i++) {
+            int k = 0;
+            while ((k < LANGUAGE_ATTRIBUTE.length) && (pXMI.get(i+k) == LANGUAGE_ATTRIBUTE[k])) k++;
+            if (k == LANGUAGE_ATTRIBUTE.length) {
+                int lStart = i + k;
+                for (int e=lStart; e<pXMI.limit(); e++) {
+                    if (pXMI.get(e) == '"') {
+                        byte[] lValue = new byte[e - lStart];
+                        for (int v=0; v<lValue.length; v++) lValue[v] = pXMI.get(lStart+v);
+                        return new String(lValue, Charset.forName("UTF-8"));
+                    }
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Loads the XMI or binary CAS of the document and its layers into the CAS
+     * @param pSharedData Receives the XMI ids of an XMI document, may be null
+     */
+    private void load(WikiTextSpanDocument pDocument, CAS pCas, XmiSerializationSharedData pSharedData) throws IOException, SAXException {
+        if (pDocument.getPayload() != null) pDocument = fetchPayload(pDocument);
+        if (pDocument.getChunks() != null) {
+            try (ChunkInputStream lChunks = pDocument.getChunks()) {
+                if (lChunks.isBinary()) {
+                    InputStream lInput = new BufferedInputStream(lChunks, 64*1024);
+                    loadBinary(pDocument, lInput, BinaryCasCodec.getTypeSystemHash(lInput), pCas);
+                }
+                else {
+                    loadXMI(pDocument, lChunks, pCas, pSharedData);
+                }
+            }
+        }
+        else if (pDocument.getBinaryCas() != null) {
+            ByteBuffer lBinaryCas = pDocument.getBinaryCas();
+            loadBinary(pDocument, new ByteBufferInputStream(lBinaryCas), BinaryCasCodec.getTypeSystemHash(lBinaryCas), pCas);
+        }
+        else {
+            loadXMI(pDocument, new ByteBufferInputStream(pDocument.getXMI()), pCas, pSharedData);
+        }
+    }
+
+    private void loadXMI(WikiTextSpanDocument pDocument, InputStream pXMI, CAS pCas, XmiSerializationSharedData pSharedData) throws IOException, SAXException {
+        XmiSerializationSharedData lSharedData = pSharedData != null ? pSharedData : new XmiSerializationSharedData();
+        XmiTypeProjection lProjection = getProjection(pCas);
+        if (lProjection != null) {
+            lProjection.deserialize(pXMI, pCas, lSharedData, -1);
+        }
+        else {
+            XmiCasDeserializer.deserialize(pXMI, pCas, false, lSharedData);
+        }
+        if (pDocument.getLayers() != null) {
+            mergeLayers(pDocument, pCas, lSharedData);
+        }
+    }
+
+    private void loadBinary(WikiTextSpanDocument pDocument, InputStream pInput, byte[] pTypeSystemHash, CAS pCas) throws IOException {
+        BinaryCasCodec.deserialize(pInput, typeSystemStore.get(pTypeSystemHash), pCas);
+        if (pDocument.getLayers() != null) {
+            logger.warn("Layers of the binary CAS "+pDocument.getRaw()+" are not supported - Ignoring them");
+        }
+        if ((getProjection(pCas) != null) && !warnedBinaryProjection) {
+            logger.warn("Binary CASes are loaded with all types - Ignoring "+PARAM_KEEPTYPES+" and "+PARAM_DROPTYPES+" for them");
+            warnedBinaryProjection = true;
+        }
+    }
+
+    /**
+     * Merges the layers of the document which are deltas of its current XMI. The merge point of each layer is the
+     * highest XMI id of the document it has been written against, layers of an older version of the document are skipped
+     */
+    private void mergeLayers(WikiTextSpanDocument pDocument, CAS pCas, XmiSerializationSharedData pSharedData) throws IOException, SAXException {
+        List<Row> lLayers = pDocument.getLayers().getUninterruptibly().all();
+        lLayers.sort(Comparator.comparingInt(pRow -> pRow.getInt(1)));
+        for (Row lLayer:lLayers) {
+            int lMergePoint = lLayer.getInt(1);
+            if (lMergePoint != pSharedData.getMaxXmiId()) {
+                logger.warn("Layer "+lLayer.getString(0)+" of "+pDocument.getRaw()+" has been written against another version of the document - Ignoring it");
+            }
+            else if (!lLayer.isNull(2)) {
+                XmiTypeProjection lProjection = getProjection(pCas);
+                if (lProjection != null) {
+                    lProjection.deserialize(new ByteBufferInputStream(lLayer.getBytesUnsafe(2)), pCas, pSharedData, lMergePoint);
+                }
+                else {
+                    XmiCasDeserializer.deserialize(new ByteBufferInputStream(lLayer.getBytesUnsafe(2)), pCas, false, pSharedData, lMergePoint);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Projection of keepTypes and dropTypes onto the type system of the CAS, null if all types are loaded
+     */
+    private XmiTypeProjection getProjection(CAS pCas) throws IOException {
+        if (((keepTypes == null) || (keepTypes.length == 0)) && ((dropTypes == null) || (dropTypes.length == 0))) return null;
+        XmiTypeProjection lProjection = projection;
+        if ((lProjection == null) || (lProjection.getTypeSystem() != pCas.getTypeSystem())) {
+            lProjection = new XmiTypeProjection(pCas.getTypeSystem(), keepTypes, dropTypes);
+            projection = lProjection;
+        }
+        return lProjection;
+    }
+
+    private void prefetch() throws CollectionException {
+        if (deserializerThreads <= 0) {
+            next = prefetcher.take();
+        }
+        else {
+            // Keep a window of documents in scan order whose XMI is parsed by the deserializer
+            WikiTextSpanDocument lDocument = null;
+            while ((pendingDocuments.size() < 2*deserializerThreads) && ((lDocument = prefetcher.take()) != null)) {
+                pendingDocuments.addLast(new PendingDocument(lDocument));
+            }
+            if (deserializer != null) {
+                for (PendingDocument lPending:pendingDocuments) {
+                    if ((lPending.binaryCas == null) && lPending.document.hasPayload()) {
+                        WikiTextSpanDocument lPendingDocument = lPending.document;
+                        // Loading the blob keeps the addresses of the worker CAS, so its XMI ids stay valid
+                        XmiSerializationSharedData lSharedData = trackDelta && (lPendingDocument.getBinaryCas() == null) ? new XmiSerializationSharedData() : null;
+                        lPending.sharedData = lSharedData;
+                        lPending.binaryCas = deserializer.submit(lCas -> load(lPendingDocument, lCas, lSharedData));
                     }
                 }
-                lFoundOne = true;
-                next = new String[]{lKey, lXMI, lXMILength};
-                prefetchRelevantDocumentsRead++;
             }
-            prefetchDocumentsRead++;
+            next = pendingDocuments.isEmpty() ? null : pendingDocuments.peekFirst().document;
         }
     }
 
+    private void logSummary() {
+        Snapshot lSizes = xmiLengthHistogram.getSnapshot();
+        logger.info(String.format(Locale.ROOT, "Documents Read: %d, Documents Relevant: %d of %s%d, %.1f documents/sec, %.2f MB/sec, Rows rejected: %d, Time waited for documents to be fetched: %dms, Sizes: p50=%.0f, p99=%.0f, max=%d bytes",
+                documentsRead.get(), getCompleted(), approximateTotal ? "~" : "", getTotal(), documentsMeter.getOneMinuteRate(), bytesReadMeter.getOneMinuteRate() / 1e6, rowsRejected.getCount(), getFetchWaitMillis(),
+                lSizes.getMedian(), lSizes.get99thPercentile(), lSizes.getMax()));
+    }
+
+    /**
+     * @return Total time in milliseconds getNext(CAS) and hasNext() blocked waiting for documents to be fetched
+     */
+    public long getFetchWaitMillis() {
+        DocumentPrefetcher lPrefetcher = prefetcher;
+        return lPrefetcher != null ? lPrefetcher.getWaitNanos() / 1000000 : 0;
+    }
+
     @Override
     public void destroy() {
         try {
@@ -185,73 +1290,276 @@ public class WikiDragonCassandraCollectionReader extends CasCollectionReader_Imp
         }
     }
 
+    /**
+     * The pipeline is done with all delivered documents once it closes the reader
+     */
     @Override
     public void close() throws IOException {
+        close(true);
+    }
+
+    /**
+     * @param pPipelineDone False if the reader closes itself once the scan is exhausted, while the documents of the
+     *                      CASes may still be processed. The checkpoint is then only committed and stays open until
+     *                      the pipeline closes the reader, unless all delivered documents have been completed
+     */
+    private void close(boolean pPipelineDone) throws IOException {
         super.close();
+        closed = true;
+        if (deserializer != null) {
+            deserializer.close();
+            deserializer = null;
+        }
+        pendingDocuments.clear();
+        if (prefetcher != null) {
+            logSummary();
+            prefetcher.close();
+            prefetcher = null;
+        }
+        closeScan(resultSet);
+        resultSet = null;
+        if (countThread != null) {
+            countThread.interrupt();
+            countThread = null;
+        }
+        synchronized (this) {
+            if (checkpoint != null) {
+                if (exhausted && pPipelineDone) {
+                    for (Token lToken:casTokens.values()) checkpoint.complete(lToken);
+                    casTokens.clear();
+                }
+                if (exhausted && casTokens.isEmpty()) {
+                    checkpoint.markComplete(documentsRead.get(), relevantDocumentsRead.get());
+                    checkpoint.close();
+                    checkpoint = null;
+                }
+                else {
+                    checkpoint.commit(documentsRead.get(), relevantDocumentsRead.get());
+                    if (pPipelineDone) {
+                        checkpoint.close();
+                        checkpoint = null;
+                    }
+                }
+            }
+            if (pPipelineDone) casTokens.clear();
+        }
+        if (cache != null) {
+            logger.info("Document cache "+cache.getFile()+" - Hits: "+cacheHits.getCount()+", Misses: "+cacheMisses.getCount()+", Documents: "+cache.size());
+            cache.close();
+            cache = null;
+        }
+        if (leases != null) {
+            logger.info("Documents leased by other workers: "+leasesRejected.getCount());
+            leases = null;
+        }
+        if (metrics != null) {
+            WikiDragonMetrics.removeFromSum(metrics, MetricRegistry.name(WikiDragonCassandraCollectionReader.class, "leasesRejected"), leasesRejectedGauge);
+            WikiDragonMetrics.release(metricRegistry);
+            metrics = null;
+        }
         if (session != null) {
-            logger.info("Closing Cassandra Session of WikiDragonCassandraCollectionReader...");
-            session.close();
+            logger.info("Releasing Cassandra Session of WikiDragonCassandraCollectionReader...");
+            connectionProvider.release(session);
             session = null;
-            logger.info("Closing Cassandra Session of WikiDragonCassandraCollectionReader... Done");
-        }
-        if (cluster != null) {
-            logger.info("Closing Cassandra Cluster of WikiDragonCassandraCollectionReader...");
-            cluster.close();
             cluster = null;
-            logger.info("Closing Cassandra Cluster of WikiDragonCassandraCollectionReader... Done");
+            logger.info("Releasing Cassandra Session of WikiDragonCassandraCollectionReader... Done");
         }
     }
 
     @Override
     public void getNext(CAS cas) throws IOException, CollectionException {
-        documentsRead = prefetchDocumentsRead;
-        relevantDocumentsRead = prefetchRelevantDocumentsRead;
-        if (next != null) {
-            byte[] lBytes = next[1] != null ? next[1].getBytes(Charset.forName("UTF-8")) : null;
-            prefetch();
-            if (cas != null) {
+        if (concurrentConsumers) {
+            WikiTextSpanDocument lDocument = reserved.get();
+            if (lDocument != null) {
+                reserved.remove();
+            }
+            else {
+                lDocument = reserve();
+            }
+            if (lDocument != null) {
                 try {
-                    XmiCasDeserializer.deserialize(new ByteArrayInputStream(lBytes), cas, false);
-                    Collection<DocumentMetaData> lDocumentMetaDataCollection = JCasUtil.select(cas.getJCas(), DocumentMetaData.class);
-                    // Patch DocumentMetaData.DocumentTitle and DocumentMetaData.DocumentId if they are missing
-                    if (lDocumentMetaDataCollection.size() > 1) {
-                        throw new CollectionException(new IOException("Count of DocumentMetaData is > 1 : "+lDocumentMetaDataCollection.size()));
-                    }
-                    else if (lDocumentMetaDataCollection.size() == 1) {
-                        DocumentMetaData lDocumentMetaData = lDocumentMetaDataCollection.iterator().next();
-                        if ((lDocumentMetaData.getDocumentTitle() == null) || (lDocumentMetaData.getDocumentTitle().length() == 0)) {
-                            lDocumentMetaData.setDocumentTitle(documentsRead + ".xmi");
-                        }
-                        if ((lDocumentMetaData.getDocumentId() == null) || (lDocumentMetaData.getDocumentId().length() == 0)) {
-                            lDocumentMetaData.setDocumentId(documentsRead + ".xmi");
-                        }
-                    }
-                    else {
-                        DocumentMetaData lDocumentMetaData = new DocumentMetaData(cas.getJCas(), 0, cas.getDocumentText().length());
-                        lDocumentMetaData.setDocumentTitle(documentsRead + ".xmi");
-                        lDocumentMetaData.setDocumentId(documentsRead + ".xmi");
-                    }
+                    updateProgress(lDocument);
+                    completePreviousDocument(cas, lDocument);
+                    deliver(lDocument, cas, null, null);
                 }
-                catch (CASException e) {
-                    throw new IOException("Invalid XMI: " + e.getMessage(), e);
+                finally {
+                    releaseDocument();
                 }
-                catch (SAXException e) {
-                    throw new IOException("Invalid XMI: " + e.getMessage(), e);
+            }
+        }
+        else if (next != null) {
+            WikiTextSpanDocument lDocument = next;
+            deliverCheckpoint(lDocument);
+            updateProgress(lDocument);
+            completePreviousDocument(cas, lDocument);
+            Future<byte[]> lBinaryCas = null;
+            XmiSerializationSharedData lSharedData = null;
+            if (deserializerThreads > 0) {
+                if ((deserializer == null) && (cas != null)) {
+                    deserializer = new ParallelXmiDeserializer(cas.getTypeSystem(), deserializerThreads);
                 }
+                PendingDocument lPending = pendingDocuments.pollFirst();
+                lBinaryCas = lPending.binaryCas;
+                lSharedData = lPending.sharedData;
             }
+            prefetch();
+            deliver(lDocument, cas, lBinaryCas, lSharedData);
         }
         else {
-            if (!currentlyInComputePooledDocumentsRelevant) close();
+            exhausted = true;
+            close(false);
+        }
+    }
+
+    /**
+     * Takes the next document for a concurrent consumer. It counts as active until releaseDocument() is called
+     * @return The document or null if the scan is exhausted
+     */
+    private WikiTextSpanDocument reserve() throws IOException, CollectionException {
+        DocumentPrefetcher lPrefetcher = prefetcher;
+        if (lPrefetcher == null) return null;
+        activeDocuments.incrementAndGet();
+        WikiTextSpanDocument lDocument = null;
+        try {
+            // The checkpoint requires the documents in the order of the scan, which is the order they are taken in
+            synchronized (takeLock) {
+                lDocument = lPrefetcher.take();
+                if (lDocument != null) deliverCheckpoint(lDocument);
+            }
+        }
+        finally {
+            if (lDocument == null) {
+                exhausted = true;
+                releaseDocument();
+            }
+        }
+        return lDocument;
+    }
+
+    /**
+     * Closes the reader once the scan is exhausted and no consumer loads a document anymore, whose layers, chunks or
+     * payload may still be fetched
+     */
+    private void releaseDocument() throws IOException {
+        if ((activeDocuments.decrementAndGet() == 0) && exhausted) {
+            synchronized (this) {
+                if (prefetcher != null) close(false);
+            }
+        }
+    }
+
+    private synchronized void deliverCheckpoint(WikiTextSpanDocument pDocument) {
+        if ((checkpoint != null) && (pDocument.getToken() != null)) checkpoint.deliver(pDocument.getToken());
+    }
+
+    /**
+     * Completes the document the CAS has been loaded with before, the pipeline is done with it once the CAS is
+     * loaded again
+     */
+    private synchronized void completePreviousDocument(CAS pCas, WikiTextSpanDocument pDocument) {
+        Token lPrevious = pDocument.getToken() != null ? casTokens.put(pCas, pDocument.getToken()) : casTokens.remove(pCas);
+        if ((checkpoint != null) && (lPrevious != null)) checkpoint.complete(lPrevious);
+    }
+
+    /**
+     * Advances the progress counters and commits the checkpoint in its interval
+     */
+    private void updateProgress(WikiTextSpanDocument pDocument) {
+        // Concurrent consumers may deliver the documents slightly out of order, the counters keep the highest count
+        documentsRead.accumulateAndGet(documentsReadOffset + pDocument.getDocumentsRead(), Math::max);
+        relevantDocumentsRead.accumulateAndGet(relevantDocumentsReadOffset + pDocument.getRelevantDocumentsRead(), Math::max);
+        synchronized (this) {
+            if (checkpoint != null) {
+                if (System.currentTimeMillis() - checkpointTime >= checkpointIntervalSeconds * 1000L) {
+                    checkpoint.commit(documentsRead.get(), relevantDocumentsRead.get());
+                    checkpointTime = System.currentTimeMillis();
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the document into the CAS
+     * @param pBinaryCas Document as parsed by the deserializer, null to load it on the calling thread
+     * @param pSharedData XMI ids of the document as parsed by the deserializer
+     */
+    private void deliver(WikiTextSpanDocument pDocument, CAS pCas, Future<byte[]> pBinaryCas, XmiSerializationSharedData pSharedData) throws IOException, CollectionException {
+        documentsMeter.mark();
+        bytesReadMeter.mark(pDocument.getXMI() != null ? pDocument.getXMI().remaining() : pDocument.getBinaryCas() != null ? pDocument.getBinaryCas().remaining() : pDocument.hasPayload() ? pDocument.getXMILength() : 0);
+        long lLogTime = logTime.get();
+        if ((System.currentTimeMillis() - lLogTime >= logIntervalSeconds * 1000L) && logTime.compareAndSet(lLogTime, System.currentTimeMillis())) {
+            logSummary();
+        }
+        if (pCas != null) {
+            // The writer releases the lease, which is extended while the document is processed
+            if (leases != null) DocumentLeases.register(pCas, leases.deliver(pDocument.getRaw()));
+            XmiSerializationSharedData lSharedData = pSharedData;
+            Timer.Context lDeserializeTime = deserializeTimer.time();
+            try {
+                if ((pBinaryCas != null) && (pCas.getTypeSystem() == deserializer.getTypeSystem())) {
+                    deserializer.load(pBinaryCas, pCas);
+                }
+                else {
+                    lSharedData = trackDelta && (pDocument.getBinaryCas() == null) ? new XmiSerializationSharedData() : null;
+                    load(pDocument, pCas, lSharedData);
+                }
+                patchDocumentMetaData(pCas, documentsReadOffset + pDocument.getDocumentsRead());
+                // Shared data which has not been filled belongs to a binary CAS which has been stored in chunks or fetched by key
+                if ((lSharedData != null) && (lSharedData.getMaxXmiId() > 0)) {
+                    DeltaCasRegistry.register(pCas, lSharedData);
+                }
+            }
+            catch (CASException e) {
+                throw new IOException("Invalid XMI: " + e.getMessage(), e);
+            }
+            catch (SAXException e) {
+                throw new IOException("Invalid XMI: " + e.getMessage(), e);
+            }
+            finally {
+                lDeserializeTime.stop();
+            }
+        }
+    }
+
+    /**
+     * Patches DocumentMetaData.DocumentTitle and DocumentMetaData.DocumentId if they are missing
+     */
+    static void patchDocumentMetaData(CAS pCas, long pDocumentsRead) throws CASException, CollectionException {
+        Collection<DocumentMetaData> lDocumentMetaDataCollection = JCasUtil.select(pCas.getJCas(), DocumentMetaData.class);
+        if (lDocumentMetaDataCollection.size() > 1) {
+            throw new CollectionException(new IOException("Count of DocumentMetaData is > 1 : "+lDocumentMetaDataCollection.size()));
+        }
+        else if (lDocumentMetaDataCollection.size() == 1) {
+            DocumentMetaData lDocumentMetaData = lDocumentMetaDataCollection.iterator().next();
+            if ((lDocumentMetaData.getDocumentTitle() == null) || (lDocumentMetaData.getDocumentTitle().length() == 0)) {
+                lDocumentMetaData.setDocumentTitle(pDocumentsRead + ".xmi");
+            }
+            if ((lDocumentMetaData.getDocumentId() == null) || (lDocumentMetaData.getDocumentId().length() == 0)) {
+                lDocumentMetaData.setDocumentId(pDocumentsRead + ".xmi");
+            }
+        }
+        else {
+            DocumentMetaData lDocumentMetaData = new DocumentMetaData(pCas.getJCas(), 0, pCas.getDocumentText().length());
+            lDocumentMetaData.setDocumentTitle(pDocumentsRead + ".xmi");
+            lDocumentMetaData.setDocumentId(pDocumentsRead + ".xmi");
         }
     }
 
     @Override
     public boolean hasNext() throws IOException, CollectionException {
-        if (next != null) {
+        if (concurrentConsumers) {
+            if (reserved.get() != null) return true;
+            WikiTextSpanDocument lDocument = reserve();
+            if (lDocument == null) return false;
+            reserved.set(lDocument);
+            return true;
+        }
+        else if (next != null) {
             return true;
         }
         else {
-            if (!currentlyInComputePooledDocumentsRelevant) close();
+            exhausted = true;
+            close(false);
             return false;
         }
     }
@@ -263,12 +1571,13 @@ public class WikiDragonCassandraCollectionReader extends CasCollectionReader_Imp
 
     @Override
     public long getCompleted() {
-        return relevantDocumentsRead;
+        // Documents which another worker has leased are relevant, but skipped
+        return relevantDocumentsRead.get() + leasesRejected.getCount();
     }
 
     @Override
     public long getTotal() {
-        return relevantDocumentsTotal;
+        return approximateTotal ? Math.max(relevantDocumentsTotal, getCompleted()) : relevantDocumentsTotal;
     }
 
     @Override
@@ -278,7 +1587,7 @@ public class WikiDragonCassandraCollectionReader extends CasCollectionReader_Imp
 
     @Override
     public boolean isApproximate() {
-        return false;
+        return approximateTotal;
     }
 
 }
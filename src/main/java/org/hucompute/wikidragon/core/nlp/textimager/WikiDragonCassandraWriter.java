@@ -1,20 +1,33 @@
 package org.hucompute.wikidragon.core.nlp.textimager;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import com.codahale.metrics.*;
+import com.codahale.metrics.Timer;
 import com.datastax.driver.core.*;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.uima.UimaContext;
 import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.TypeSystem;
 import org.apache.uima.cas.impl.XCASSerializer;
 import org.apache.uima.cas.impl.XmiCasSerializer;
 import org.apache.uima.collection.CollectionException;
 import org.apache.uima.fit.component.JCasConsumer_ImplBase;
 import org.apache.uima.fit.descriptor.ConfigurationParameter;
+import org.apache.uima.fit.descriptor.ExternalResource;
 import org.apache.uima.fit.util.JCasUtil;
 import org.apache.uima.jcas.JCas;
 import org.apache.uima.resource.ResourceInitializationException;
@@ -25,6 +38,27 @@ import org.xml.sax.SAXException;
 
 public class WikiDragonCassandraWriter extends JCasConsumer_ImplBase {
 
+    /**
+     * Output buffers which have grown beyond this capacity are not reused
+     */
+    private static final int MAX_POOLED_BUFFER_CAPACITY = 64*1024*1024;
+
+    /**
+     * Table of the annotation layers of the documents, which are XMI deltas of the document in wikitextspannlp
+     */
+    public static final String LAYERS_TABLE = "wikitextspannlp_layers";
+
+    /**
+     * Table of the payloads of documents which are stored in chunks, see PARAM_CHUNKTHRESHOLD
+     */
+    public static final String CHUNKS_TABLE = "wikitextspannlp_chunks";
+
+    /**
+     * XMI: Store XMI text in the xmi column.
+     * BINARY, BINARY_LZ4, BINARY_XZ: Store a compressed binary CAS (see BinaryCasCodec) in the casbin column.
+     */
+    public enum StorageFormat {XMI, BINARY, BINARY_LZ4, BINARY_XZ};
+
     private static Logger logger = LogManager.getLogger(WikiDragonCassandraCollectionReader.class);
 
     public static final String PARAM_KEYSPACE = "keyspace";
@@ -36,36 +70,371 @@ public class WikiDragonCassandraWriter extends JCasConsumer_ImplBase {
     private String dbname;
 
     public static final String PARAM_USER = "user";
-    @ConfigurationParameter(name=PARAM_USER, mandatory=true)
+    @ConfigurationParameter(name=PARAM_USER, mandatory=false)
     private String user;
 
     public static final String PARAM_PASSWORD = "password";
-    @ConfigurationParameter(name=PARAM_PASSWORD, mandatory=true)
+    @ConfigurationParameter(name=PARAM_PASSWORD, mandatory=false)
     private String password;
 
     public static final String PARAM_CONTACTHOSTS = "contactHosts";
-    @ConfigurationParameter(name=PARAM_CONTACTHOSTS, mandatory=true)
+    @ConfigurationParameter(name=PARAM_CONTACTHOSTS, mandatory=false)
     private String[] contactHosts;
 
+    /**
+     * Shared connection. If it is not bound, contactHosts, user and password are mandatory
+     */
+    public static final String RES_CONNECTION = "connection";
+    @ExternalResource(key=RES_CONNECTION, mandatory=false)
+    private CassandraConnectionProvider connectionProvider;
+
+    /**
+     * Store which is written instead of a Cassandra connection, e.g. SimulatedWikiTextSpanStore
+     */
+    public static final String RES_STORE = "store";
+    @ExternalResource(key=RES_STORE, mandatory=false)
+    private WikiTextSpanStore store;
+
+    /**
+     * Maximal count of updates which are in flight at the same time
+     */
+    public static final String PARAM_MAXINFLIGHTWRITES = "maxInFlightWrites";
+    @ConfigurationParameter(name=PARAM_MAXINFLIGHTWRITES, mandatory=false, defaultValue="32")
+    private int maxInFlightWrites;
+
+    /**
+     * Group the updates of a document which share a partition into unlogged batches
+     */
+    public static final String PARAM_GROUPPARTITIONWRITES = "groupPartitionWrites";
+    @ConfigurationParameter(name=PARAM_GROUPPARTITIONWRITES, mandatory=false, defaultValue="false")
+    private boolean groupPartitionWrites;
+
+    public static final String PARAM_STORAGEFORMAT = "storageFormat";
+    @ConfigurationParameter(name=PARAM_STORAGEFORMAT, mandatory=false, defaultValue="XMI")
+    private StorageFormat storageFormat;
+
+    /**
+     * Name of the annotation layer the document is written to. If it is set, only the annotations the pipeline has
+     * added since the document has been loaded are stored as XMI delta in wikitextspannlp_layers, which requires
+     * WikiDragonCassandraCollectionReader.PARAM_TRACKDELTA. The annotations of a layer may refer to the annotations
+     * of the stored document, but not to those of other layers. Documents without a tracked delta are written as a whole
+     */
+    public static final String PARAM_LAYER = "layer";
+    @ConfigurationParameter(name=PARAM_LAYER, mandatory=false)
+    private String layer;
+
+    /**
+     * Layered storage: the added annotations are split into one layer per mapping of the form layer=type1,type2,...
+     * (see XmiLayerSplitter). Annotations of unmapped types go to the layer of PARAM_LAYER, or are not stored if it
+     * is not set. All layers of the mappings are written for each document, other layers and the text are not touched
+     */
+    public static final String PARAM_LAYERTYPES = "layerTypes";
+    @ConfigurationParameter(name=PARAM_LAYERTYPES, mandatory=false)
+    private String[] layerTypes;
+
+    /**
+     * Payloads of more bytes are split into chunks of chunkSize bytes which are stored in wikitextspannlp_chunks.
+     * The row in wikitextspannlp keeps the count of chunks and is updated after all chunks have been written.
+     * 0 disables chunked storage
+     */
+    public static final String PARAM_CHUNKTHRESHOLD = "chunkThreshold";
+    @ConfigurationParameter(name=PARAM_CHUNKTHRESHOLD, mandatory=false, defaultValue="0")
+    private int chunkThreshold;
+
+    public static final String PARAM_CHUNKSIZE = "chunkSize";
+    @ConfigurationParameter(name=PARAM_CHUNKSIZE, mandatory=false, defaultValue="1048576")
+    private int chunkSize;
+
+    /**
+     * MapDB file of a write-behind journal (see WriteJournal). Not set writes the documents directly. With a journal
+     * process() returns once the document has been committed to the journal, failed writes are retried until they
+     * succeed, and entries left by a previous run are written first
+     */
+    public static final String PARAM_JOURNALFILE = "journalFile";
+    @ConfigurationParameter(name=PARAM_JOURNALFILE, mandatory=false)
+    private String journalFile;
+
+    public static final String PARAM_JOURNALRETRYDELAYMILLIS = "journalRetryDelayMillis";
+    @ConfigurationParameter(name=PARAM_JOURNALRETRYDELAYMILLIS, mandatory=false, defaultValue="5000")
+    private int journalRetryDelayMillis;
+
+    /**
+     * Maximal time to wait for the journal to be written at the end of the collection. Remaining entries are written
+     * when the journal is opened again
+     */
+    public static final String PARAM_JOURNALDRAINTIMEOUTSECONDS = "journalDrainTimeoutSeconds";
+    @ConfigurationParameter(name=PARAM_JOURNALDRAINTIMEOUTSECONDS, mandatory=false, defaultValue="300")
+    private int journalDrainTimeoutSeconds;
+
+    /**
+     * Name of the metric registry which is shared with other components (see WikiDragonMetrics) and published via JMX
+     */
+    public static final String PARAM_METRICREGISTRY = "metricRegistry";
+    @ConfigurationParameter(name=PARAM_METRICREGISTRY, mandatory=false, defaultValue="wikidragon")
+    private String metricRegistry;
+
+    /**
+     * Directory of a CSV reporter of the metrics. Not set disables it
+     */
+    public static final String PARAM_METRICSCSVDIRECTORY = "metricsCsvDirectory";
+    @ConfigurationParameter(name=PARAM_METRICSCSVDIRECTORY, mandatory=false)
+    private String metricsCsvDirectory;
+
+    public static final String PARAM_METRICSCONSOLE = "metricsConsole";
+    @ConfigurationParameter(name=PARAM_METRICSCONSOLE, mandatory=false, defaultValue="false")
+    private boolean metricsConsole;
+
+    public static final String PARAM_METRICSREPORTINTERVALSECONDS = "metricsReportIntervalSeconds";
+    @ConfigurationParameter(name=PARAM_METRICSREPORTINTERVALSECONDS, mandatory=false, defaultValue="60")
+    private int metricsReportIntervalSeconds;
+
+    /**
+     * Interval of the progress summaries in the log
+     */
+    public static final String PARAM_LOGINTERVALSECONDS = "logIntervalSeconds";
+    @ConfigurationParameter(name=PARAM_LOGINTERVALSECONDS, mandatory=false, defaultValue="60")
+    private int logIntervalSeconds;
+
     private Cluster cluster;
     private Session session;
+    private TypeSystemStore typeSystemStore;
     private PreparedStatement preparedStatement;
+    private PreparedStatement layerStatement;
+    private PreparedStatement processedStatement;
+    private PreparedStatement chunkStatement;
+    private PreparedStatement chunkHeaderStatement;
+    private PreparedStatement chunkCleanupStatement;
+    private PreparedStatement chunkedStatement;
+    private PreparedStatement pendingStatement;
+    private volatile PreparedStatement leaseStatement;
+    /**
+     * Leases of the documents in the journal by raw
+     */
+    private final Map<String, DocumentLeases.Lease> journalLeases = new ConcurrentHashMap<>();
+    private boolean warnedMissingDelta;
+    private XmiLayerSplitter layerSplitter;
+    private AsyncStatementWriter asyncWriter;
+    private WriteJournal journal;
+    private final BlockingQueue<ReusableByteArrayOutputStream> outputBuffers = new LinkedBlockingQueue<>();
     private long written = 0;
+    private MetricRegistry metrics;
+    private Meter documentsMeter;
+    private Meter bytesWrittenMeter;
+    private Timer serializeTimer;
+    private Timer writeLatency;
+    private final Gauge<Integer> inFlightWritesGauge = () -> asyncWriter != null ? asyncWriter.getInFlight() : 0;
+    private final Gauge<Integer> journalEntriesGauge = () -> journal != null ? journal.size() : 0;
+    private long logTime;
 
     private void init() throws CollectionException, IOException {
-        Cluster.Builder lBuilder = Cluster.builder();
-        for (String lHost:contactHosts) {
-            lBuilder.addContactPoint(lHost);
-        }
-        lBuilder.withCredentials(user, password);
-        lBuilder.getConfiguration().getQueryOptions().setConsistencyLevel(ConsistencyLevel.ANY);
-        lBuilder.getConfiguration().getSocketOptions().setConnectTimeoutMillis(30000); // Default: 5000
-        lBuilder.getConfiguration().getSocketOptions().setReadTimeoutMillis(30000); // Default 12000
-        cluster = lBuilder.build();
-        session = cluster.connect();
-        session.execute("use "+keyspace);
-        preparedStatement = session.prepare("UPDATE wikitextspannlp SET xmi=?, xmilen=?, processed=True WHERE dbname=? AND raw=?");
+        metrics = WikiDragonMetrics.acquire(metricRegistry, metricsCsvDirectory, metricsConsole, metricsReportIntervalSeconds);
+        documentsMeter = metrics.meter(MetricRegistry.name(WikiDragonCassandraWriter.class, "documents"));
+        bytesWrittenMeter = metrics.meter(MetricRegistry.name(WikiDragonCassandraWriter.class, "bytesWritten"));
+        serializeTimer = metrics.timer(MetricRegistry.name(WikiDragonCassandraWriter.class, "serialize"));
+        writeLatency = metrics.timer(MetricRegistry.name(WikiDragonCassandraWriter.class, "writeLatency"));
+        // Writers which share the registry, e.g. of several pipelines, report the sum of their writes in flight
+        WikiDragonMetrics.addToSum(metrics, MetricRegistry.name(WikiDragonCassandraWriter.class, "inFlightWrites"), inFlightWritesGauge);
+        logTime = System.currentTimeMillis();
+        if (store != null) {
+            typeSystemStore = store.getTypeSystemStore();
+            asyncWriter = new AsyncStatementWriter(null, maxInFlightWrites, false, writeLatency);
+            written = 0;
+            if ((layer != null) || isLayered()) {
+                logger.warn("Layers of a WikiTextSpanStore are not supported - Ignoring "+PARAM_LAYER+" and "+PARAM_LAYERTYPES);
+                layer = null;
+                layerTypes = null;
+            }
+            if (chunkThreshold > 0) {
+                logger.warn("Chunks of a WikiTextSpanStore are not supported - Ignoring "+PARAM_CHUNKTHRESHOLD);
+                chunkThreshold = 0;
+            }
+            initJournal();
+            return;
+        }
+        if (connectionProvider == null) {
+            if ((contactHosts == null) || (user == null) || (password == null)) {
+                throw new IOException("Neither a connection or store is bound nor contactHosts, user and password are set");
+            }
+            connectionProvider = new CassandraConnectionProvider(contactHosts, user, password);
+        }
+        session = connectionProvider.connect(keyspace);
+        cluster = session.getCluster();
+        WikiDragonMetrics.registerCluster(metrics, cluster);
+        boolean lBinaryColumn = cluster.getMetadata().getKeyspace(keyspace).getTable("wikitextspannlp").getColumn("casbin") != null;
+        boolean lChunksColumn = cluster.getMetadata().getKeyspace(keyspace).getTable("wikitextspannlp").getColumn("chunks") != null;
+        if ((chunkThreshold > 0) && (chunkSize <= 0)) {
+            throw new IOException(PARAM_CHUNKSIZE+" has to be positive");
+        }
+        if ((chunkThreshold > 0) && !lChunksColumn) {
+            logger.info("Adding column chunks to wikitextspannlp");
+            session.execute("ALTER TABLE wikitextspannlp ADD chunks int");
+            lChunksColumn = true;
+        }
+        // Documents which are written as a whole replace older chunks
+        String lClearChunks = lChunksColumn ? ", chunks=null" : "";
+        if (storageFormat == StorageFormat.XMI) {
+            // Clear an older binary CAS, the reader prefers it over the XMI
+            preparedStatement = session.prepare("UPDATE wikitextspannlp SET xmi=?, xmilen=?, processed=True"+(lBinaryColumn ? ", casbin=null" : "")+lClearChunks+" WHERE dbname=? AND raw=?");
+        }
+        else {
+            if (!lBinaryColumn) {
+                logger.info("Adding column casbin to wikitextspannlp");
+                session.execute("ALTER TABLE wikitextspannlp ADD casbin blob");
+            }
+            TypeSystemStore.createTable(session);
+            typeSystemStore = new TypeSystemStore(session);
+            preparedStatement = session.prepare("UPDATE wikitextspannlp SET casbin=?, xmilen=?, xmi=null, processed=True"+lClearChunks+" WHERE dbname=? AND raw=?");
+            lBinaryColumn = true;
+        }
+        // Rewriting the same values is harmless, which allows retries and speculative executions of the updates.
+        // The partition key is bound, so token-aware routing sends each update to a replica.
+        preparedStatement.setIdempotent(true);
+        // Fail early on invalid mappings, the types are resolved with the first CAS
+        XmiLayerSplitter.parseLayerTypes(layerTypes);
+        layerSplitter = null;
+        if ((layer != null) || isLayered()) {
+            createLayersTable(session);
+            layerStatement = session.prepare("UPDATE "+LAYERS_TABLE+" SET mergepoint=?, xmi=?, xmilen=? WHERE dbname=? AND raw=? AND layer=?");
+            layerStatement.setIdempotent(true);
+            processedStatement = session.prepare("UPDATE wikitextspannlp SET processed=True WHERE dbname=? AND raw=?");
+            processedStatement.setIdempotent(true);
+        }
+        if (chunkThreshold > 0) {
+            createChunksTable(session);
+            chunkStatement = session.prepare("UPDATE "+CHUNKS_TABLE+" SET data=? WHERE dbname=? AND raw=? AND chunk=?");
+            chunkStatement.setIdempotent(true);
+            chunkHeaderStatement = session.prepare("UPDATE "+CHUNKS_TABLE+" SET binary=? WHERE dbname=? AND raw=?");
+            chunkHeaderStatement.setIdempotent(true);
+            // Chunks of an older, larger version of the document
+            chunkCleanupStatement = session.prepare("DELETE FROM "+CHUNKS_TABLE+" WHERE dbname=? AND raw=? AND chunk>=?");
+            chunkCleanupStatement.setIdempotent(true);
+            chunkedStatement = session.prepare("UPDATE wikitextspannlp SET xmi=null"+(lBinaryColumn ? ", casbin=null" : "")+", chunks=?, xmilen=?, processed=True WHERE dbname=? AND raw=?");
+            chunkedStatement.setIdempotent(true);
+        }
+        // The pending work queue is maintained once it has been created, see PendingWorkQueue.backfill
+        pendingStatement = null;
+        if (PendingWorkQueue.exists(session)) {
+            logger.info("Removing written documents from "+PendingWorkQueue.TABLE);
+            pendingStatement = PendingWorkQueue.prepareRemove(session);
+        }
+        warnedMissingDelta = false;
+        asyncWriter = new AsyncStatementWriter(session, maxInFlightWrites, groupPartitionWrites, writeLatency);
         written = 0;
+        initJournal();
+    }
+
+    private void initJournal() throws IOException {
+        if (journalFile == null) return;
+        journal = new WriteJournal(new File(journalFile), keyspace+"|"+dbname+"|"+storageFormat+"|"+((layer != null) || isLayered() ? "layers" : "documents"), this::writeEntry, maxInFlightWrites, journalRetryDelayMillis, writeLatency);
+        WikiDragonMetrics.addToSum(metrics, MetricRegistry.name(WikiDragonCassandraWriter.class, "journalEntries"), journalEntriesGauge);
+    }
+
+    private boolean isLayered() {
+        return (layerTypes != null) && (layerTypes.length > 0);
+    }
+
+    public static void createLayersTable(Session pSession) {
+        pSession.execute("create table if not exists "+LAYERS_TABLE+" (dbname text, raw text, layer text, mergepoint int, xmi text, xmilen int, primary key ((dbname, raw), layer))");
+    }
+
+    public static void createChunksTable(Session pSession) {
+        pSession.execute("create table if not exists "+CHUNKS_TABLE+" (dbname text, raw text, chunk int, binary boolean static, data blob, primary key ((dbname, raw), chunk))");
+    }
+
+    /**
+     * Writes the payload in chunks, followed by the row of the document which refers to them. The chunks are
+     * written concurrently, so the whole document takes one permit of the AsyncStatementWriter
+     * @param pTimestamp Write timestamp in microseconds, Long.MIN_VALUE for the time of the write
+     */
+    private ListenableFuture<?> writeChunks(String pUID, ByteBuffer pPayload, boolean pBinary, long pTimestamp) {
+        int lCount = (pPayload.remaining() + chunkSize - 1) / chunkSize;
+        List<ListenableFuture<ResultSet>> lFutures = new ArrayList<>();
+        lFutures.add(session.executeAsync(chunkHeaderStatement.bind(pBinary, dbname, pUID).setDefaultTimestamp(pTimestamp)));
+        lFutures.add(session.executeAsync(chunkCleanupStatement.bind(dbname, pUID, lCount).setDefaultTimestamp(pTimestamp)));
+        for (int i=0; i<lCount; i++) {
+            ByteBuffer lChunk = pPayload.duplicate();
+            lChunk.position(pPayload.position() + i*chunkSize);
+            lChunk.limit(Math.min(pPayload.limit(), lChunk.position() + chunkSize));
+            BoundStatement lStatement = chunkStatement.bind();
+            lStatement.setBytesUnsafe(0, lChunk);
+            lStatement.setString(1, dbname);
+            lStatement.setString(2, pUID);
+            lStatement.setInt(3, i);
+            lStatement.setDefaultTimestamp(pTimestamp);
+            lFutures.add(session.executeAsync(lStatement));
+        }
+        return Futures.transformAsync(Futures.allAsList(lFutures), r -> session.executeAsync(chunkedStatement.bind(lCount, pPayload.remaining(), dbname, pUID).setDefaultTimestamp(pTimestamp)));
+    }
+
+    /**
+     * @param pLease Lease of the document, may be null
+     * @return True if the written document has to be removed from the pending work queue or its lease released
+     */
+    private boolean hasCompletion(DocumentLeases.Lease pLease) {
+        return (pendingStatement != null) || (pLease != null);
+    }
+
+    /**
+     * @return Lease of the document in the CAS (see DocumentLeases), or null if it is not leased or of another table
+     */
+    private DocumentLeases.Lease takeLease(JCas pJCas, String pUID) {
+        DocumentLeases.Lease lLease = DocumentLeases.take(pJCas.getCas());
+        return (session != null) && (lLease != null) && lLease.isOf(keyspace, dbname, pUID) ? lLease : null;
+    }
+
+    /**
+     * Removes the document from the pending work queue and releases its lease once the write which sets processed
+     * has succeeded. A failed write keeps both. A lease which cannot be released expires
+     * @param pLease Lease of the document, may be null
+     * @param pTimestamp Write timestamp in microseconds, Long.MIN_VALUE for the time of the write
+     */
+    private ListenableFuture<Void> completeDocument(String pUID, DocumentLeases.Lease pLease, long pTimestamp) {
+        ListenableFuture<?> lResult = Futures.immediateFuture(null);
+        if (pendingStatement != null) {
+            lResult = session.executeAsync(PendingWorkQueue.bindRemove(pendingStatement, dbname, pUID).setDefaultTimestamp(pTimestamp));
+        }
+        if (pLease != null) {
+            journalLeases.remove(pUID, pLease);
+            // The reader creates the table once it claims documents, which may be after the writer has been initialized
+            if (leaseStatement == null) leaseStatement = DocumentLeases.prepareRelease(session);
+            Statement lRelease = pLease.bindRelease(leaseStatement);
+            lResult = Futures.transformAsync(lResult, r -> Futures.catching(session.executeAsync(lRelease), Exception.class, (Exception e) -> {
+                logger.warn("Releasing the lease of "+pUID+" failed: "+e.getMessage()+" - Ignoring it, the lease expires");
+                return null;
+            }));
+        }
+        return Futures.transform(lResult, (Function<Object, Void>)r -> null);
+    }
+
+    private ListenableFuture<?> thenComplete(String pUID, DocumentLeases.Lease pLease, ListenableFuture<?> pWrite, long pTimestamp) {
+        if (!hasCompletion(pLease)) return pWrite;
+        return Futures.transformAsync(pWrite, r -> completeDocument(pUID, pLease, pTimestamp));
+    }
+
+    /**
+     * Writes an entry of the journal with its timestamp, the same way process() writes a document without journal
+     */
+    private ListenableFuture<?> writeEntry(WriteJournal.Entry pEntry) {
+        // Leases are not journaled, those of entries left by a previous run have expired or expire
+        DocumentLeases.Lease lLease = journalLeases.get(pEntry.getRaw());
+        if (pEntry.isLayers()) {
+            List<ListenableFuture<ResultSet>> lFutures = new ArrayList<>();
+            for (Map.Entry<String, byte[]> lLayer:pEntry.getLayers().entrySet()) {
+                lFutures.add(session.executeAsync(bindLayer(pEntry.getRaw(), lLayer.getKey(), pEntry.getMergePoint(), ByteBuffer.wrap(lLayer.getValue())).setDefaultTimestamp(pEntry.getTimestamp())));
+            }
+            lFutures.add(session.executeAsync(processedStatement.bind(dbname, pEntry.getRaw()).setDefaultTimestamp(pEntry.getTimestamp())));
+            return thenComplete(pEntry.getRaw(), lLease, Futures.allAsList(lFutures), pEntry.getTimestamp());
+        }
+        ByteBuffer lPayload = ByteBuffer.wrap(pEntry.getPayload());
+        if (store != null) {
+            return store.update(dbname, pEntry.getRaw(), lPayload, pEntry.isBinary());
+        }
+        else if ((chunkThreshold > 0) && (lPayload.remaining() > chunkThreshold)) {
+            return thenComplete(pEntry.getRaw(), lLease, writeChunks(pEntry.getRaw(), lPayload, pEntry.isBinary(), pEntry.getTimestamp()), pEntry.getTimestamp());
+        }
+        else {
+            return thenComplete(pEntry.getRaw(), lLease, session.executeAsync(bindDocument(pEntry.getRaw(), lPayload).setDefaultTimestamp(pEntry.getTimestamp())), pEntry.getTimestamp());
+        }
     }
 
     @Override
@@ -85,13 +454,44 @@ public class WikiDragonCassandraWriter extends JCasConsumer_ImplBase {
     @Override
     public void batchProcessComplete() throws AnalysisEngineProcessException {
         super.batchProcessComplete();
-        close();
+        // The writer keeps its session and journal for the next batch, they are released at the end of the collection
+        flush();
     }
 
     @Override
     public void collectionProcessComplete() throws AnalysisEngineProcessException {
         super.collectionProcessComplete();
-        close();
+        try {
+            flush();
+        }
+        finally {
+            close();
+        }
+    }
+
+    /**
+     * Waits for all pending updates and throws if any of them failed
+     */
+    private void flush() throws AnalysisEngineProcessException {
+        if (asyncWriter != null) {
+            try {
+                if (journal != null) {
+                    int lRemaining = journal.flush(journalDrainTimeoutSeconds * 1000L);
+                    if (lRemaining > 0) {
+                        logger.warn(lRemaining+" documents have not been written yet - They remain in the journal "+journal.getFile()+" and are written when it is opened again");
+                    }
+                }
+                asyncWriter.flush();
+                logSummary();
+            }
+            catch (IOException e) {
+                throw new AnalysisEngineProcessException(e);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AnalysisEngineProcessException(e);
+            }
+        }
     }
 
     @Override
@@ -105,39 +505,220 @@ public class WikiDragonCassandraWriter extends JCasConsumer_ImplBase {
         }
         else {
             String lUID = lDocumentMetaDataCollection.iterator().next().getUid();
-            ByteArrayOutputStream lOutput = new ByteArrayOutputStream();
+            DocumentLeases.Lease lLease = takeLease(jCas, lUID);
+            // The buffer is bound to the statement as it is and returned to the pool once the write has completed.
+            // Once it is handed to the async writer, which completes the write also if it throws, it is released there
+            ReusableByteArrayOutputStream lOutput = outputBuffers.poll();
+            if (lOutput == null) lOutput = new ReusableByteArrayOutputStream(1024*1024);
+            Runnable lRelease = releaseOnce(lOutput);
+            boolean lHandedOver = false;
+            try {
+                asyncWriter.checkFailures();
+                boolean lLayered = (layer != null) || isLayered();
+                DeltaCasRegistry.Delta lDelta = lLayered ? DeltaCasRegistry.get(jCas.getCas()) : null;
+                if (lLayered && (lDelta == null) && !warnedMissingDelta) {
+                    logger.warn("Received JCas without a tracked delta (see "+WikiDragonCassandraCollectionReader.PARAM_TRACKDELTA+") - Writing such documents as a whole instead of layers");
+                    warnedMissingDelta = true;
+                }
+                Timer.Context lSerializeTime = serializeTimer.time();
+                try {
+                    if (lDelta != null) {
+                        XmiCasSerializer.serialize(jCas.getCas(), jCas.getTypeSystem(), lOutput, false, lDelta.getSharedData(), lDelta.getMarker());
+                    }
+                    else {
+                        serialize(jCas.getCas(), storageFormat, storageFormat != StorageFormat.XMI ? typeSystemStore.register(jCas.getTypeSystem()) : null, lOutput);
+                    }
+                }
+                catch(SAXException e) {
+                    throw new AnalysisEngineProcessException(e);
+                }
+                finally {
+                    lSerializeTime.stop();
+                }
+                bytesWrittenMeter.mark(lOutput.size());
+                if (journal != null) {
+                    if (lLease != null) journalLeases.put(lUID, lLease);
+                    journal.append(createEntry(jCas, lUID, lDelta, lOutput));
+                }
+                else if (lDelta != null) {
+                    List<Statement> lStatements = new ArrayList<>();
+                    if (isLayered()) {
+                        Map<String, byte[]> lLayers;
+                        try {
+                            lLayers = getLayerSplitter(jCas.getTypeSystem()).split(new ByteBufferInputStream(lOutput.toByteBuffer()));
+                        }
+                        catch (SAXException e) {
+                            throw new AnalysisEngineProcessException(e);
+                        }
+                        for (Map.Entry<String, byte[]> lLayer:lLayers.entrySet()) {
+                            lStatements.add(bindLayer(lUID, lLayer.getKey(), lDelta.getMergePoint(), ByteBuffer.wrap(lLayer.getValue())));
+                        }
+                    }
+                    else {
+                        lStatements.add(bindLayer(lUID, layer, lDelta.getMergePoint(), lOutput.toByteBuffer()));
+                    }
+                    lStatements.add(processedStatement.bind(dbname, lUID));
+                    lHandedOver = true;
+                    asyncWriter.write(lStatements, hasCompletion(lLease) ? () -> completeDocument(lUID, lLease, Long.MIN_VALUE) : null, lRelease);
+                }
+                else if (store != null) {
+                    ByteBuffer lPayload = lOutput.toByteBuffer();
+                    lHandedOver = true;
+                    asyncWriter.submit(() -> store.update(dbname, lUID, lPayload, storageFormat != StorageFormat.XMI), lRelease);
+                }
+                else if ((chunkThreshold > 0) && (lOutput.size() > chunkThreshold)) {
+                    ByteBuffer lPayload = lOutput.toByteBuffer();
+                    lHandedOver = true;
+                    asyncWriter.submit(() -> thenComplete(lUID, lLease, writeChunks(lUID, lPayload, storageFormat != StorageFormat.XMI, Long.MIN_VALUE), Long.MIN_VALUE), lRelease);
+                }
+                else {
+                    Statement lStatement = bindDocument(lUID, lOutput.toByteBuffer());
+                    lHandedOver = true;
+                    asyncWriter.write(Collections.singletonList(lStatement), hasCompletion(lLease) ? () -> completeDocument(lUID, lLease, Long.MIN_VALUE) : null, lRelease);
+                }
+            }
+            catch (IOException e) {
+                throw new AnalysisEngineProcessException(e);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AnalysisEngineProcessException(e);
+            }
+            finally {
+                // The journal has copied the output
+                if (!lHandedOver) lRelease.run();
+            }
+            written++;
+            documentsMeter.mark();
+            if (System.currentTimeMillis() - logTime >= logIntervalSeconds * 1000L) {
+                logTime = System.currentTimeMillis();
+                logSummary();
+            }
+        }
+    }
+
+    private BoundStatement bindDocument(String pUID, ByteBuffer pPayload) {
+        // XmiCasSerializer writes UTF-8, which are the raw bytes of a text column as well
+        BoundStatement lStatement = preparedStatement.bind();
+        lStatement.setBytesUnsafe(0, pPayload);
+        lStatement.setInt(1, pPayload.remaining());
+        lStatement.setString(2, dbname);
+        lStatement.setString(3, pUID);
+        return lStatement;
+    }
+
+    /**
+     * @return Journal entry of the layers of the delta or of the document
+     */
+    private WriteJournal.Entry createEntry(JCas pJCas, String pUID, DeltaCasRegistry.Delta pDelta, ReusableByteArrayOutputStream pOutput) throws IOException, AnalysisEngineProcessException {
+        byte[] lBytes = new byte[pOutput.size()];
+        pOutput.toByteBuffer().get(lBytes);
+        if (pDelta == null) {
+            return WriteJournal.Entry.forDocument(pUID, lBytes, storageFormat != StorageFormat.XMI);
+        }
+        Map<String, byte[]> lLayers;
+        if (isLayered()) {
             try {
-                XmiCasSerializer.serialize(jCas.getCas(), lOutput);
+                lLayers = getLayerSplitter(pJCas.getTypeSystem()).split(new ByteArrayInputStream(lBytes));
             }
-            catch(SAXException e) {
+            catch (SAXException e) {
                 throw new AnalysisEngineProcessException(e);
             }
-            String lXMI = new String(lOutput.toByteArray());
-            ResultSet lResultSet = session.execute(preparedStatement.bind(lXMI, lXMI.getBytes(Charset.forName("UTF-8")).length, dbname, lUID));
-            if (!lResultSet.wasApplied()) {
-                throw new AnalysisEngineProcessException(new IOException("Update could not be applied"));
+        }
+        else {
+            lLayers = Collections.singletonMap(layer, lBytes);
+        }
+        return WriteJournal.Entry.forLayers(pUID, pDelta.getMergePoint(), lLayers);
+    }
+
+    private BoundStatement bindLayer(String pUID, String pLayer, int pMergePoint, ByteBuffer pXMI) {
+        BoundStatement lStatement = layerStatement.bind();
+        lStatement.setInt(0, pMergePoint);
+        lStatement.setInt(2, pXMI.remaining());
+        lStatement.setBytesUnsafe(1, pXMI);
+        lStatement.setString(3, dbname);
+        lStatement.setString(4, pUID);
+        lStatement.setString(5, pLayer);
+        return lStatement;
+    }
+
+    private XmiLayerSplitter getLayerSplitter(TypeSystem pTypeSystem) throws IOException {
+        if ((layerSplitter == null) || (layerSplitter.getTypeSystem() != pTypeSystem)) {
+            layerSplitter = new XmiLayerSplitter(pTypeSystem, layerTypes, layer);
+        }
+        return layerSplitter;
+    }
+
+    /**
+     * Serializes the CAS in the storage format
+     * @param pTypeSystemHash Hash of the registered type system of the CAS, only used by the binary formats
+     */
+    static void serialize(CAS pCas, StorageFormat pStorageFormat, byte[] pTypeSystemHash, OutputStream pOutput) throws IOException, SAXException {
+        switch (pStorageFormat) {
+            case BINARY:
+            case BINARY_LZ4:
+            case BINARY_XZ: {
+                BinaryCasCodec.Compression lCompression = pStorageFormat == StorageFormat.BINARY_LZ4 ? BinaryCasCodec.Compression.LZ4 : pStorageFormat == StorageFormat.BINARY_XZ ? BinaryCasCodec.Compression.XZ : BinaryCasCodec.Compression.NONE;
+                BinaryCasCodec.serialize(pCas, pTypeSystemHash, lCompression, pOutput);
+                break;
             }
-            logger.info("Written Documents: "+(++written));
+            default: {
+                XmiCasSerializer.serialize(pCas, pOutput);
+            }
+        }
+    }
+
+    private void logSummary() {
+        logger.info(String.format(Locale.ROOT, "Written Documents: %d, %.1f documents/sec, %.2f MB/sec, Write latency: %s",
+                written, documentsMeter.getOneMinuteRate(), bytesWrittenMeter.getOneMinuteRate() / 1e6, asyncWriter.getLatencySummary()));
+    }
+
+    /**
+     * @return Returns the buffer to the pool on its first run, so it is never handed to two documents
+     */
+    private Runnable releaseOnce(ReusableByteArrayOutputStream pOutput) {
+        AtomicBoolean lReleased = new AtomicBoolean();
+        return () -> {
+            if (lReleased.compareAndSet(false, true)) releaseOutputBuffer(pOutput);
+        };
+    }
+
+    private void releaseOutputBuffer(ReusableByteArrayOutputStream pOutput) {
+        if (pOutput.capacity() <= MAX_POOLED_BUFFER_CAPACITY) {
+            pOutput.reset();
+            outputBuffers.offer(pOutput);
         }
     }
 
     @Override
     public void destroy() {
+        try {
+            flush();
+        }
+        catch (AnalysisEngineProcessException e) {
+            logger.error(e.getMessage(), e);
+        }
         close();
     }
 
     public void close() {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        asyncWriter = null;
+        if (metrics != null) {
+            WikiDragonMetrics.removeFromSum(metrics, MetricRegistry.name(WikiDragonCassandraWriter.class, "inFlightWrites"), inFlightWritesGauge);
+            WikiDragonMetrics.removeFromSum(metrics, MetricRegistry.name(WikiDragonCassandraWriter.class, "journalEntries"), journalEntriesGauge);
+            WikiDragonMetrics.release(metricRegistry);
+            metrics = null;
+        }
         if (session != null) {
-            logger.info("Closing Cassandra Session of WikiDragonCassandraWriter...");
-            session.close();
+            logger.info("Releasing Cassandra Session of WikiDragonCassandraWriter...");
+            connectionProvider.release(session);
             session = null;
-            logger.info("Closing Cassandra Session of WikiDragonCassandraWriter... Done");
-        }
-        if (cluster != null) {
-            logger.info("Closing Cassandra Cluster of WikiDragonCassandraWriter...");
-            cluster.close();
             cluster = null;
-            logger.info("Closing Cassandra Cluster of WikiDragonCassandraWriter... Done");
+            logger.info("Releasing Cassandra Session of WikiDragonCassandraWriter... Done");
         }
     }
 
@@ -0,0 +1,162 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.codahale.metrics.*;
+import com.datastax.driver.core.Cluster;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metric registries of WikiDragonCassandraCollectionReader and WikiDragonCassandraWriter. Components which use the
+ * same registry name share the registry (see SharedMetricRegistries). It is published via JMX and optionally by a
+ * CSV and a console reporter as long as one of the components is open. The reporters are configured by the
+ * component which opens the registry first.
+ */
+public class WikiDragonMetrics {
+
+    private static Logger logger = LogManager.getLogger(WikiDragonMetrics.class);
+
+    private static class Reporters {
+        private final JmxReporter jmxReporter;
+        private ScheduledReporter csvReporter;
+        private ScheduledReporter consoleReporter;
+        private int references = 0;
+
+        private Reporters(MetricRegistry pRegistry, String pName) {
+            jmxReporter = JmxReporter.forRegistry(pRegistry).inDomain(pName).build();
+            jmxReporter.start();
+        }
+    }
+
+    /**
+     * Sum of the gauges of several components which share a registry
+     */
+    private static class SumGauge implements Gauge<Long> {
+        private final Set<Gauge<? extends Number>> gauges = new CopyOnWriteArraySet<>();
+
+        @Override
+        public Long getValue() {
+            long lResult = 0;
+            for (Gauge<? extends Number> lGauge:gauges) lResult += lGauge.getValue().longValue();
+            return lResult;
+        }
+    }
+
+    private static final Map<String, Reporters> reporters = new HashMap<>();
+
+    /**
+     * @param pName Name of the registry, also used as JMX domain
+     * @param pCsvDirectory Directory the CSV reporter writes to, null for none
+     * @param pConsole Start a console reporter
+     * @param pReportIntervalSeconds Interval of the CSV and the console reporter
+     * @return Shared registry, which has to be returned by release(String)
+     */
+    public static MetricRegistry acquire(String pName, String pCsvDirectory, boolean pConsole, int pReportIntervalSeconds) {
+        MetricRegistry lRegistry = SharedMetricRegistries.getOrCreate(pName);
+        synchronized (reporters) {
+            Reporters lReporters = reporters.get(pName);
+            if (lReporters == null) {
+                lReporters = new Reporters(lRegistry, pName);
+                if (pCsvDirectory != null) {
+                    File lDirectory = new File(pCsvDirectory);
+                    if (!lDirectory.isDirectory() && !lDirectory.mkdirs()) {
+                        logger.warn("Could not create metrics directory "+lDirectory);
+                    }
+                    lReporters.csvReporter = CsvReporter.forRegistry(lRegistry).formatFor(Locale.ROOT).convertRatesTo(TimeUnit.SECONDS).convertDurationsTo(TimeUnit.MILLISECONDS).build(lDirectory);
+                    lReporters.csvReporter.start(pReportIntervalSeconds, TimeUnit.SECONDS);
+                }
+                if (pConsole) {
+                    lReporters.consoleReporter = ConsoleReporter.forRegistry(lRegistry).convertRatesTo(TimeUnit.SECONDS).convertDurationsTo(TimeUnit.MILLISECONDS).build();
+                    lReporters.consoleReporter.start(pReportIntervalSeconds, TimeUnit.SECONDS);
+                }
+                reporters.put(pName, lReporters);
+            }
+            lReporters.references++;
+        }
+        return lRegistry;
+    }
+
+    /**
+     * Stops the reporters of the registry when it is not used anymore. A last report is written before
+     */
+    public static void release(String pName) {
+        synchronized (reporters) {
+            Reporters lReporters = reporters.get(pName);
+            if ((lReporters != null) && (--lReporters.references <= 0)) {
+                if (lReporters.csvReporter != null) {
+                    lReporters.csvReporter.report();
+                    lReporters.csvReporter.stop();
+                }
+                if (lReporters.consoleReporter != null) {
+                    lReporters.consoleReporter.report();
+                    lReporters.consoleReporter.stop();
+                }
+                lReporters.jmxReporter.stop();
+                reporters.remove(pName);
+            }
+        }
+    }
+
+    /**
+     * Registers the gauge under the name, replacing the gauge of a previous component
+     */
+    public static void register(MetricRegistry pRegistry, String pName, Gauge<?> pGauge) {
+        synchronized (pRegistry) {
+            pRegistry.remove(pName);
+            pRegistry.register(pName, pGauge);
+        }
+    }
+
+    /**
+     * Adds the gauge to the sum which is registered under the name, e.g. for the writes in flight of all writers.
+     * It has to be removed by removeFromSum(MetricRegistry, String, Gauge) when the component is closed
+     */
+    public static void addToSum(MetricRegistry pRegistry, String pName, Gauge<? extends Number> pGauge) {
+        synchronized (pRegistry) {
+            Metric lMetric = pRegistry.getMetrics().get(pName);
+            SumGauge lSum;
+            if (lMetric instanceof SumGauge) {
+                lSum = (SumGauge)lMetric;
+            }
+            else {
+                pRegistry.remove(pName);
+                lSum = pRegistry.register(pName, new SumGauge());
+            }
+            lSum.gauges.add(pGauge);
+        }
+    }
+
+    /**
+     * Removes the gauge from the sum, which is unregistered with its last gauge
+     */
+    public static void removeFromSum(MetricRegistry pRegistry, String pName, Gauge<? extends Number> pGauge) {
+        synchronized (pRegistry) {
+            Metric lMetric = pRegistry.getMetrics().get(pName);
+            if (lMetric instanceof SumGauge) {
+                SumGauge lSum = (SumGauge)lMetric;
+                lSum.gauges.remove(pGauge);
+                if (lSum.gauges.isEmpty()) pRegistry.remove(pName);
+            }
+        }
+    }
+
+    /**
+     * Registers the metrics of the driver (request latencies, connections, errors) under cassandra.[cluster name]
+     */
+    public static void registerCluster(MetricRegistry pRegistry, Cluster pCluster) {
+        if (pCluster.getMetrics() == null) return;
+        String lPrefix = MetricRegistry.name("cassandra", pCluster.getClusterName());
+        synchronized (pRegistry) {
+            pRegistry.removeMatching((pName, pMetric) -> pName.startsWith(lPrefix+"."));
+            pRegistry.register(lPrefix, pCluster.getMetrics().getRegistry());
+        }
+    }
+
+}
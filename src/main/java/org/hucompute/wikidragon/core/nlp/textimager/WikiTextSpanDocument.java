@@ -0,0 +1,94 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Token;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Document of the wikitextspannlp table as it is handed from the fetching stage of the
+ * WikiDragonCassandraCollectionReader to getNext(CAS)
+ */
+public class WikiTextSpanDocument {
+
+    private final String raw;
+    private final ByteBuffer xmi;
+    private final ByteBuffer binaryCas;
+    private final int xmiLength;
+    private final long documentsRead;
+    private final long relevantDocumentsRead;
+    private final Token token;
+    private final ResultSetFuture layers;
+    private final ChunkInputStream chunks;
+    private final ResultSetFuture payload;
+
+    /**
+     * @param pRaw Key of the document
+     * @param pXMI UTF-8 encoded XMI of the document, null if it has not been selected or the document is stored as binary CAS
+     * @param pBinaryCas Binary CAS of the document (see BinaryCasCodec), null if it has not been selected or the document is stored as XMI
+     * @param pXMILength Length of the payload in bytes as stored in the xmilen column
+     * @param pDocumentsRead Count of rows scanned up to and including this document
+     * @param pRelevantDocumentsRead Count of relevant documents up to and including this document
+     * @param pToken Token of the partition of the document, null if it has not been selected
+     * @param pLayers Query of the annotation layers of the document (layer,mergepoint,xmi), null if no layers are merged
+     * @param pChunks Payload of a document which is stored in chunks, null if it is stored in the xmi or casbin column
+     * @param pPayload Query of the payload of a document which is not cached (see DocumentCache), null if the payload is given
+     */
+    public WikiTextSpanDocument(String pRaw, ByteBuffer pXMI, ByteBuffer pBinaryCas, int pXMILength, long pDocumentsRead, long pRelevantDocumentsRead, Token pToken, ResultSetFuture pLayers, ChunkInputStream pChunks, ResultSetFuture pPayload) {
+        raw = pRaw;
+        xmi = pXMI;
+        binaryCas = pBinaryCas;
+        xmiLength = pXMILength;
+        documentsRead = pDocumentsRead;
+        relevantDocumentsRead = pRelevantDocumentsRead;
+        token = pToken;
+        layers = pLayers;
+        chunks = pChunks;
+        payload = pPayload;
+    }
+
+    public String getRaw() {
+        return raw;
+    }
+
+    public ByteBuffer getXMI() {
+        return xmi;
+    }
+
+    public ByteBuffer getBinaryCas() {
+        return binaryCas;
+    }
+
+    public boolean hasPayload() {
+        return (xmi != null) || (binaryCas != null) || (chunks != null) || (payload != null);
+    }
+
+    public int getXMILength() {
+        return xmiLength;
+    }
+
+    public long getDocumentsRead() {
+        return documentsRead;
+    }
+
+    public long getRelevantDocumentsRead() {
+        return relevantDocumentsRead;
+    }
+
+    public Token getToken() {
+        return token;
+    }
+
+    public ResultSetFuture getLayers() {
+        return layers;
+    }
+
+    public ChunkInputStream getChunks() {
+        return chunks;
+    }
+
+    public ResultSetFuture getPayload() {
+        return payload;
+    }
+
+}
@@ -0,0 +1,40 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.datastax.driver.core.Row;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Access to the wikitextspannlp table which can be bound to WikiDragonCassandraCollectionReader and
+ * WikiDragonCassandraWriter as external resource instead of a Cassandra connection, e.g. SimulatedWikiTextSpanStore.
+ * Readers which use a store scan it sequentially and filter on the client. Everything which needs the session is
+ * switched off with a warning: token range and server side scans, sharding, checkpoints, the pending work queue,
+ * leases, size ordering and the document cache of the reader as well as layers and chunks of the writer.
+ */
+public interface WikiTextSpanStore {
+
+    /**
+     * @return Rows of all documents with the columns dbname,raw,textlen,xmilen,processed,xmi,casbin
+     */
+    Iterator<Row> scan();
+
+    /**
+     * @return Count of rows, may be approximate
+     */
+    long size();
+
+    /**
+     * Stores the payload of a document and marks it as processed
+     * @param pPayload Payload which may be reused by the caller after the returned future has completed
+     * @param pBinary True for a binary CAS (casbin column), false for UTF-8 encoded XMI (xmi column)
+     */
+    ListenableFuture<?> update(String pDBName, String pRaw, ByteBuffer pPayload, boolean pBinary);
+
+    /**
+     * @return Type systems of the binary CASes in the store
+     */
+    TypeSystemStore getTypeSystemStore();
+
+}
@@ -0,0 +1,388 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mapdb.Atomic;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local append-only journal of the serialized documents of a WikiDragonCassandraWriter in a MapDB file. A document
+ * is complete for the pipeline once its entry has been committed to the journal. A background flusher writes the
+ * entries in the order they have been appended with a bounded count in flight and removes an entry once its write
+ * has succeeded. After a failed write no entries are started for a retry delay, then the failed entry is written
+ * again. Entries which are left in the journal, e.g. after a crash, are written by the next journal on the file.
+ *
+ * Each entry is written with the time it has been appended as write timestamp, so an entry which is retried after a
+ * newer entry of the same document has been written does not overwrite it.
+ */
+public class WriteJournal implements Closeable {
+
+    private static Logger logger = LogManager.getLogger(WriteJournal.class);
+
+    /**
+     * Serialized document or annotation layers of a document
+     */
+    public static class Entry {
+        private final String raw;
+        private final boolean binary;
+        private final byte[] payload;
+        private final int mergePoint;
+        private final Map<String, byte[]> layers;
+        private long timestamp = Long.MIN_VALUE;
+
+        private Entry(String pRaw, boolean pBinary, byte[] pPayload, int pMergePoint, Map<String, byte[]> pLayers) {
+            raw = pRaw;
+            binary = pBinary;
+            payload = pPayload;
+            mergePoint = pMergePoint;
+            layers = pLayers;
+        }
+
+        /**
+         * @param pBinary True for a binary CAS (see BinaryCasCodec), false for UTF-8 encoded XMI
+         */
+        public static Entry forDocument(String pRaw, byte[] pPayload, boolean pBinary) {
+            return new Entry(pRaw, pBinary, pPayload, -1, null);
+        }
+
+        /**
+         * @param pLayers XMI deltas by layer
+         */
+        public static Entry forLayers(String pRaw, int pMergePoint, Map<String, byte[]> pLayers) {
+            return new Entry(pRaw, false, null, pMergePoint, pLayers);
+        }
+
+        public String getRaw() {
+            return raw;
+        }
+
+        public boolean isLayers() {
+            return layers != null;
+        }
+
+        public boolean isBinary() {
+            return binary;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public int getMergePoint() {
+            return mergePoint;
+        }
+
+        public Map<String, byte[]> getLayers() {
+            return layers;
+        }
+
+        /**
+         * @return Write timestamp of the entry in microseconds, the time it has been appended
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        private byte[] encode() throws IOException {
+            ByteArrayOutputStream lBytes = new ByteArrayOutputStream(64 + (payload != null ? payload.length : 0));
+            DataOutputStream lOutput = new DataOutputStream(lBytes);
+            lOutput.writeLong(timestamp);
+            lOutput.writeUTF(raw);
+            lOutput.writeBoolean(layers != null);
+            if (layers != null) {
+                lOutput.writeInt(mergePoint);
+                lOutput.writeInt(layers.size());
+                for (Map.Entry<String, byte[]> lLayer:layers.entrySet()) {
+                    lOutput.writeUTF(lLayer.getKey());
+                    lOutput.writeInt(lLayer.getValue().length);
+                    lOutput.write(lLayer.getValue());
+                }
+            }
+            else {
+                lOutput.writeBoolean(binary);
+                lOutput.writeInt(payload.length);
+                lOutput.write(payload);
+            }
+            lOutput.flush();
+            return lBytes.toByteArray();
+        }
+
+        private static Entry decode(byte[] pBytes) throws IOException {
+            DataInputStream lInput = new DataInputStream(new ByteArrayInputStream(pBytes));
+            long lTimestamp = lInput.readLong();
+            String lRaw = lInput.readUTF();
+            Entry lResult;
+            if (lInput.readBoolean()) {
+                int lMergePoint = lInput.readInt();
+                int lCount = lInput.readInt();
+                Map<String, byte[]> lLayers = new LinkedHashMap<>();
+                for (int i=0; i<lCount; i++) {
+                    String lLayer = lInput.readUTF();
+                    byte[] lXMI = new byte[lInput.readInt()];
+                    lInput.readFully(lXMI);
+                    lLayers.put(lLayer, lXMI);
+                }
+                lResult = forLayers(lRaw, lMergePoint, lLayers);
+            }
+            else {
+                boolean lBinary = lInput.readBoolean();
+                byte[] lPayload = new byte[lInput.readInt()];
+                lInput.readFully(lPayload);
+                lResult = forDocument(lRaw, lPayload, lBinary);
+            }
+            lResult.timestamp = lTimestamp;
+            return lResult;
+        }
+    }
+
+    public interface EntryWriter {
+        /**
+         * @return Write of the entry, which has to be idempotent
+         */
+        ListenableFuture<?> write(Entry pEntry);
+    }
+
+    private final File file;
+    private final DB db;
+    private final BTreeMap<Long, byte[]> entries;
+    private final Atomic.String identity;
+    private final EntryWriter writer;
+    private final int maxInFlight;
+    private final Semaphore semaphore;
+    private final long retryDelayMillis;
+    private final Timer latency;
+    private final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+    private final AtomicLong failures = new AtomicLong();
+    private final Object signal = new Object();
+    private final Thread flusher;
+    private volatile boolean closed = false;
+    private volatile long retryTime = 0;
+    /**
+     * Lowest sequence of the entries whose writes have failed since the flusher has looked last, Long.MAX_VALUE for none
+     */
+    private final AtomicLong retryFrom = new AtomicLong(Long.MAX_VALUE);
+    /**
+     * Sequence of the entry the flusher has started last, it continues after it
+     */
+    private long cursor = -1;
+    private long nextSequence;
+    private long lastTimestamp;
+
+    /**
+     * @param pFile MapDB file of the journal
+     * @param pIdentity Description of the target the entries are written to, e.g. keyspace, dbname and storage format.
+     *                  Entries of a different target are not written, opening the journal fails instead
+     * @param pWriter Writes the entries
+     * @param pMaxInFlight Maximal count of entries which are written at the same time
+     * @param pRetryDelayMillis Pause of the flusher after a failed write
+     * @param pLatency Timer which records the latencies of the writes
+     */
+    public WriteJournal(File pFile, String pIdentity, EntryWriter pWriter, int pMaxInFlight, long pRetryDelayMillis, Timer pLatency) throws IOException {
+        file = pFile;
+        db = DBMaker.fileDB(pFile).transactionEnable().closeOnJvmShutdown().make();
+        // The keys are iterated without loading the payloads
+        entries = db.treeMap("entries", Serializer.LONG, Serializer.BYTE_ARRAY).valuesOutsideNodesEnable().createOrOpen();
+        identity = db.atomicString("identity").createOrOpen();
+        if (!entries.isEmpty() && !pIdentity.equals(identity.get())) {
+            IOException lException = new IOException("Journal "+pFile+" holds "+entries.size()+" entries of "+identity.get()+" - Write them with that configuration or delete the journal");
+            db.close();
+            throw lException;
+        }
+        identity.set(pIdentity);
+        db.commit();
+        writer = pWriter;
+        maxInFlight = Math.max(1, pMaxInFlight);
+        semaphore = new Semaphore(maxInFlight);
+        retryDelayMillis = pRetryDelayMillis;
+        latency = pLatency;
+        nextSequence = entries.isEmpty() ? 0 : entries.lastKey() + 1;
+        if (!entries.isEmpty()) {
+            logger.info("Journal "+pFile+" holds "+entries.size()+" unwritten entries - Writing them");
+        }
+        flusher = new Thread(this::run, "WriteJournal-Flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Commits the entry to the journal. It is written by the flusher afterwards
+     */
+    public void append(Entry pEntry) throws IOException {
+        if (closed) throw new IOException("Journal "+file+" is closed");
+        synchronized (this) {
+            // Microseconds which are unique and increasing within the journal
+            lastTimestamp = Math.max(lastTimestamp + 1, System.currentTimeMillis() * 1000);
+            pEntry.timestamp = lastTimestamp;
+            entries.put(nextSequence++, pEntry.encode());
+            db.commit();
+        }
+        signal();
+    }
+
+    private void signal() {
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                // Blocks while maxInFlight writes are in flight
+                if (!semaphore.tryAcquire(100, TimeUnit.MILLISECONDS)) continue;
+                long lRetryTime = retryTime;
+                Long lSequence = System.currentTimeMillis() >= lRetryTime ? nextEntry() : null;
+                if (lSequence != null) {
+                    start(lSequence);
+                }
+                else {
+                    semaphore.release();
+                    // Woken by append() and by completed writes
+                    synchronized (signal) {
+                        signal.wait(Math.max(1, Math.min(100, lRetryTime - System.currentTimeMillis())));
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (RuntimeException e) {
+            if (!closed) logger.error("Flushing journal "+file+" failed: "+e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return Sequence of the next entry after the cursor which is not in flight, or null. After failed writes the
+     * scan continues at the first failed entry
+     */
+    private Long nextEntry() {
+        if ((retryFrom.get() != Long.MAX_VALUE) && (System.currentTimeMillis() < retryTime)) return null;
+        long lRetryFrom = retryFrom.getAndSet(Long.MAX_VALUE);
+        if (lRetryFrom != Long.MAX_VALUE) cursor = Math.min(cursor, lRetryFrom - 1);
+        Long lSequence = entries.higherKey(cursor);
+        while ((lSequence != null) && inFlight.contains(lSequence)) {
+            lSequence = entries.higherKey(lSequence);
+        }
+        if (lSequence != null) cursor = lSequence;
+        return lSequence;
+    }
+
+    private void start(Long pSequence) {
+        byte[] lBytes = entries.get(pSequence);
+        if (lBytes == null) {
+            semaphore.release();
+            return;
+        }
+        inFlight.add(pSequence);
+        Timer.Context lLatency = latency.time();
+        ListenableFuture<?> lFuture;
+        try {
+            lFuture = writer.write(Entry.decode(lBytes));
+        }
+        catch (IOException | RuntimeException e) {
+            lFuture = Futures.immediateFailedFuture(e);
+        }
+        Futures.addCallback(lFuture, new FutureCallback<Object>() {
+            @Override
+            public void onSuccess(Object pResult) {
+                lLatency.stop();
+                acknowledge(pSequence);
+                inFlight.remove(pSequence);
+                semaphore.release();
+                signal();
+            }
+
+            @Override
+            public void onFailure(Throwable pThrowable) {
+                lLatency.stop();
+                failures.incrementAndGet();
+                // The entry has to leave inFlight before the flusher goes back to it, and the retry time has to be set before
+                inFlight.remove(pSequence);
+                retryTime = System.currentTimeMillis() + retryDelayMillis;
+                retryFrom.accumulateAndGet(pSequence, Math::min);
+                logger.warn("Writing a journal entry failed: "+pThrowable.getMessage()+" - Retrying in "+retryDelayMillis+"ms");
+                semaphore.release();
+                signal();
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private synchronized void acknowledge(Long pSequence) {
+        if (db.isClosed()) return;
+        entries.remove(pSequence);
+        db.commit();
+    }
+
+    /**
+     * Waits until all entries have been written
+     * @param pTimeoutMillis Maximal time to wait
+     * @return Count of entries which have not been written yet
+     */
+    public int flush(long pTimeoutMillis) throws InterruptedException {
+        long lEnd = System.currentTimeMillis() + pTimeoutMillis;
+        synchronized (signal) {
+            while (!entries.isEmpty() && (System.currentTimeMillis() < lEnd)) {
+                signal.wait(Math.max(1, Math.min(100, lEnd - System.currentTimeMillis())));
+            }
+        }
+        return entries.size();
+    }
+
+    /**
+     * @return Count of entries which have not been written yet
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return Count of failed writes, including those which have been retried successfully
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Stops the flusher and closes the file after the writes in flight have completed. Unwritten entries are kept
+     */
+    @Override
+    public void close() {
+        closed = true;
+        signal();
+        try {
+            flusher.join();
+            if (!semaphore.tryAcquire(maxInFlight, 60, TimeUnit.SECONDS)) {
+                logger.warn("Writes of journal "+file+" are still in flight - Their entries are written again when the journal is opened");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (!db.isClosed()) db.close();
+        }
+    }
+
+}
@@ -0,0 +1,256 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.util.XMLSerializer;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Splits an XMI delta (see DeltaCasRegistry) into one delta per annotation layer by the types of its feature
+ * structures. Each layer maps to a list of types, including their subtypes. Feature structures of other types go to
+ * the default layer, or are dropped if there is none. Arrays and lists are written to every layer, since the layer of
+ * the feature structures referring to them is not known. Annotations which refer to each other have to be mapped to
+ * the same layer.
+ *
+ * Layer mappings are configured as strings of the form layer=type1,type2,...
+ */
+public class XmiLayerSplitter {
+
+    private static final String XMI_NAMESPACE = "http://www.omg.org/XMI";
+
+    private static final String CAS_NAMESPACE = "http:///uima/cas.ecore";
+
+    private static final SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+
+    static {
+        parserFactory.setNamespaceAware(true);
+    }
+
+    private final TypeSystem typeSystem;
+    private final Map<String, Type[]> layerTypes;
+    private final String defaultLayer;
+    private final Map<String, String> layers = new HashMap<>();
+
+    /**
+     * @param pLayerTypes Layer mappings of the form layer=type1,type2,...
+     * @param pDefaultLayer Layer of the feature structures of unmapped types, null to drop them
+     */
+    public XmiLayerSplitter(TypeSystem pTypeSystem, String[] pLayerTypes, String pDefaultLayer) throws IOException {
+        typeSystem = pTypeSystem;
+        layerTypes = new LinkedHashMap<>();
+        for (Map.Entry<String, String[]> lEntry:parseLayerTypes(pLayerTypes).entrySet()) {
+            Type[] lTypes = new Type[lEntry.getValue().length];
+            for (int i=0; i<lTypes.length; i++) {
+                lTypes[i] = typeSystem.getType(lEntry.getValue()[i]);
+                if (lTypes[i] == null) throw new IOException("Unknown type "+lEntry.getValue()[i]+" of layer "+lEntry.getKey());
+            }
+            layerTypes.put(lEntry.getKey(), lTypes);
+        }
+        defaultLayer = pDefaultLayer;
+    }
+
+    /**
+     * @return Type names by layer of the layer mappings, in the configured order
+     */
+    public static Map<String, String[]> parseLayerTypes(String[] pLayerTypes) throws IOException {
+        Map<String, String[]> lResult = new LinkedHashMap<>();
+        if (pLayerTypes == null) return lResult;
+        for (String lLayerTypes:pLayerTypes) {
+            String[] lLayerAndTypes = lLayerTypes.split("=", 2);
+            if ((lLayerAndTypes.length != 2) || lLayerAndTypes[0].trim().isEmpty() || lLayerAndTypes[1].trim().isEmpty()) {
+                throw new IOException("Invalid layer mapping "+lLayerTypes+" - Expected layer=type1,type2,...");
+            }
+            String lLayer = lLayerAndTypes[0].trim();
+            if (lResult.containsKey(lLayer)) throw new IOException("Layer "+lLayer+" is mapped twice");
+            String[] lTypes = lLayerAndTypes[1].split(",");
+            for (int i=0; i<lTypes.length; i++) lTypes[i] = lTypes[i].trim();
+            lResult.put(lLayer, lTypes);
+        }
+        return lResult;
+    }
+
+    public TypeSystem getTypeSystem() {
+        return typeSystem;
+    }
+
+    /**
+     * @return Layers which are written by this splitter, in the configured order followed by the default layer
+     */
+    public Set<String> getLayers() {
+        Set<String> lResult = new LinkedHashSet<>(layerTypes.keySet());
+        if (defaultLayer != null) lResult.add(defaultLayer);
+        return lResult;
+    }
+
+    /**
+     * @return Layer of the XMI element, null if it is dropped
+     */
+    private String getLayer(String pNamespaceURI, String pLocalName) {
+        String lKey = pNamespaceURI+"#"+pLocalName;
+        if (layers.containsKey(lKey)) return layers.get(lKey);
+        String lResult = defaultLayer;
+        Type lType = typeSystem.getType(XmiTypeProjection.getTypeName(pNamespaceURI, pLocalName));
+        if (lType != null) {
+            search:
+            for (Map.Entry<String, Type[]> lEntry:layerTypes.entrySet()) {
+                for (Type lLayerType:lEntry.getValue()) {
+                    if (typeSystem.subsumes(lLayerType, lType)) {
+                        lResult = lEntry.getKey();
+                        break search;
+                    }
+                }
+            }
+        }
+        layers.put(lKey, lResult);
+        return lResult;
+    }
+
+    /**
+     * @param pDelta XMI delta as written by XmiCasSerializer, whose views follow the feature structures
+     * @return XMI delta by layer for all layers of getLayers(), including those without feature structures
+     */
+    public Map<String, byte[]> split(InputStream pDelta) throws IOException, SAXException {
+        Map<String, ByteArrayOutputStream> lOutputs = new LinkedHashMap<>();
+        Map<String, ContentHandler> lHandlers = new LinkedHashMap<>();
+        for (String lLayer:getLayers()) {
+            ByteArrayOutputStream lOutput = new ByteArrayOutputStream();
+            lOutputs.put(lLayer, lOutput);
+            lHandlers.put(lLayer, new XMLSerializer(lOutput, false).getContentHandler());
+        }
+        XMLReader lReader = createXMLReader();
+        lReader.setContentHandler(new SplitHandler(lHandlers));
+        lReader.parse(new InputSource(pDelta));
+        Map<String, byte[]> lResult = new LinkedHashMap<>();
+        for (Map.Entry<String, ByteArrayOutputStream> lEntry:lOutputs.entrySet()) {
+            lResult.put(lEntry.getKey(), lEntry.getValue().toByteArray());
+        }
+        return lResult;
+    }
+
+    /**
+     * Forwards the SAX events of each feature structure to the handler of its layer and those of the document,
+     * arrays, lists and views to all handlers. View members are restricted to the feature structures of the layer
+     */
+    private class SplitHandler extends DefaultHandler {
+        private final Map<String, ContentHandler> handlers;
+        private final Map<String, Set<String>> layerIds = new HashMap<>();
+        private int depth = 0;
+        private Collection<ContentHandler> targets;
+
+        private SplitHandler(Map<String, ContentHandler> pHandlers) {
+            handlers = pHandlers;
+            targets = handlers.values();
+            for (String lLayer:handlers.keySet()) layerIds.put(lLayer, new HashSet<>());
+        }
+
+        @Override
+        public void startDocument() throws SAXException {
+            for (ContentHandler lHandler:handlers.values()) lHandler.startDocument();
+        }
+
+        @Override
+        public void endDocument() throws SAXException {
+            for (ContentHandler lHandler:handlers.values()) lHandler.endDocument();
+        }
+
+        @Override
+        public void startPrefixMapping(String pPrefix, String pURI) throws SAXException {
+            for (ContentHandler lHandler:handlers.values()) lHandler.startPrefixMapping(pPrefix, pURI);
+        }
+
+        @Override
+        public void endPrefixMapping(String pPrefix) throws SAXException {
+            for (ContentHandler lHandler:handlers.values()) lHandler.endPrefixMapping(pPrefix);
+        }
+
+        @Override
+        public void startElement(String pURI, String pLocalName, String pQName, Attributes pAttributes) throws SAXException {
+            depth++;
+            if (depth == 2) {
+                if (CAS_NAMESPACE.equals(pURI) && pLocalName.equals("View")) {
+                    for (Map.Entry<String, ContentHandler> lEntry:handlers.entrySet()) {
+                        lEntry.getValue().startElement(pURI, pLocalName, pQName, getViewAttributes(pAttributes, layerIds.get(lEntry.getKey())));
+                    }
+                    targets = handlers.values();
+                    return;
+                }
+                else if (CAS_NAMESPACE.equals(pURI) || XMI_NAMESPACE.equals(pURI)) {
+                    targets = handlers.values();
+                }
+                else {
+                    String lLayer = getLayer(pURI, pLocalName);
+                    ContentHandler lHandler = lLayer != null ? handlers.get(lLayer) : null;
+                    targets = lHandler != null ? Collections.singletonList(lHandler) : Collections.emptyList();
+                    String lId = pAttributes.getValue(XMI_NAMESPACE, "id");
+                    if ((lHandler != null) && (lId != null)) layerIds.get(lLayer).add(lId);
+                }
+            }
+            for (ContentHandler lHandler:targets) lHandler.startElement(pURI, pLocalName, pQName, pAttributes);
+        }
+
+        @Override
+        public void endElement(String pURI, String pLocalName, String pQName) throws SAXException {
+            for (ContentHandler lHandler:targets) lHandler.endElement(pURI, pLocalName, pQName);
+            depth--;
+            if (depth <= 1) targets = handlers.values();
+        }
+
+        @Override
+        public void characters(char[] pChars, int pStart, int pLength) throws SAXException {
+            for (ContentHandler lHandler:targets) lHandler.characters(pChars, pStart, pLength);
+        }
+
+        /**
+         * @return Attributes of the view with the added members restricted to the ids. Changes of the index
+         * membership of existing feature structures are not part of any layer
+         */
+        private Attributes getViewAttributes(Attributes pAttributes, Set<String> pIds) {
+            AttributesImpl lResult = new AttributesImpl();
+            for (int i=0; i<pAttributes.getLength(); i++) {
+                String lName = pAttributes.getLocalName(i);
+                if (lName.equals("added_members") || lName.equals("members")) {
+                    StringBuilder lMembers = new StringBuilder();
+                    for (String lId:pAttributes.getValue(i).split("\\s+")) {
+                        if (pIds.contains(lId)) {
+                            if (lMembers.length() > 0) lMembers.append(' ');
+                            lMembers.append(lId);
+                        }
+                    }
+                    if (lMembers.length() > 0) {
+                        lResult.addAttribute(pAttributes.getURI(i), lName, pAttributes.getQName(i), pAttributes.getType(i), lMembers.toString());
+                    }
+                }
+                else if (!lName.equals("deleted_members") && !lName.equals("reindexed_members")) {
+                    lResult.addAttribute(pAttributes.getURI(i), lName, pAttributes.getQName(i), pAttributes.getType(i), pAttributes.getValue(i));
+                }
+            }
+            return lResult;
+        }
+    }
+
+    private static XMLReader createXMLReader() throws SAXException {
+        try {
+            // The factory is not guaranteed to be thread-safe, the parsers it creates are used by one thread only
+            synchronized (parserFactory) {
+                return parserFactory.newSAXParser().getXMLReader();
+            }
+        }
+        catch (ParserConfigurationException e) {
+            throw new SAXException(e);
+        }
+    }
+
+}
@@ -0,0 +1,202 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.impl.XmiCasDeserializer;
+import org.apache.uima.cas.impl.XmiCasSerializer;
+import org.apache.uima.cas.impl.XmiSerializationSharedData;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Deserializes XMI into a CAS while skipping the feature structures of all types but a projection, so they are
+ * neither parsed into the CAS nor indexed. Features and view members which refer to skipped feature structures are
+ * left empty. Types of the uima.cas namespace (sofas, views, arrays, lists) and DocumentAnnotation are always kept.
+ *
+ * If a skipped feature structure has the highest XMI id of the document, an unindexed empty FSArray with this id is
+ * created instead, which keeps the XMI ids of deltas (see DeltaCasRegistry) apart from those of the stored document.
+ * Thread-safe.
+ */
+public class XmiTypeProjection {
+
+    private static final String XMI_NAMESPACE = "http://www.omg.org/XMI";
+
+    private static final String CAS_NAMESPACE = "http:///uima/cas.ecore";
+
+    private static final SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+
+    static {
+        parserFactory.setNamespaceAware(true);
+    }
+
+    private final TypeSystem typeSystem;
+    private final Type[] keepTypes;
+    private final Type[] dropTypes;
+    private final Map<String, Boolean> decisions = new ConcurrentHashMap<>();
+
+    /**
+     * @param pTypeSystem Type system of the CASes the XMI is loaded into
+     * @param pKeepTypes Names of the types whose feature structures, including those of their subtypes, are kept. Null or empty keeps all types
+     * @param pDropTypes Names of the types whose feature structures, including those of their subtypes, are skipped. May be null
+     */
+    public XmiTypeProjection(TypeSystem pTypeSystem, String[] pKeepTypes, String[] pDropTypes) throws IOException {
+        typeSystem = pTypeSystem;
+        keepTypes = getTypes(pKeepTypes);
+        dropTypes = getTypes(pDropTypes);
+    }
+
+    private Type[] getTypes(String[] pNames) throws IOException {
+        if (pNames == null) return new Type[0];
+        Type[] lResult = new Type[pNames.length];
+        for (int i=0; i<pNames.length; i++) {
+            lResult[i] = typeSystem.getType(pNames[i]);
+            if (lResult[i] == null) throw new IOException("Unknown type "+pNames[i]);
+        }
+        return lResult;
+    }
+
+    public TypeSystem getTypeSystem() {
+        return typeSystem;
+    }
+
+    /**
+     * Like XmiCasDeserializer.deserialize(InputStream, CAS, boolean, XmiSerializationSharedData, int), but lenient
+     * towards references to skipped feature structures
+     * @param pSharedData Receives the XMI ids, may be null
+     * @param pMergePoint Merge point of a delta, -1 for a complete document
+     */
+    public void deserialize(InputStream pInput, CAS pCas, XmiSerializationSharedData pSharedData, int pMergePoint) throws IOException, SAXException {
+        XMLReader lReader = createXMLReader();
+        ProjectionFilter lFilter = new ProjectionFilter(lReader, pMergePoint < 0);
+        lFilter.setContentHandler(new XmiCasDeserializer(pCas.getTypeSystem()).getXmiCasHandler(pCas, true, pSharedData, pMergePoint));
+        lFilter.parse(new InputSource(pInput));
+    }
+
+    /**
+     * @return True if the feature structures of the XMI element are kept
+     */
+    private boolean isKept(String pNamespaceURI, String pLocalName) {
+        if (CAS_NAMESPACE.equals(pNamespaceURI) || XMI_NAMESPACE.equals(pNamespaceURI)) return true;
+        return decisions.computeIfAbsent(pNamespaceURI+"#"+pLocalName, k -> {
+            Type lType = typeSystem.getType(getTypeName(pNamespaceURI, pLocalName));
+            // Types which are not part of the type system are left to the deserializer
+            if ((lType == null) || lType.getName().equals(CAS.TYPE_NAME_DOCUMENT_ANNOTATION)) return true;
+            for (Type lDropType:dropTypes) {
+                if (typeSystem.subsumes(lDropType, lType)) return false;
+            }
+            if (keepTypes.length == 0) return true;
+            for (Type lKeepType:keepTypes) {
+                if (typeSystem.subsumes(lKeepType, lType)) return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * @return Name of the UIMA type of an XMI element, e.g. http:///uima/tcas.ecore#Annotation is uima.tcas.Annotation
+     */
+    static String getTypeName(String pNamespaceURI, String pLocalName) {
+        // Types without a package are written in the default namespace
+        if (pNamespaceURI.isEmpty() || XmiCasSerializer.DEFAULT_NAMESPACE_URI.equals(pNamespaceURI)) return pLocalName;
+        String lPackage = pNamespaceURI;
+        if (lPackage.startsWith("http:///")) lPackage = lPackage.substring(8);
+        if (lPackage.endsWith(".ecore")) lPackage = lPackage.substring(0, lPackage.length() - 6);
+        lPackage = lPackage.replace('/', '.');
+        return lPackage+"."+pLocalName;
+    }
+
+    private static int getXmiId(Attributes pAttributes) {
+        String lId = pAttributes.getValue(XMI_NAMESPACE, "id");
+        if (lId == null) return -1;
+        try {
+            return Integer.parseInt(lId);
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Removes the elements of skipped feature structures, including their child elements, from the SAX events
+     */
+    private class ProjectionFilter extends XMLFilterImpl {
+        private final boolean keepMaxXmiId;
+        private int depth = 0;
+        private int skipDepth = -1;
+        private int maxXmiId = -1;
+        private int maxKeptXmiId = -1;
+
+        private ProjectionFilter(XMLReader pReader, boolean pKeepMaxXmiId) {
+            super(pReader);
+            keepMaxXmiId = pKeepMaxXmiId;
+        }
+
+        @Override
+        public void startElement(String pURI, String pLocalName, String pQName, Attributes pAttributes) throws SAXException {
+            depth++;
+            if (skipDepth >= 0) return;
+            // Feature structures are the children of the root element
+            if (depth == 2) {
+                int lXmiId = getXmiId(pAttributes);
+                maxXmiId = Math.max(maxXmiId, lXmiId);
+                if (!isKept(pURI, pLocalName)) {
+                    skipDepth = depth;
+                    return;
+                }
+                maxKeptXmiId = Math.max(maxKeptXmiId, lXmiId);
+            }
+            super.startElement(pURI, pLocalName, pQName, pAttributes);
+        }
+
+        @Override
+        public void endElement(String pURI, String pLocalName, String pQName) throws SAXException {
+            depth--;
+            if (skipDepth >= 0) {
+                if (depth < skipDepth) skipDepth = -1;
+                return;
+            }
+            if ((depth == 0) && keepMaxXmiId && (maxXmiId > maxKeptXmiId)) {
+                AttributesImpl lAttributes = new AttributesImpl();
+                lAttributes.addAttribute(XMI_NAMESPACE, "id", "xmi:id", "CDATA", Integer.toString(maxXmiId));
+                super.startElement(CAS_NAMESPACE, "FSArray", "cas:FSArray", lAttributes);
+                super.endElement(CAS_NAMESPACE, "FSArray", "cas:FSArray");
+            }
+            super.endElement(pURI, pLocalName, pQName);
+        }
+
+        @Override
+        public void characters(char[] pChars, int pStart, int pLength) throws SAXException {
+            if (skipDepth < 0) super.characters(pChars, pStart, pLength);
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] pChars, int pStart, int pLength) throws SAXException {
+            if (skipDepth < 0) super.ignorableWhitespace(pChars, pStart, pLength);
+        }
+    }
+
+    private static XMLReader createXMLReader() throws SAXException {
+        try {
+            // The factory is not guaranteed to be thread-safe, the parsers it creates are used by one thread only
+            synchronized (parserFactory) {
+                return parserFactory.newSAXParser().getXMLReader();
+            }
+        }
+        catch (ParserConfigurationException e) {
+            throw new SAXException(e);
+        }
+    }
+
+}
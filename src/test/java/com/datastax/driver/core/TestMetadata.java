@@ -0,0 +1,40 @@
+package com.datastax.driver.core;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Metadata of a Murmur3Partitioner ring with the given node tokens, without a cluster. It supports the token and
+ * token range methods only. Its package gives access to the constructors of the driver
+ */
+public class TestMetadata extends Metadata {
+
+    private final Token.Factory factory = Token.getFactory("org.apache.cassandra.dht.Murmur3Partitioner");
+    private final Set<TokenRange> tokenRanges = new LinkedHashSet<>();
+
+    /**
+     * @param pNodeTokens Tokens of the nodes in ascending order
+     */
+    public TestMetadata(long... pNodeTokens) {
+        super(null);
+        for (int i=0; i<pNodeTokens.length; i++) {
+            tokenRanges.add(newTokenRange(newToken(Long.toString(pNodeTokens[i])), newToken(Long.toString(pNodeTokens[(i+1) % pNodeTokens.length]))));
+        }
+    }
+
+    @Override
+    public Set<TokenRange> getTokenRanges() {
+        return tokenRanges;
+    }
+
+    @Override
+    public Token newToken(String pTokenStr) {
+        return factory.fromString(pTokenStr);
+    }
+
+    @Override
+    public TokenRange newTokenRange(Token pStart, Token pEnd) {
+        return new TokenRange(pStart, pEnd, factory);
+    }
+
+}
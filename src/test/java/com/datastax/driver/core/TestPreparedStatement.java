@@ -0,0 +1,51 @@
+package com.datastax.driver.core;
+
+import java.lang.reflect.Proxy;
+
+/**
+ * Prepared statement without a cluster. Its package gives access to the constructors of the driver
+ */
+public class TestPreparedStatement {
+
+    private TestPreparedStatement() {
+    }
+
+    /**
+     * @return Statement whose variables are all of type bigint like the tokens of a Murmur3Partitioner ring
+     */
+    public static PreparedStatement create(String pQueryString) {
+        DataType[] lVariables = new DataType[pQueryString.length() - pQueryString.replace("?", "").length()];
+        for (int i=0; i<lVariables.length; i++) lVariables[i] = DataType.bigint();
+        return create(pQueryString, lVariables);
+    }
+
+    /**
+     * @param pVariables Types of the bind markers in the order of the query
+     */
+    public static PreparedStatement create(String pQueryString, DataType... pVariables) {
+        ColumnDefinitions.Definition[] lDefinitions = new ColumnDefinitions.Definition[pVariables.length];
+        for (int i=0; i<pVariables.length; i++) {
+            lDefinitions[i] = new ColumnDefinitions.Definition("test", "test", "v"+i, pVariables[i]);
+        }
+        ColumnDefinitions lVariables = new ColumnDefinitions(lDefinitions, CodecRegistry.DEFAULT_INSTANCE);
+        PreparedId lPreparedId = new PreparedId(new PreparedId.PreparedMetadata(MD5Digest.wrap(new byte[16]), lVariables), new PreparedId.PreparedMetadata(null, null), null, ProtocolVersion.NEWEST_SUPPORTED);
+        return (PreparedStatement)Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[]{PreparedStatement.class}, (pProxy, pMethod, pArgs) -> {
+            switch (pMethod.getName()) {
+                case "bind": {
+                    BoundStatement lStatement = new BoundStatement((PreparedStatement)pProxy);
+                    return (pArgs != null) && (((Object[])pArgs[0]).length > 0) ? lStatement.bind((Object[])pArgs[0]) : lStatement;
+                }
+                case "getVariables": return lVariables;
+                case "getPreparedId": return lPreparedId;
+                case "getQueryString": return pQueryString;
+                case "getCodecRegistry": return CodecRegistry.DEFAULT_INSTANCE;
+                case "isTracing": return false;
+                case "hashCode": return System.identityHashCode(pProxy);
+                case "equals": return pProxy == pArgs[0];
+                case "toString": return pQueryString;
+                default: return null;
+            }
+        });
+    }
+
+}
@@ -0,0 +1,87 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AsyncStatementWriterTest {
+
+    @Test
+    public void testCompletionOfRequest() throws Exception {
+        AsyncStatementWriter lWriter = new AsyncStatementWriter(null, 2, false);
+        SettableFuture<Void> lRequest = SettableFuture.create();
+        AtomicInteger lCompleted = new AtomicInteger();
+        lWriter.submit(() -> lRequest, lCompleted::incrementAndGet);
+        assertEquals(0, lCompleted.get());
+        assertEquals(1, lWriter.getInFlight());
+        lRequest.set(null);
+        assertEquals(1, lCompleted.get());
+        assertEquals(0, lWriter.getInFlight());
+    }
+
+    @Test
+    public void testCompletionOfFailedRequest() throws Exception {
+        AsyncStatementWriter lWriter = new AsyncStatementWriter(null, 1, false);
+        AtomicInteger lCompleted = new AtomicInteger();
+        try {
+            lWriter.submit(() -> {
+                throw new IllegalStateException("Not started");
+            }, lCompleted::incrementAndGet);
+            fail("Exception of the request has not been thrown");
+        }
+        catch (IllegalStateException e) {
+            // Expected
+        }
+        assertEquals(1, lCompleted.get());
+        assertEquals(0, lWriter.getInFlight());
+    }
+
+    @Test
+    public void testCompletionOfInterruptedRequest() {
+        AsyncStatementWriter lWriter = new AsyncStatementWriter(null, 1, false);
+        AtomicInteger lCompleted = new AtomicInteger();
+        Thread.currentThread().interrupt();
+        try {
+            lWriter.submit(SettableFuture::create, lCompleted::incrementAndGet);
+            fail("Interrupt has been ignored");
+        }
+        catch (InterruptedException e) {
+            // Expected
+        }
+        assertEquals(1, lCompleted.get());
+    }
+
+    @Test
+    public void testCompletionOfFailedStatements() throws Exception {
+        // Without a session the first statement fails when it is executed
+        AsyncStatementWriter lWriter = new AsyncStatementWriter(null, 4, false);
+        List<Statement> lStatements = Arrays.asList(new SimpleStatement("select 1"), new SimpleStatement("select 2"), new SimpleStatement("select 3"));
+        AtomicInteger lCompleted = new AtomicInteger();
+        try {
+            lWriter.write(lStatements, lCompleted::incrementAndGet);
+            fail("Failure of the statement has not been thrown");
+        }
+        catch (NullPointerException e) {
+            // Expected
+        }
+        assertEquals(1, lCompleted.get());
+        assertEquals(0, lWriter.getInFlight());
+    }
+
+    @Test
+    public void testCompletionOfNoStatements() throws Exception {
+        AsyncStatementWriter lWriter = new AsyncStatementWriter(null, 1, false);
+        AtomicInteger lCompleted = new AtomicInteger();
+        lWriter.write(Collections.emptyList(), lCompleted::incrementAndGet);
+        assertEquals(1, lCompleted.get());
+    }
+
+}
@@ -0,0 +1,118 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.fit.factory.TypeSystemDescriptionFactory;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.util.CasCreationUtils;
+import org.hucompute.wikidragon.core.nlp.annotation.HtmlTag;
+import org.hucompute.wikidragon.core.nlp.annotation.WikiTextSpan;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BinaryCasCodecTest {
+
+    static CAS createCas() throws Exception {
+        return CasCreationUtils.createCas(TypeSystemDescriptionFactory.createTypeSystemDescription(), null, null);
+    }
+
+    static void fill(CAS pCas) throws Exception {
+        JCas lJCas = pCas.getJCas();
+        lJCas.setDocumentText("Frankfurt is a city in Germany.");
+        lJCas.setDocumentLanguage("en");
+        HtmlTag lLink = new HtmlTag(lJCas, 0, 9);
+        lLink.setTag("a");
+        lLink.setAttr("href=\"/wiki/Frankfurt\"");
+        lLink.addToIndexes();
+        WikiTextSpan lSpan = new WikiTextSpan(lJCas, 0, lJCas.getDocumentText().length());
+        lSpan.setUid("Frankfurt");
+        lSpan.addToIndexes();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        CAS lCas = createCas();
+        fill(lCas);
+        byte[] lTypeSystemHash = BinaryCasCodec.hashTypeSystem(BinaryCasCodec.serializeTypeSystem(lCas.getTypeSystem()));
+        for (BinaryCasCodec.Compression lCompression:BinaryCasCodec.Compression.values()) {
+            ByteArrayOutputStream lOutput = new ByteArrayOutputStream();
+            BinaryCasCodec.serialize(lCas, lTypeSystemHash, lCompression, lOutput);
+            byte[] lPayload = lOutput.toByteArray();
+            assertArrayEquals(lTypeSystemHash, BinaryCasCodec.getTypeSystemHash(ByteBuffer.wrap(lPayload)));
+
+            CAS lResult = createCas();
+            BinaryCasCodec.deserialize(new ByteArrayInputStream(lPayload), lCas.getTypeSystem(), lResult);
+            assertEquals(lCas.getDocumentText(), lResult.getDocumentText());
+            assertEquals("en", lResult.getDocumentLanguage());
+            HtmlTag lLink = JCasUtil.selectSingle(lResult.getJCas(), HtmlTag.class);
+            assertEquals("a", lLink.getTag());
+            assertEquals(9, lLink.getEnd());
+            assertEquals("Frankfurt", JCasUtil.selectSingle(lResult.getJCas(), WikiTextSpan.class).getUid());
+        }
+    }
+
+    @Test
+    public void testTypeSystemRoundTrip() throws Exception {
+        TypeSystem lTypeSystem = createCas().getTypeSystem();
+        byte[] lSerialized = BinaryCasCodec.serializeTypeSystem(lTypeSystem);
+        TypeSystem lResult = BinaryCasCodec.deserializeTypeSystem(lSerialized);
+        assertNotNull(lResult.getType(WikiTextSpan.class.getName()));
+        assertArrayEquals(BinaryCasCodec.hashTypeSystem(lSerialized), BinaryCasCodec.hashTypeSystem(BinaryCasCodec.serializeTypeSystem(lResult)));
+    }
+
+    @Test
+    public void testTypeSystemHashOfStreamResetsStream() throws Exception {
+        CAS lCas = createCas();
+        fill(lCas);
+        byte[] lTypeSystemHash = new byte[BinaryCasCodec.TYPESYSTEM_HASH_LENGTH];
+        Arrays.fill(lTypeSystemHash, (byte)7);
+        ByteArrayOutputStream lOutput = new ByteArrayOutputStream();
+        BinaryCasCodec.serialize(lCas, lTypeSystemHash, BinaryCasCodec.Compression.LZ4, lOutput);
+        BufferedInputStream lInput = new BufferedInputStream(new ByteArrayInputStream(lOutput.toByteArray()));
+        assertArrayEquals(lTypeSystemHash, BinaryCasCodec.getTypeSystemHash(lInput));
+        CAS lResult = createCas();
+        BinaryCasCodec.deserialize(lInput, lCas.getTypeSystem(), lResult);
+        assertEquals(lCas.getDocumentText(), lResult.getDocumentText());
+    }
+
+    @Test
+    public void testHashDiffersForOtherTypeSystem() throws Exception {
+        byte[] lHash = BinaryCasCodec.hashTypeSystem(BinaryCasCodec.serializeTypeSystem(createCas().getTypeSystem()));
+        CAS lOther = CasCreationUtils.createCas(TypeSystemDescriptionFactory.createTypeSystemDescription("desc.type.HtmlTagTypeSystemDescriptor"), null, null);
+        assertFalse(Arrays.equals(lHash, BinaryCasCodec.hashTypeSystem(BinaryCasCodec.serializeTypeSystem(lOther.getTypeSystem()))));
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidMagic() throws Exception {
+        CAS lCas = createCas();
+        fill(lCas);
+        ByteArrayOutputStream lOutput = new ByteArrayOutputStream();
+        BinaryCasCodec.serialize(lCas, new byte[BinaryCasCodec.TYPESYSTEM_HASH_LENGTH], BinaryCasCodec.Compression.NONE, lOutput);
+        byte[] lPayload = lOutput.toByteArray();
+        lPayload[0] = 'X';
+        BinaryCasCodec.deserialize(new ByteArrayInputStream(lPayload), lCas.getTypeSystem(), createCas());
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidCompression() throws Exception {
+        byte[] lPayload = new byte[BinaryCasCodec.HEADER_LENGTH];
+        System.arraycopy("WDC1".getBytes("US-ASCII"), 0, lPayload, 0, 4);
+        lPayload[4] = (byte)BinaryCasCodec.Compression.values().length;
+        BinaryCasCodec.getTypeSystemHash(ByteBuffer.wrap(lPayload));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedHeader() throws Exception {
+        BinaryCasCodec.getTypeSystemHash(ByteBuffer.wrap(new byte[]{'W', 'D', 'C', '1', 0}));
+    }
+
+}
@@ -0,0 +1,84 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class DocumentCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String getString(ByteBuffer pBuffer) {
+        byte[] lBytes = new byte[pBuffer.remaining()];
+        pBuffer.duplicate().get(lBytes);
+        return new String(lBytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testEntryOfSameWriteTime() throws Exception {
+        File lFile = new File(folder.getRoot(), "cache.db");
+        ByteBuffer lXMI = ByteBuffer.wrap("<xmi>Frankfurt</xmi>".getBytes(StandardCharsets.UTF_8));
+        try (DocumentCache lCache = new DocumentCache(lFile, 64L << 20)) {
+            lCache.put("dewiki", "Frankfurt", 1000, 9, lXMI.remaining(), true, lXMI, false);
+            assertEquals(0, lXMI.position());
+            assertEquals(1, lCache.size());
+        }
+        // Entries are kept across runs
+        try (DocumentCache lCache = new DocumentCache(lFile, 64L << 20)) {
+            DocumentCache.Entry lEntry = lCache.get("dewiki", "Frankfurt", 1000);
+            assertNotNull(lEntry);
+            assertEquals(1000, lEntry.getWriteTime());
+            assertEquals(9, lEntry.getTextLength());
+            assertEquals(lXMI.remaining(), lEntry.getXMILength());
+            assertTrue(lEntry.isProcessed());
+            assertFalse(lEntry.isBinary());
+            assertEquals("<xmi>Frankfurt</xmi>", getString(lEntry.getPayload()));
+        }
+    }
+
+    @Test
+    public void testStaleEntry() throws Exception {
+        try (DocumentCache lCache = new DocumentCache(new File(folder.getRoot(), "cache.db"), 64L << 20)) {
+            ByteBuffer lXMI = ByteBuffer.wrap("<xmi/>".getBytes(StandardCharsets.UTF_8));
+            lCache.put("dewiki", "Frankfurt", 1000, 0, lXMI.remaining(), false, lXMI, false);
+            // The document has been written again since it has been cached
+            assertNull(lCache.get("dewiki", "Frankfurt", 2000));
+            assertNull(lCache.get("dewiki", "Frankfurt", 999));
+            assertNull(lCache.get("enwiki", "Frankfurt", 1000));
+            assertNull(lCache.get("dewiki", "Berlin", 1000));
+
+            ByteBuffer lNewXMI = ByteBuffer.wrap("<xmi>new</xmi>".getBytes(StandardCharsets.UTF_8));
+            lCache.put("dewiki", "Frankfurt", 2000, 0, lNewXMI.remaining(), true, lNewXMI, false);
+            assertNull(lCache.get("dewiki", "Frankfurt", 1000));
+            assertEquals("<xmi>new</xmi>", getString(lCache.get("dewiki", "Frankfurt", 2000).getPayload()));
+            assertEquals(1, lCache.size());
+
+            lCache.remove("dewiki", "Frankfurt");
+            assertNull(lCache.get("dewiki", "Frankfurt", 2000));
+        }
+    }
+
+    @Test
+    public void testBinaryEntry() throws Exception {
+        try (DocumentCache lCache = new DocumentCache(new File(folder.getRoot(), "cache.db"), 64L << 20)) {
+            byte[] lPayload = {'W', 'D', 'C', '1', 0, 1, 2, 3};
+            ByteBuffer lBuffer = ByteBuffer.allocate(lPayload.length + 2);
+            lBuffer.put((byte)9).put(lPayload).flip();
+            lBuffer.position(1).limit(1 + lPayload.length);
+            lCache.put("dewiki", "Berlin", 5, 6, 0, false, lBuffer, true);
+            DocumentCache.Entry lEntry = lCache.get("dewiki", "Berlin", 5);
+            assertTrue(lEntry.isBinary());
+            byte[] lResult = new byte[lEntry.getPayload().remaining()];
+            lEntry.getPayload().get(lResult);
+            assertArrayEquals(lPayload, lResult);
+        }
+    }
+
+}
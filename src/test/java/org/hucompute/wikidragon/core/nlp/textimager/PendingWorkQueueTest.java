@@ -0,0 +1,213 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.datastax.driver.core.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class PendingWorkQueueTest {
+
+    /**
+     * processed of the documents of wikitextspannlp by dbname and raw, null if the document has no processed value
+     */
+    private final Map<List<String>, Optional<Boolean>> documents = new ConcurrentHashMap<>();
+
+    /**
+     * Keys of wikitextspannlp_pending by dbname and bucket
+     */
+    private final Map<List<Object>, Set<String>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Buckets in the order they have been queried
+     */
+    private final List<Integer> queriedBuckets = new CopyOnWriteArrayList<>();
+
+    private Session session;
+
+    private static Row createRow(Object... pValues) {
+        return (Row)Proxy.newProxyInstance(Row.class.getClassLoader(), new Class<?>[]{Row.class}, (pProxy, pMethod, pArgs) -> {
+            switch (pMethod.getName()) {
+                case "getString": return pValues[(Integer)pArgs[0]];
+                case "getBool": return Boolean.TRUE.equals(pValues[(Integer)pArgs[0]]);
+                case "isNull": return pValues[(Integer)pArgs[0]] == null;
+                default: throw new UnsupportedOperationException(pMethod.getName());
+            }
+        });
+    }
+
+    private static ResultSet createResultSet(List<Row> pRows) {
+        Iterator<Row> lRows = pRows.iterator();
+        return (ResultSet)Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class}, (pProxy, pMethod, pArgs) -> {
+            switch (pMethod.getName()) {
+                case "isExhausted": return !lRows.hasNext();
+                case "isFullyFetched":
+                case "wasApplied": return true;
+                case "getAvailableWithoutFetching": return 0;
+                case "one": return lRows.hasNext() ? lRows.next() : null;
+                default: throw new UnsupportedOperationException(pMethod.getName());
+            }
+        });
+    }
+
+    private static ResultSetFuture createFuture(ResultSet pResultSet) {
+        return (ResultSetFuture)Proxy.newProxyInstance(ResultSetFuture.class.getClassLoader(), new Class<?>[]{ResultSetFuture.class}, (pProxy, pMethod, pArgs) -> {
+            switch (pMethod.getName()) {
+                case "get":
+                case "getUninterruptibly": return pResultSet;
+                case "isDone": return true;
+                case "isCancelled":
+                case "cancel": return false;
+                case "addListener": {
+                    ((Executor)pArgs[1]).execute((Runnable)pArgs[0]);
+                    return null;
+                }
+                default: throw new UnsupportedOperationException(pMethod.getName());
+            }
+        });
+    }
+
+    /**
+     * Executes the statements of PendingWorkQueue and KeyFetchIterator on the maps
+     */
+    private ResultSet execute(BoundStatement pStatement) {
+        String lQuery = pStatement.preparedStatement().getQueryString();
+        List<Row> lRows = new ArrayList<>();
+        if (lQuery.startsWith("insert into "+PendingWorkQueue.TABLE)) {
+            pending.computeIfAbsent(Arrays.asList(pStatement.getString(0), pStatement.getInt(1)), k -> new ConcurrentSkipListSet<>()).add(pStatement.getString(2));
+        }
+        else if (lQuery.startsWith("delete from "+PendingWorkQueue.TABLE)) {
+            pending.getOrDefault(Arrays.asList(pStatement.getString(0), pStatement.getInt(1)), Collections.emptySet()).remove(pStatement.getString(2));
+        }
+        else if (lQuery.startsWith("select raw from "+PendingWorkQueue.TABLE)) {
+            queriedBuckets.add(pStatement.getInt(1));
+            for (String lRaw:pending.getOrDefault(Arrays.asList(pStatement.getString(0), pStatement.getInt(1)), Collections.emptySet())) {
+                lRows.add(createRow(lRaw));
+            }
+        }
+        else if (lQuery.equals("select dbname,raw,processed from wikitextspannlp where dbname=? and raw=?")) {
+            Optional<Boolean> lProcessed = documents.get(Arrays.asList(pStatement.getString(0), pStatement.getString(1)));
+            if (lProcessed != null) lRows.add(createRow(pStatement.getString(0), pStatement.getString(1), lProcessed.orElse(null)));
+        }
+        else {
+            throw new UnsupportedOperationException(lQuery);
+        }
+        return createResultSet(lRows);
+    }
+
+    @Before
+    public void setUp() {
+        session = (Session)Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[]{Session.class}, (pProxy, pMethod, pArgs) -> {
+            switch (pMethod.getName()) {
+                case "prepare": {
+                    String lQuery = (String)pArgs[0];
+                    if (lQuery.contains("bucket=?") && lQuery.startsWith("select")) return TestPreparedStatement.create(lQuery, DataType.text(), DataType.cint());
+                    if (lQuery.contains(PendingWorkQueue.TABLE)) return TestPreparedStatement.create(lQuery, DataType.text(), DataType.cint(), DataType.text());
+                    return TestPreparedStatement.create(lQuery, DataType.text(), DataType.text());
+                }
+                case "execute": {
+                    // Creates the table
+                    if (pArgs[0] instanceof String) return createResultSet(Collections.emptyList());
+                    return execute((BoundStatement)pArgs[0]);
+                }
+                case "executeAsync": return createFuture(execute((BoundStatement)pArgs[0]));
+                default: throw new UnsupportedOperationException(pMethod.getName());
+            }
+        });
+        documents.put(Arrays.asList("dewiki", "Frankfurt"), Optional.of(false));
+        documents.put(Arrays.asList("dewiki", "Berlin"), Optional.of(true));
+        documents.put(Arrays.asList("dewiki", "Hamburg"), Optional.empty());
+        documents.put(Arrays.asList("enwiki", "London"), Optional.of(false));
+    }
+
+    /**
+     * @return Rows of a scan of wikitextspannlp with the columns dbname, raw and processed
+     */
+    private Iterator<Row> scan() {
+        List<Row> lRows = new ArrayList<>();
+        for (Map.Entry<List<String>, Optional<Boolean>> lEntry:documents.entrySet()) {
+            lRows.add(createRow(lEntry.getKey().get(0), lEntry.getKey().get(1), lEntry.getValue().orElse(null)));
+        }
+        return lRows.iterator();
+    }
+
+    private Set<String> keys(String pDBName, int pShardIndex, int pShardCount) {
+        Set<String> lResult = new HashSet<>();
+        PendingWorkQueue.keys(session, pDBName, pShardIndex, pShardCount, 10).forEachRemaining(lResult::add);
+        return lResult;
+    }
+
+    @Test
+    public void testBackfillAddsUnprocessedDocuments() throws Exception {
+        // Documents without a processed value count as unprocessed
+        assertEquals(2, PendingWorkQueue.backfill(session, scan(), "dewiki", 4));
+        assertEquals(new HashSet<>(Arrays.asList("Frankfurt", "Hamburg")), keys("dewiki", 0, 1));
+        assertTrue(keys("enwiki", 0, 1).isEmpty());
+        // Existing keys are kept, all dbnames are backfilled without a dbname
+        assertEquals(3, PendingWorkQueue.backfill(session, scan(), null, 4));
+        assertEquals(new HashSet<>(Arrays.asList("Frankfurt", "Hamburg")), keys("dewiki", 0, 1));
+        assertEquals(Collections.singleton("London"), keys("enwiki", 0, 1));
+        for (Map.Entry<List<Object>, Set<String>> lEntry:pending.entrySet()) {
+            for (String lRaw:lEntry.getValue()) assertEquals(PendingWorkQueue.getBucket(lRaw), lEntry.getKey().get(1));
+        }
+    }
+
+    @Test
+    public void testKeysOfShardBuckets() throws Exception {
+        for (int i=0; i<2000; i++) documents.put(Arrays.asList("dewiki", "Document "+i), Optional.of(false));
+        PendingWorkQueue.backfill(session, scan(), "dewiki", 4);
+        int lShardCount = 3;
+        Set<String> lAll = new HashSet<>();
+        for (int lShardIndex=0; lShardIndex<lShardCount; lShardIndex++) {
+            queriedBuckets.clear();
+            Iterator<String> lKeys = PendingWorkQueue.keys(session, "dewiki", lShardIndex, lShardCount, 10);
+            // The buckets are queried lazily
+            assertTrue(queriedBuckets.isEmpty());
+            Set<String> lShard = new HashSet<>();
+            lKeys.forEachRemaining(lShard::add);
+            List<Integer> lExpectedBuckets = new ArrayList<>();
+            for (int lBucket=lShardIndex; lBucket<PendingWorkQueue.BUCKETS; lBucket+=lShardCount) lExpectedBuckets.add(lBucket);
+            assertEquals(lExpectedBuckets, queriedBuckets);
+            for (String lRaw:lShard) {
+                assertEquals(lShardIndex, PendingWorkQueue.getBucket(lRaw) % lShardCount);
+                assertTrue(lRaw+" is in two shards", lAll.add(lRaw));
+            }
+        }
+        assertEquals(2002, lAll.size());
+    }
+
+    @Test
+    public void testRemovalOfWrittenDocument() throws Exception {
+        PendingWorkQueue.backfill(session, scan(), "dewiki", 4);
+        // The writer removes the key once it has set processed
+        PreparedStatement lRemove = PendingWorkQueue.prepareRemove(session);
+        session.executeAsync(PendingWorkQueue.bindRemove(lRemove, "dewiki", "Frankfurt"));
+        assertEquals(Collections.singleton("Hamburg"), keys("dewiki", 0, 1));
+        session.executeAsync(PendingWorkQueue.bindRemove(lRemove, "enwiki", "Hamburg"));
+        assertEquals(Collections.singleton("Hamburg"), keys("dewiki", 0, 1));
+    }
+
+    @Test
+    public void testFetchOfListedDocuments() throws Exception {
+        PendingWorkQueue.backfill(session, scan(), "dewiki", 4);
+        // Documents which have been deleted since they have been listed are skipped
+        documents.remove(Arrays.asList("dewiki", "Frankfurt"));
+        List<String> lRaws = new ArrayList<>();
+        KeyFetchIterator lRows = PendingWorkQueue.fetch(session, "dbname,raw,processed", "dewiki", 0, 1, 10, 2);
+        while (lRows.hasNext()) {
+            Row lRow = lRows.next();
+            assertEquals("dewiki", lRow.getString(0));
+            assertTrue(lRow.isNull(2));
+            lRaws.add(lRow.getString(1));
+        }
+        assertEquals(Collections.singletonList("Hamburg"), lRaws);
+    }
+
+}
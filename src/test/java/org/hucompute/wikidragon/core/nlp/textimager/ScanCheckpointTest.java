@@ -0,0 +1,123 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.TestMetadata;
+import com.datastax.driver.core.Token;
+import com.datastax.driver.core.TokenRange;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScanCheckpointTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Metadata metadata = new TestMetadata(-4000000000000000000L, 0L, 4000000000000000000L);
+
+    private final List<TokenRange> ranges = TokenRangeScanner.splitRing(metadata.getTokenRanges(), 4);
+
+    private Token getToken(TokenRange pRange, long pOffset) {
+        return metadata.newToken(Long.toString((Long)pRange.getStart().getValue() + pOffset));
+    }
+
+    /**
+     * @return Remaining range with the end of pRange
+     */
+    private static TokenRange getRemaining(List<TokenRange> pRemaining, TokenRange pRange) {
+        for (TokenRange lRange:pRemaining) {
+            if (lRange.getEnd().equals(pRange.getEnd())) return lRange;
+        }
+        return null;
+    }
+
+    @Test
+    public void testResumeAfterCompletedDocuments() throws Exception {
+        File lFile = new File(folder.getRoot(), "checkpoint.db");
+        TokenRange lRange = ranges.get(1);
+        Token lFirst = getToken(lRange, 10);
+        Token lSecond = getToken(lRange, 20);
+        try (ScanCheckpoint lCheckpoint = new ScanCheckpoint(lFile, "scan", metadata, ranges, true)) {
+            assertFalse(lCheckpoint.isResumed());
+            lCheckpoint.deliver(lFirst);
+            lCheckpoint.deliver(lSecond);
+            // The first document is still pending, so the position must not pass it
+            lCheckpoint.complete(lSecond);
+            lCheckpoint.commit(2, 1);
+            lCheckpoint.commit(2, 1);
+        }
+        try (ScanCheckpoint lCheckpoint = new ScanCheckpoint(lFile, "scan", metadata, ranges, true)) {
+            assertTrue(lCheckpoint.isResumed());
+            List<TokenRange> lRemaining = lCheckpoint.getRemainingRanges();
+            assertEquals(ranges.size(), lRemaining.size());
+            assertEquals(lRange.getStart(), getRemaining(lRemaining, lRange).getStart());
+            lCheckpoint.deliver(lFirst);
+            lCheckpoint.deliver(lSecond);
+            lCheckpoint.complete(lFirst);
+            lCheckpoint.complete(lSecond);
+            lCheckpoint.commit(2, 2);
+            lCheckpoint.commit(2, 2);
+        }
+        try (ScanCheckpoint lCheckpoint = new ScanCheckpoint(lFile, "scan", metadata, ranges, true)) {
+            assertTrue(lCheckpoint.isResumed());
+            assertEquals(2, lCheckpoint.getRelevantDocumentsRead());
+            List<TokenRange> lRemaining = lCheckpoint.getRemainingRanges();
+            assertEquals(lSecond, getRemaining(lRemaining, lRange).getStart());
+            for (TokenRange lOther:ranges) {
+                if (lOther != lRange) assertEquals(lOther.getStart(), getRemaining(lRemaining, lOther).getStart());
+            }
+        }
+    }
+
+    @Test
+    public void testCommitStoresPreviouslyCapturedPositions() throws Exception {
+        File lFile = new File(folder.getRoot(), "checkpoint.db");
+        TokenRange lRange = ranges.get(0);
+        try (ScanCheckpoint lCheckpoint = new ScanCheckpoint(lFile, "scan", metadata, ranges, false)) {
+            lCheckpoint.deliver(getToken(lRange, 5));
+            lCheckpoint.complete(getToken(lRange, 5));
+            lCheckpoint.commit(1, 1);
+        }
+        try (ScanCheckpoint lCheckpoint = new ScanCheckpoint(lFile, "scan", metadata, ranges, true)) {
+            assertEquals(lRange.getStart(), getRemaining(lCheckpoint.getRemainingRanges(), lRange).getStart());
+        }
+    }
+
+    @Test
+    public void testOtherScanIsNotResumed() throws Exception {
+        File lFile = new File(folder.getRoot(), "checkpoint.db");
+        TokenRange lRange = ranges.get(0);
+        try (ScanCheckpoint lCheckpoint = new ScanCheckpoint(lFile, "scan", metadata, ranges, false)) {
+            lCheckpoint.deliver(getToken(lRange, 5));
+            lCheckpoint.complete(getToken(lRange, 5));
+            lCheckpoint.commit(1, 1);
+            lCheckpoint.commit(1, 1);
+        }
+        try (ScanCheckpoint lCheckpoint = new ScanCheckpoint(lFile, "other scan", metadata, ranges, true)) {
+            assertFalse(lCheckpoint.isResumed());
+            assertEquals(0, lCheckpoint.getRelevantDocumentsRead());
+            assertEquals(ranges, lCheckpoint.getRemainingRanges());
+        }
+    }
+
+    @Test
+    public void testCompleteScanHasNoRemainingRanges() throws Exception {
+        File lFile = new File(folder.getRoot(), "checkpoint.db");
+        try (ScanCheckpoint lCheckpoint = new ScanCheckpoint(lFile, "scan", metadata, ranges, false)) {
+            lCheckpoint.setTotals(10, 5);
+            lCheckpoint.markComplete(10, 5);
+        }
+        try (ScanCheckpoint lCheckpoint = new ScanCheckpoint(lFile, "scan", metadata, ranges, true)) {
+            assertTrue(lCheckpoint.isComplete());
+            assertTrue(lCheckpoint.getRemainingRanges().isEmpty());
+            assertEquals(10, lCheckpoint.getDocumentsTotal());
+            assertEquals(5, lCheckpoint.getRelevantDocumentsTotal());
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.impl.XmiCasSerializer;
+import org.apache.uima.collection.CollectionReaderDescription;
+import org.apache.uima.fit.component.JCasAnnotator_ImplBase;
+import org.apache.uima.fit.pipeline.SimplePipeline;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.ExternalResourceDescription;
+import org.hucompute.wikidragon.core.nlp.annotation.WikiTextSpan;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngineDescription;
+import static org.apache.uima.fit.factory.CollectionReaderFactory.createReaderDescription;
+import static org.apache.uima.fit.factory.ExternalResourceFactory.createExternalResourceDescription;
+import static org.junit.Assert.*;
+
+/**
+ * Runs reader and writer end-to-end against SimulatedWikiTextSpanStore
+ */
+public class SimulatedWikiTextSpanStoreTest {
+
+    private static final String STORE = "SimulatedWikiTextSpanStoreTest";
+
+    private static final int DOCUMENTS = 25;
+
+    /**
+     * Adds a sentence covering the document
+     */
+    public static class SentenceAnnotator extends JCasAnnotator_ImplBase {
+        @Override
+        public void process(JCas aJCas) throws AnalysisEngineProcessException {
+            new Sentence(aJCas, 0, aJCas.getDocumentText().length()).addToIndexes();
+        }
+    }
+
+    /**
+     * Records the documents and counts their sentences
+     */
+    public static class DocumentRecorder extends JCasAnnotator_ImplBase {
+        private static final Set<String> documents = ConcurrentHashMap.newKeySet();
+        private static final AtomicInteger sentences = new AtomicInteger();
+
+        @Override
+        public void process(JCas aJCas) throws AnalysisEngineProcessException {
+            documents.add(JCasUtil.selectSingle(aJCas, WikiTextSpan.class).getUid());
+            sentences.addAndGet(JCasUtil.select(aJCas, Sentence.class).size());
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ExternalResourceDescription store;
+
+    @Before
+    public void setUp() throws Exception {
+        File lDataset = folder.newFolder("dataset");
+        for (int i=0; i<DOCUMENTS; i++) {
+            CAS lCas = BinaryCasCodecTest.createCas();
+            JCas lJCas = lCas.getJCas();
+            lJCas.setDocumentText("Document "+i+" of the simulated store.");
+            lJCas.setDocumentLanguage("en");
+            WikiTextSpan lSpan = new WikiTextSpan(lJCas, 0, lJCas.getDocumentText().length());
+            lSpan.setUid("document-"+i);
+            lSpan.addToIndexes();
+            try (OutputStream lOutput = new FileOutputStream(new File(lDataset, "document-"+i+".xmi"))) {
+                XmiCasSerializer.serialize(lCas, lOutput);
+            }
+        }
+        store = createExternalResourceDescription(SimulatedWikiTextSpanStore.class, "file:simulated",
+                SimulatedWikiTextSpanStore.PARAM_NAME, STORE,
+                SimulatedWikiTextSpanStore.PARAM_DBNAME, "simulated",
+                SimulatedWikiTextSpanStore.PARAM_DATASETDIRECTORY, lDataset.getAbsolutePath(),
+                SimulatedWikiTextSpanStore.PARAM_LATENCYMILLIS, 0,
+                SimulatedWikiTextSpanStore.PARAM_PAGESIZE, 10);
+        DocumentRecorder.documents.clear();
+        DocumentRecorder.sentences.set(0);
+    }
+
+    @After
+    public void tearDown() {
+        SimulatedWikiTextSpanStore.drop(STORE);
+    }
+
+    private CollectionReaderDescription createReader(WikiDragonCassandraCollectionReader.ProcessingState pProcessingState) throws Exception {
+        return createReaderDescription(WikiDragonCassandraCollectionReader.class,
+                WikiDragonCassandraCollectionReader.PARAM_KEYSPACE, "simulated",
+                WikiDragonCassandraCollectionReader.PARAM_DBNAME, "simulated",
+                WikiDragonCassandraCollectionReader.PARAM_PROCESSINGSTATE, pProcessingState,
+                WikiDragonCassandraCollectionReader.PARAM_SKIPZEROLENGTH, true,
+                WikiDragonCassandraCollectionReader.PARAM_TOTALMODE, WikiDragonCassandraCollectionReader.TotalMode.ESTIMATE,
+                WikiDragonCassandraCollectionReader.RES_STORE, store);
+    }
+
+    /**
+     * Annotates the unprocessed documents and writes them in the storage format
+     */
+    private void process(WikiDragonCassandraWriter.StorageFormat pStorageFormat, File pJournal) throws Exception {
+        SimplePipeline.runPipeline(createReader(WikiDragonCassandraCollectionReader.ProcessingState.UNPROCESSED),
+                createEngineDescription(SentenceAnnotator.class),
+                createEngineDescription(WikiDragonCassandraWriter.class,
+                        WikiDragonCassandraWriter.PARAM_KEYSPACE, "simulated",
+                        WikiDragonCassandraWriter.PARAM_DBNAME, "simulated",
+                        WikiDragonCassandraWriter.PARAM_STORAGEFORMAT, pStorageFormat,
+                        WikiDragonCassandraWriter.PARAM_JOURNALFILE, pJournal != null ? pJournal.getAbsolutePath() : null,
+                        WikiDragonCassandraWriter.PARAM_JOURNALRETRYDELAYMILLIS, 100,
+                        WikiDragonCassandraWriter.RES_STORE, store));
+    }
+
+    /**
+     * Records the documents of the processing state
+     */
+    private void read(WikiDragonCassandraCollectionReader.ProcessingState pProcessingState) throws Exception {
+        DocumentRecorder.documents.clear();
+        DocumentRecorder.sentences.set(0);
+        SimplePipeline.runPipeline(createReader(pProcessingState), createEngineDescription(DocumentRecorder.class));
+    }
+
+    private void assertProcessed() throws Exception {
+        assertEquals(DOCUMENTS, SimulatedWikiTextSpanStore.get(STORE).getProcessedCount());
+        // Processed documents are not relevant anymore
+        read(WikiDragonCassandraCollectionReader.ProcessingState.UNPROCESSED);
+        assertTrue(DocumentRecorder.documents.isEmpty());
+        // The written documents hold the annotations of the pipeline
+        read(WikiDragonCassandraCollectionReader.ProcessingState.PROCESSED);
+        assertEquals(DOCUMENTS, DocumentRecorder.documents.size());
+        assertTrue(DocumentRecorder.documents.contains("document-0"));
+        assertEquals(DOCUMENTS, DocumentRecorder.sentences.get());
+        read(WikiDragonCassandraCollectionReader.ProcessingState.ANY);
+        assertEquals(DOCUMENTS, DocumentRecorder.documents.size());
+    }
+
+    @Test
+    public void testUnprocessedDocuments() throws Exception {
+        read(WikiDragonCassandraCollectionReader.ProcessingState.UNPROCESSED);
+        assertEquals(DOCUMENTS, DocumentRecorder.documents.size());
+        assertEquals(0, DocumentRecorder.sentences.get());
+        read(WikiDragonCassandraCollectionReader.ProcessingState.PROCESSED);
+        assertTrue(DocumentRecorder.documents.isEmpty());
+        assertEquals(0, SimulatedWikiTextSpanStore.get(STORE).getProcessedCount());
+    }
+
+    @Test
+    public void testProcessXMI() throws Exception {
+        process(WikiDragonCassandraWriter.StorageFormat.XMI, null);
+        assertProcessed();
+    }
+
+    @Test
+    public void testProcessBinary() throws Exception {
+        process(WikiDragonCassandraWriter.StorageFormat.BINARY, null);
+        assertProcessed();
+    }
+
+    @Test
+    public void testProcessWithJournal() throws Exception {
+        File lJournal = new File(folder.getRoot(), "journal.db");
+        process(WikiDragonCassandraWriter.StorageFormat.XMI, lJournal);
+        assertProcessed();
+    }
+
+}
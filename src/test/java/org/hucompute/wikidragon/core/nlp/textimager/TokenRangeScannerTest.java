@@ -0,0 +1,195 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.datastax.driver.core.*;
+import com.datastax.driver.core.exceptions.DriverException;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TokenRangeScannerTest {
+
+    private static final long[] NODE_TOKENS = {-6000000000000000000L, -1500000000000000000L, 2500000000000000000L, 7000000000000000000L};
+
+    /**
+     * @return Start and end of the unwrapped range, an end at or before the start is the end of the ring
+     */
+    private static long[] getBounds(TokenRange pRange) {
+        long lStart = (Long)pRange.getStart().getValue();
+        long lEnd = pRange.getEnd().compareTo(pRange.getStart()) <= 0 ? Long.MAX_VALUE : (Long)pRange.getEnd().getValue();
+        return new long[]{lStart, lEnd};
+    }
+
+    /**
+     * Asserts that the ranges cover the ring from Long.MIN_VALUE to Long.MAX_VALUE without gaps and overlaps
+     */
+    private static void assertRingCovered(List<TokenRange> pRanges) {
+        List<long[]> lBounds = new ArrayList<>();
+        for (TokenRange lRange:pRanges) {
+            assertFalse(lRange+" is wrapped", lRange.isWrappedAround());
+            lBounds.add(getBounds(lRange));
+        }
+        lBounds.sort(Comparator.comparingLong(b -> b[0]));
+        long lPosition = Long.MIN_VALUE;
+        for (long[] lBound:lBounds) {
+            assertEquals("Gap or overlap at "+lPosition, lPosition, lBound[0]);
+            assertTrue(lBound[1] > lBound[0]);
+            lPosition = lBound[1];
+        }
+        assertEquals(Long.MAX_VALUE, lPosition);
+    }
+
+    @Test
+    public void testSplitRingCoversRing() {
+        Metadata lMetadata = new TestMetadata(NODE_TOKENS);
+        for (int lRangeCount:new int[]{1, 4, 10, 64}) {
+            List<TokenRange> lRanges = TokenRangeScanner.splitRing(lMetadata.getTokenRanges(), lRangeCount);
+            assertTrue(lRanges.size() >= lRangeCount);
+            assertRingCovered(lRanges);
+            double lFraction = 0;
+            for (TokenRange lRange:lRanges) lFraction += TokenRangeScanner.getRingFraction(lRange);
+            assertEquals(1, lFraction, 1e-9);
+        }
+    }
+
+    @Test
+    public void testShardRangesCoverRingWithoutOverlap() {
+        Metadata lMetadata = new TestMetadata(NODE_TOKENS);
+        for (int lShardCount:new int[]{2, 3, 7}) {
+            List<TokenRange> lAll = new ArrayList<>();
+            for (int i=0; i<lShardCount; i++) {
+                List<TokenRange> lShard = TokenRangeScanner.getShardRanges(lMetadata, 16, i, lShardCount);
+                assertFalse(lShard.isEmpty());
+                double lFraction = 0;
+                for (TokenRange lRange:lShard) lFraction += TokenRangeScanner.getRingFraction(lRange);
+                assertEquals("Fraction of shard "+i+" of "+lShardCount, 1.0/lShardCount, lFraction, 1e-9);
+                lAll.addAll(lShard);
+            }
+            assertRingCovered(lAll);
+        }
+    }
+
+    @Test
+    public void testSingleShardIsWholeRing() {
+        Metadata lMetadata = new TestMetadata(NODE_TOKENS);
+        assertEquals(TokenRangeScanner.splitRing(lMetadata.getTokenRanges(), 8), TokenRangeScanner.getShardRanges(lMetadata, 8, 0, 1));
+    }
+
+    /**
+     * Rows of a table with the partitions -50 to 50 in steps of 10, partition 0 holds two rows
+     */
+    private static final long[][] ROWS = {{-50, 0}, {-40, 0}, {-30, 0}, {-20, 0}, {-10, 0}, {0, 0}, {0, 1}, {10, 0}, {20, 0}, {30, 0}, {40, 0}, {50, 0}};
+
+    private static Row createRow(Metadata pMetadata, long[] pRow) {
+        Token lToken = pMetadata.newToken(Long.toString(pRow[0]));
+        return (Row)Proxy.newProxyInstance(Row.class.getClassLoader(), new Class<?>[]{Row.class}, (pProxy, pMethod, pArgs) -> {
+            switch (pMethod.getName()) {
+                case "getPartitionKeyToken": return lToken;
+                case "getString": return pRow[0]+"/"+pRow[1];
+                default: throw new UnsupportedOperationException(pMethod.getName());
+            }
+        });
+    }
+
+    /**
+     * @param pFailures Count of rows after which each query fails, the following queries succeed
+     * @param pStatements Records the executed statements
+     */
+    private static Session createSession(Metadata pMetadata, int[] pFailures, List<BoundStatement> pStatements) {
+        AtomicInteger lQueries = new AtomicInteger();
+        return (Session)Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[]{Session.class}, (pProxy, pMethod, pArgs) -> {
+            switch (pMethod.getName()) {
+                case "prepare": return TestPreparedStatement.create((String)pArgs[0]);
+                case "execute": {
+                    BoundStatement lStatement = (BoundStatement)pArgs[0];
+                    pStatements.add(lStatement);
+                    int lQuery = lQueries.getAndIncrement();
+                    int lFailure = lQuery < pFailures.length ? pFailures[lQuery] : Integer.MAX_VALUE;
+                    boolean lInclusive = lStatement.preparedStatement().getQueryString().contains(">=");
+                    long lStart = lStatement.getLong(0);
+                    long lEnd = lStatement.getLong(1);
+                    List<Row> lRows = new ArrayList<>();
+                    for (long[] lRow:ROWS) {
+                        if ((lInclusive ? lRow[0] >= lStart : lRow[0] > lStart) && (lRow[0] <= lEnd)) lRows.add(createRow(pMetadata, lRow));
+                    }
+                    return createResultSet(lRows, lFailure);
+                }
+                default: throw new UnsupportedOperationException(pMethod.getName());
+            }
+        });
+    }
+
+    private static ResultSet createResultSet(List<Row> pRows, int pFailure) {
+        Iterator<Row> lRows = pRows.iterator();
+        AtomicInteger lReturned = new AtomicInteger();
+        return (ResultSet)Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class}, (pProxy, pMethod, pArgs) -> {
+            switch (pMethod.getName()) {
+                case "isExhausted": return !lRows.hasNext();
+                case "isFullyFetched": return true;
+                case "getAvailableWithoutFetching": return pRows.size() - lReturned.get();
+                case "one": {
+                    if (lReturned.get() == pFailure) throw new DriverException("Replica failed");
+                    lReturned.incrementAndGet();
+                    return lRows.next();
+                }
+                default: throw new UnsupportedOperationException(pMethod.getName());
+            }
+        });
+    }
+
+    private static TokenRangeScanner createScanner(Metadata pMetadata, Session pSession) {
+        TokenRange lRange = pMetadata.newTokenRange(pMetadata.newToken("-100"), pMetadata.newToken("100"));
+        return new TokenRangeScanner(pSession, pMetadata, "wikidragon", "wikitextspannlp", "raw", "dbname,raw", null, null, Collections.singletonList(lRange), 1, 100, 100);
+    }
+
+    @Test
+    public void testFailedRangeIsResumed() {
+        Metadata lMetadata = new TestMetadata(NODE_TOKENS);
+        List<BoundStatement> lStatements = new CopyOnWriteArrayList<>();
+        // The first query fails within partition 0, after its first row
+        List<String> lResult = new ArrayList<>();
+        try (TokenRangeScanner lScanner = createScanner(lMetadata, createSession(lMetadata, new int[]{6}, lStatements))) {
+            while (lScanner.hasNext()) lResult.add(lScanner.next().getString(0));
+        }
+        List<String> lExpected = new ArrayList<>();
+        for (long[] lRow:ROWS) lExpected.add(lRow[0]+"/"+lRow[1]);
+        assertEquals(lExpected, lResult);
+        assertEquals(2, lStatements.size());
+        assertTrue(lStatements.get(0).preparedStatement().getQueryString().contains("token(dbname,raw) > ?"));
+        assertEquals(-100, lStatements.get(0).getLong(0));
+        // The range is resumed at the partition of the last queued row
+        assertTrue(lStatements.get(1).preparedStatement().getQueryString().contains("token(dbname,raw) >= ?"));
+        assertEquals(0, lStatements.get(1).getLong(0));
+        assertEquals(100, lStatements.get(1).getLong(1));
+    }
+
+    @Test
+    public void testRangeFailsAfterAttempts() {
+        Metadata lMetadata = new TestMetadata(NODE_TOKENS);
+        List<BoundStatement> lStatements = new CopyOnWriteArrayList<>();
+        int[] lFailures = new int[TokenRangeScanner.RANGE_ATTEMPTS];
+        List<String> lResult = new ArrayList<>();
+        try (TokenRangeScanner lScanner = createScanner(lMetadata, createSession(lMetadata, lFailures, lStatements))) {
+            while (lScanner.hasNext()) lResult.add(lScanner.next().getString(0));
+            fail("Failure of the range has not been thrown");
+        }
+        catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof DriverException);
+        }
+        assertTrue(lResult.isEmpty());
+        assertEquals(TokenRangeScanner.RANGE_ATTEMPTS, lStatements.size());
+        for (BoundStatement lStatement:lStatements) {
+            assertNull(lStatement.getHost());
+            assertTrue(lStatement.preparedStatement().getQueryString().startsWith("select raw,token(dbname,raw) from wikitextspannlp"));
+        }
+    }
+
+}
@@ -0,0 +1,47 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import org.hucompute.wikidragon.core.nlp.textimager.WikiDragonCassandraCollectionReader.ProcessingState;
+import org.junit.Test;
+
+import static org.hucompute.wikidragon.core.nlp.textimager.WikiDragonCassandraCollectionReader.isRelevant;
+import static org.junit.Assert.*;
+
+public class WikiDragonCassandraCollectionReaderTest {
+
+    @Test
+    public void testProcessingState() {
+        assertTrue(isRelevant("dewiki", 10, false, "dewiki", ProcessingState.UNPROCESSED, true));
+        assertFalse(isRelevant("dewiki", 10, true, "dewiki", ProcessingState.UNPROCESSED, true));
+        assertTrue(isRelevant("dewiki", 10, true, "dewiki", ProcessingState.PROCESSED, true));
+        assertFalse(isRelevant("dewiki", 10, false, "dewiki", ProcessingState.PROCESSED, true));
+        assertTrue(isRelevant("dewiki", 10, false, "dewiki", ProcessingState.ANY, true));
+        assertTrue(isRelevant("dewiki", 10, true, "dewiki", ProcessingState.ANY, true));
+    }
+
+    @Test
+    public void testWithoutProcessedValue() {
+        // Freshly imported documents have no processed value yet
+        assertTrue(isRelevant("dewiki", 10, null, "dewiki", ProcessingState.UNPROCESSED, true));
+        assertFalse(isRelevant("dewiki", 10, null, "dewiki", ProcessingState.PROCESSED, true));
+        assertTrue(isRelevant("dewiki", 10, null, "dewiki", ProcessingState.ANY, true));
+        assertFalse(isRelevant("dewiki", 0, null, "dewiki", ProcessingState.UNPROCESSED, true));
+        assertFalse(isRelevant("enwiki", 10, null, "dewiki", ProcessingState.UNPROCESSED, true));
+    }
+
+    @Test
+    public void testOtherDBName() {
+        for (ProcessingState lProcessingState:ProcessingState.values()) {
+            assertFalse(isRelevant("enwiki", 10, false, "dewiki", lProcessingState, false));
+            assertFalse(isRelevant("enwiki", 10, true, "dewiki", lProcessingState, false));
+        }
+    }
+
+    @Test
+    public void testZeroLength() {
+        assertFalse(isRelevant("dewiki", 0, false, "dewiki", ProcessingState.UNPROCESSED, true));
+        assertFalse(isRelevant("dewiki", 0, true, "dewiki", ProcessingState.ANY, true));
+        assertTrue(isRelevant("dewiki", 0, false, "dewiki", ProcessingState.UNPROCESSED, false));
+        assertTrue(isRelevant("dewiki", 0, true, "dewiki", ProcessingState.ANY, false));
+    }
+
+}
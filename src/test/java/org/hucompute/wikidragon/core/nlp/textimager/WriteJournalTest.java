@@ -0,0 +1,136 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.Futures;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class WriteJournalTest {
+
+    private static final String IDENTITY = "keyspace/dbname/XMI";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] getBytes(String pString) {
+        return pString.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testReplayOfUnwrittenEntries() throws Exception {
+        File lFile = new File(folder.getRoot(), "journal.db");
+        Map<String, byte[]> lLayers = new LinkedHashMap<>();
+        lLayers.put("tokens", getBytes("<tokens/>"));
+        lLayers.put("sentences", getBytes("<sentences/>"));
+        WriteJournal.Entry lDocument = WriteJournal.Entry.forDocument("Frankfurt", getBytes("<xmi/>"), false);
+        WriteJournal.Entry lBinary = WriteJournal.Entry.forDocument("Berlin", new byte[]{1, 2, 3}, true);
+        WriteJournal.Entry lLayerEntry = WriteJournal.Entry.forLayers("Frankfurt", 42, lLayers);
+        // Writes fail and are not retried before the journal is closed
+        WriteJournal lJournal = new WriteJournal(lFile, IDENTITY, e -> Futures.immediateFailedFuture(new IOException("Unavailable")), 4, 3600000, new Timer());
+        lJournal.append(lDocument);
+        lJournal.append(lBinary);
+        lJournal.append(lLayerEntry);
+        assertTrue(lDocument.getTimestamp() < lBinary.getTimestamp());
+        assertTrue(lBinary.getTimestamp() < lLayerEntry.getTimestamp());
+        assertEquals(3, lJournal.size());
+        lJournal.close();
+
+        List<WriteJournal.Entry> lWritten = new CopyOnWriteArrayList<>();
+        lJournal = new WriteJournal(lFile, IDENTITY, e -> {
+            lWritten.add(e);
+            return Futures.immediateFuture(null);
+        }, 4, 100, new Timer());
+        try {
+            assertEquals(0, lJournal.flush(10000));
+        }
+        finally {
+            lJournal.close();
+        }
+        assertEquals(3, lWritten.size());
+        lWritten.sort((a, b) -> Long.compare(a.getTimestamp(), b.getTimestamp()));
+
+        WriteJournal.Entry lEntry = lWritten.get(0);
+        assertEquals("Frankfurt", lEntry.getRaw());
+        assertFalse(lEntry.isLayers());
+        assertFalse(lEntry.isBinary());
+        assertArrayEquals(getBytes("<xmi/>"), lEntry.getPayload());
+        assertEquals(lDocument.getTimestamp(), lEntry.getTimestamp());
+
+        lEntry = lWritten.get(1);
+        assertEquals("Berlin", lEntry.getRaw());
+        assertTrue(lEntry.isBinary());
+        assertArrayEquals(new byte[]{1, 2, 3}, lEntry.getPayload());
+        assertEquals(lBinary.getTimestamp(), lEntry.getTimestamp());
+
+        lEntry = lWritten.get(2);
+        assertEquals("Frankfurt", lEntry.getRaw());
+        assertTrue(lEntry.isLayers());
+        assertEquals(42, lEntry.getMergePoint());
+        assertEquals(lLayers.keySet(), lEntry.getLayers().keySet());
+        assertArrayEquals(lLayers.get("tokens"), lEntry.getLayers().get("tokens"));
+        assertArrayEquals(lLayers.get("sentences"), lEntry.getLayers().get("sentences"));
+        assertEquals(lLayerEntry.getTimestamp(), lEntry.getTimestamp());
+    }
+
+    @Test
+    public void testFailedWritesAreRetried() throws Exception {
+        AtomicInteger lAttempts = new AtomicInteger();
+        WriteJournal lJournal = new WriteJournal(new File(folder.getRoot(), "journal.db"), IDENTITY, e -> {
+            if (lAttempts.incrementAndGet() <= 2) return Futures.immediateFailedFuture(new IOException("Unavailable"));
+            return Futures.immediateFuture(null);
+        }, 1, 10, new Timer());
+        try {
+            lJournal.append(WriteJournal.Entry.forDocument("Frankfurt", getBytes("<xmi/>"), false));
+            assertEquals(0, lJournal.flush(10000));
+            assertEquals(0, lJournal.size());
+            assertEquals(2, lJournal.getFailures());
+            assertEquals(3, lAttempts.get());
+        }
+        finally {
+            lJournal.close();
+        }
+    }
+
+    @Test
+    public void testOtherIdentityIsRejected() throws Exception {
+        File lFile = new File(folder.getRoot(), "journal.db");
+        WriteJournal lJournal = new WriteJournal(lFile, IDENTITY, e -> Futures.immediateFailedFuture(new IOException("Unavailable")), 1, 3600000, new Timer());
+        lJournal.append(WriteJournal.Entry.forDocument("Frankfurt", getBytes("<xmi/>"), false));
+        lJournal.close();
+        try {
+            new WriteJournal(lFile, "keyspace/dbname/BINARY", e -> Futures.immediateFuture(null), 1, 100, new Timer());
+            fail("Journal with entries of another identity has been opened");
+        }
+        catch (IOException e) {
+            // Expected
+        }
+        // The entries are kept for the configuration they belong to
+        lJournal = new WriteJournal(lFile, IDENTITY, e -> Futures.immediateFuture(null), 1, 100, new Timer());
+        try {
+            assertEquals(0, lJournal.flush(10000));
+        }
+        finally {
+            lJournal.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testAppendAfterClose() throws Exception {
+        WriteJournal lJournal = new WriteJournal(new File(folder.getRoot(), "journal.db"), IDENTITY, e -> Futures.immediateFuture(null), 1, 100, new Timer());
+        lJournal.close();
+        lJournal.append(WriteJournal.Entry.forDocument("Frankfurt", getBytes("<xmi/>"), false));
+    }
+
+}
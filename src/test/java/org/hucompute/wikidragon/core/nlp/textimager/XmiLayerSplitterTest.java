@@ -0,0 +1,132 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Marker;
+import org.apache.uima.cas.impl.XmiCasDeserializer;
+import org.apache.uima.cas.impl.XmiCasSerializer;
+import org.apache.uima.cas.impl.XmiSerializationSharedData;
+import org.apache.uima.fit.util.JCasUtil;
+import org.hucompute.wikidragon.core.nlp.annotation.WikiTextSpan;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class XmiLayerSplitterTest {
+
+    private static final String[] LAYER_TYPES = {"tokens="+Token.class.getName(), "sentences="+Sentence.class.getName()};
+
+    private static final String TEXT = "Frankfurt is a city in Germany.";
+
+    /**
+     * @return Document without tokens and sentences
+     */
+    private static byte[] createDocument(XmiSerializationSharedData pSharedData) throws Exception {
+        CAS lCas = BinaryCasCodecTest.createCas();
+        BinaryCasCodecTest.fill(lCas);
+        ByteArrayOutputStream lOutput = new ByteArrayOutputStream();
+        XmiCasSerializer.serialize(lCas, lCas.getTypeSystem(), lOutput, false, pSharedData);
+        return lOutput.toByteArray();
+    }
+
+    /**
+     * @return Delta of tokens and sentences which are added to the document
+     */
+    private static byte[] createDelta(byte[] pDocument, XmiSerializationSharedData pSharedData) throws Exception {
+        CAS lCas = BinaryCasCodecTest.createCas();
+        XmiCasDeserializer.deserialize(new ByteArrayInputStream(pDocument), lCas, false, pSharedData);
+        Marker lMarker = lCas.createMarker();
+        int lBegin = 0;
+        for (String lWord:TEXT.substring(0, TEXT.length() - 1).split(" ")) {
+            new Token(lCas.getJCas(), lBegin, lBegin + lWord.length()).addToIndexes();
+            lBegin += lWord.length() + 1;
+        }
+        new Sentence(lCas.getJCas(), 0, TEXT.length()).addToIndexes();
+        ByteArrayOutputStream lOutput = new ByteArrayOutputStream();
+        XmiCasSerializer.serialize(lCas, lCas.getTypeSystem(), lOutput, false, pSharedData, lMarker);
+        return lOutput.toByteArray();
+    }
+
+    /**
+     * @return Document merged with the layers
+     */
+    private static CAS merge(byte[] pDocument, byte[]... pLayers) throws Exception {
+        CAS lCas = BinaryCasCodecTest.createCas();
+        XmiSerializationSharedData lSharedData = new XmiSerializationSharedData();
+        XmiCasDeserializer.deserialize(new ByteArrayInputStream(pDocument), lCas, false, lSharedData);
+        int lMergePoint = lSharedData.getMaxXmiId();
+        for (byte[] lLayer:pLayers) {
+            XmiCasDeserializer.deserialize(new ByteArrayInputStream(lLayer), lCas, false, lSharedData, lMergePoint);
+        }
+        return lCas;
+    }
+
+    @Test
+    public void testSplitByLayer() throws Exception {
+        XmiSerializationSharedData lSharedData = new XmiSerializationSharedData();
+        byte[] lDocument = createDocument(lSharedData);
+        byte[] lDelta = createDelta(lDocument, lSharedData);
+        XmiLayerSplitter lSplitter = new XmiLayerSplitter(BinaryCasCodecTest.createCas().getTypeSystem(), LAYER_TYPES, null);
+        assertEquals(Arrays.asList("tokens", "sentences"), Arrays.asList(lSplitter.getLayers().toArray()));
+        Map<String, byte[]> lLayers = lSplitter.split(new ByteArrayInputStream(lDelta));
+        assertEquals(lSplitter.getLayers(), lLayers.keySet());
+
+        CAS lTokens = merge(lDocument, lLayers.get("tokens"));
+        assertEquals(6, JCasUtil.select(lTokens.getJCas(), Token.class).size());
+        assertTrue(JCasUtil.select(lTokens.getJCas(), Sentence.class).isEmpty());
+        assertEquals("Frankfurt", JCasUtil.selectSingle(lTokens.getJCas(), WikiTextSpan.class).getUid());
+
+        CAS lSentences = merge(lDocument, lLayers.get("sentences"));
+        assertTrue(JCasUtil.select(lSentences.getJCas(), Token.class).isEmpty());
+        assertEquals(1, JCasUtil.select(lSentences.getJCas(), Sentence.class).size());
+
+        CAS lAll = merge(lDocument, lLayers.get("sentences"), lLayers.get("tokens"));
+        assertEquals(6, JCasUtil.select(lAll.getJCas(), Token.class).size());
+        assertEquals(1, JCasUtil.select(lAll.getJCas(), Sentence.class).size());
+        assertEquals("Frankfurt", JCasUtil.selectCovered(lAll.getJCas(), Token.class, 0, 9).get(0).getCoveredText());
+    }
+
+    @Test
+    public void testDefaultLayer() throws Exception {
+        XmiSerializationSharedData lSharedData = new XmiSerializationSharedData();
+        byte[] lDocument = createDocument(lSharedData);
+        byte[] lDelta = createDelta(lDocument, lSharedData);
+        XmiLayerSplitter lSplitter = new XmiLayerSplitter(BinaryCasCodecTest.createCas().getTypeSystem(), new String[]{LAYER_TYPES[0]}, "rest");
+        Map<String, byte[]> lLayers = lSplitter.split(new ByteArrayInputStream(lDelta));
+        assertEquals(Arrays.asList("tokens", "rest"), Arrays.asList(lLayers.keySet().toArray()));
+        CAS lRest = merge(lDocument, lLayers.get("rest"));
+        assertTrue(JCasUtil.select(lRest.getJCas(), Token.class).isEmpty());
+        assertEquals(1, JCasUtil.select(lRest.getJCas(), Sentence.class).size());
+    }
+
+    @Test
+    public void testParseLayerTypes() throws Exception {
+        Map<String, String[]> lLayerTypes = XmiLayerSplitter.parseLayerTypes(new String[]{"a = x, y", "b=z"});
+        assertArrayEquals(new String[]{"x", "y"}, lLayerTypes.get("a"));
+        assertArrayEquals(new String[]{"z"}, lLayerTypes.get("b"));
+        assertTrue(XmiLayerSplitter.parseLayerTypes(null).isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void testLayerMappedTwice() throws Exception {
+        XmiLayerSplitter.parseLayerTypes(new String[]{"a=x", "a=y"});
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidLayerMapping() throws Exception {
+        XmiLayerSplitter.parseLayerTypes(new String[]{"a"});
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownLayerType() throws Exception {
+        new XmiLayerSplitter(BinaryCasCodecTest.createCas().getTypeSystem(), new String[]{"a=org.example.Unknown"}, null);
+    }
+
+}
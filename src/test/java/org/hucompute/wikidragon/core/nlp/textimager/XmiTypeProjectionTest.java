@@ -0,0 +1,74 @@
+package org.hucompute.wikidragon.core.nlp.textimager;
+
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.impl.XmiCasSerializer;
+import org.apache.uima.fit.util.JCasUtil;
+import org.hucompute.wikidragon.core.nlp.annotation.HtmlTag;
+import org.hucompute.wikidragon.core.nlp.annotation.WikiTextSpan;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class XmiTypeProjectionTest {
+
+    private static byte[] createXMI() throws Exception {
+        CAS lCas = BinaryCasCodecTest.createCas();
+        BinaryCasCodecTest.fill(lCas);
+        new Token(lCas.getJCas(), 0, 9).addToIndexes();
+        new Sentence(lCas.getJCas(), 0, lCas.getDocumentText().length()).addToIndexes();
+        ByteArrayOutputStream lOutput = new ByteArrayOutputStream();
+        XmiCasSerializer.serialize(lCas, lOutput);
+        return lOutput.toByteArray();
+    }
+
+    @Test
+    public void testKeepTypes() throws Exception {
+        CAS lCas = BinaryCasCodecTest.createCas();
+        XmiTypeProjection lProjection = new XmiTypeProjection(lCas.getTypeSystem(), new String[]{WikiTextSpan.class.getName()}, null);
+        lProjection.deserialize(new ByteArrayInputStream(createXMI()), lCas, null, -1);
+        assertEquals("Frankfurt is a city in Germany.", lCas.getDocumentText());
+        assertEquals("Frankfurt", JCasUtil.selectSingle(lCas.getJCas(), WikiTextSpan.class).getUid());
+        assertTrue(JCasUtil.select(lCas.getJCas(), HtmlTag.class).isEmpty());
+        assertTrue(JCasUtil.select(lCas.getJCas(), Token.class).isEmpty());
+        assertTrue(JCasUtil.select(lCas.getJCas(), Sentence.class).isEmpty());
+    }
+
+    @Test
+    public void testDropTypes() throws Exception {
+        CAS lCas = BinaryCasCodecTest.createCas();
+        XmiTypeProjection lProjection = new XmiTypeProjection(lCas.getTypeSystem(), null, new String[]{Token.class.getName(), HtmlTag.class.getName()});
+        lProjection.deserialize(new ByteArrayInputStream(createXMI()), lCas, null, -1);
+        assertEquals(1, JCasUtil.select(lCas.getJCas(), WikiTextSpan.class).size());
+        assertEquals(1, JCasUtil.select(lCas.getJCas(), Sentence.class).size());
+        assertTrue(JCasUtil.select(lCas.getJCas(), Token.class).isEmpty());
+        assertTrue(JCasUtil.select(lCas.getJCas(), HtmlTag.class).isEmpty());
+    }
+
+    @Test
+    public void testAllTypesWithoutRestriction() throws Exception {
+        CAS lCas = BinaryCasCodecTest.createCas();
+        new XmiTypeProjection(lCas.getTypeSystem(), new String[0], null).deserialize(new ByteArrayInputStream(createXMI()), lCas, null, -1);
+        assertEquals(1, JCasUtil.select(lCas.getJCas(), WikiTextSpan.class).size());
+        assertEquals(1, JCasUtil.select(lCas.getJCas(), HtmlTag.class).size());
+        assertEquals(1, JCasUtil.select(lCas.getJCas(), Token.class).size());
+        assertEquals(1, JCasUtil.select(lCas.getJCas(), Sentence.class).size());
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownType() throws Exception {
+        new XmiTypeProjection(BinaryCasCodecTest.createCas().getTypeSystem(), new String[]{"org.example.Unknown"}, null);
+    }
+
+    @Test
+    public void testGetTypeName() {
+        assertEquals("uima.tcas.Annotation", XmiTypeProjection.getTypeName("http:///uima/tcas.ecore", "Annotation"));
+        assertEquals("Unqualified", XmiTypeProjection.getTypeName("http:///uima/noNamespace.ecore", "Unqualified"));
+    }
+
+}